@@ -0,0 +1,87 @@
+package com.gradysimon.reputationweb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * Creates stand-ins for OfflinePlayer, so that the reputation web can be
+ * exercised without a running server.
+ * 
+ * Each stand-in knows only its name. Two stand-ins are equal if they have the
+ * same name, as with the server's own offline players. Every other method
+ * returns false, 0 or null.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+class BenchmarkPlayers {
+	private BenchmarkPlayers() {
+	}
+
+	/**
+	 * Returns count players, named "player0" through "player" + (count - 1).
+	 */
+	static OfflinePlayer[] create(int count) {
+		OfflinePlayer[] players = new OfflinePlayer[count];
+		for (int i = 0; i < count; i++) {
+			players[i] = create("player" + i);
+		}
+		return players;
+	}
+
+	/**
+	 * Returns a player with the given name.
+	 */
+	static OfflinePlayer create(String name) {
+		return (OfflinePlayer) Proxy.newProxyInstance(
+				OfflinePlayer.class.getClassLoader(),
+				new Class<?>[] { OfflinePlayer.class }, new PlayerHandler(name));
+	}
+
+	/**
+	 * Returns what a stand-in returns from a method it does not implement: the
+	 * zero value of a primitive return type, or null.
+	 */
+	static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return false;
+		if (type == char.class) return (char) 0;
+		if (type == byte.class) return (byte) 0;
+		if (type == short.class) return (short) 0;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		if (type == float.class) return 0f;
+		return 0d;
+	}
+
+	private static class PlayerHandler implements InvocationHandler {
+		private final String name;
+
+		PlayerHandler(String name) {
+			this.name = name;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String methodName = method.getName();
+			if (methodName.equals("getName") || methodName.equals("toString")) {
+				return name;
+			}
+			if (methodName.equals("hashCode")) {
+				return name.hashCode();
+			}
+			if (methodName.equals("equals")) {
+				Object other = args[0];
+				if (other == null || !Proxy.isProxyClass(other.getClass())) {
+					return false;
+				}
+				InvocationHandler handler = Proxy.getInvocationHandler(other);
+				return handler instanceof PlayerHandler
+						&& ((PlayerHandler) handler).name.equals(name);
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}
+}
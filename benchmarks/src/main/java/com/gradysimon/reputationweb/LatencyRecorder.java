@@ -0,0 +1,57 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Arrays;
+
+/**
+ * Collects durations, in nanoseconds, and reports their percentiles.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class LatencyRecorder {
+	private long[] samples = new long[64];
+	private int count = 0;
+	private boolean sorted = true;
+
+	void record(long nanos) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, count * 2);
+		}
+		samples[count++] = nanos;
+		sorted = false;
+	}
+
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Returns the smallest sample that is at least as large as the given
+	 * fraction of all samples, or 0 if nothing was recorded.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1, e.g. 0.99 for the 99th percentile
+	 */
+	long percentile(double fraction) {
+		if (count == 0) return 0;
+		if (!sorted) {
+			Arrays.sort(samples, 0, count);
+			sorted = true;
+		}
+		int index = (int) Math.ceil(fraction * count) - 1;
+		return samples[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	long max() {
+		return percentile(1.0);
+	}
+
+	long mean() {
+		if (count == 0) return 0;
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			total += samples[i];
+		}
+		return total / count;
+	}
+}
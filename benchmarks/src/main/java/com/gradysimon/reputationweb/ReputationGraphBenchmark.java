@@ -0,0 +1,194 @@
+package com.gradysimon.reputationweb;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.OfflinePlayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the operations of ReputationGraph that the plugin's commands
+ * depend on, over synthetic webs of every shape in SyntheticTrustWeb and of
+ * 1,000 to 1,000,000 trust relationships.
+ *
+ * Reputations are maintained eagerly, so reading one never searches the web.
+ * What separates a cold read from a warm one is therefore whether the
+ * player's state is still in the CPU caches: cold reads go to a random player
+ * anywhere in the web, warm reads cycle through a handful of hot players, the
+ * way the same few names come up over and over in chat.
+ *
+ * Trusting and untrusting leave the web as they found it: every trust that is
+ * added is removed again after the invocation, and every trust that is
+ * removed is restored, so that the web does not drift over the run. The graph
+ * is not thread safe, so every benchmark runs on a single thread.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class ReputationGraphBenchmark {
+	/**
+	 * The parameters the plugin ships with in config.yml.
+	 */
+	private static final double FLOW_MULTIPLIER = 0.5;
+	private static final int MAX_CHAIN_LENGTH = 5;
+
+	private static final int HOT_PLAYERS = 16;
+	private static final int TOP_TRUSTERS = 5;
+
+	/**
+	 * The number of random players and pairs picked up front, so that picking
+	 * one is not part of what is measured.
+	 */
+	private static final int SAMPLES = 1 << 16;
+
+	@State(Scope.Benchmark)
+	public static class Web {
+		@Param({ "RANDOM", "POWER_LAW", "CLUSTERED" })
+		SyntheticTrustWeb.Shape shape;
+
+		@Param({ "1000", "10000", "100000", "1000000" })
+		int trusts;
+
+		SyntheticTrustWeb web;
+		ReputationGraph graph;
+		Random random;
+
+		OfflinePlayer[] coldPlayers = new OfflinePlayer[SAMPLES];
+		OfflinePlayer[] hotPlayers = new OfflinePlayer[HOT_PLAYERS];
+		OfflinePlayer[] pairStarts = new OfflinePlayer[SAMPLES];
+		OfflinePlayer[] pairEnds = new OfflinePlayer[SAMPLES];
+
+		@Setup(Level.Trial)
+		public void build() {
+			web = new SyntheticTrustWeb(shape, trusts, 42);
+			graph = web.build(FLOW_MULTIPLIER, MAX_CHAIN_LENGTH);
+			random = new Random(7);
+			for (int i = 0; i < SAMPLES; i++) {
+				coldPlayers[i] = randomPlayer();
+				pairStarts[i] = randomPlayer();
+				pairEnds[i] = randomPlayer();
+			}
+			for (int i = 0; i < HOT_PLAYERS; i++) {
+				hotPlayers[i] = randomPlayer();
+			}
+		}
+
+		OfflinePlayer randomPlayer() {
+			return web.players[random.nextInt(web.playerCount())];
+		}
+	}
+
+	/**
+	 * Walks through the samples picked by Web, one per invocation.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = 0;
+
+		int advance(int length) {
+			int current = next;
+			next = (next + 1) % length;
+			return current;
+		}
+	}
+
+	/**
+	 * A trust that does not exist yet, picked before every invocation and
+	 * removed again after it.
+	 */
+	@State(Scope.Thread)
+	public static class AbsentTrust {
+		OfflinePlayer truster;
+		OfflinePlayer trustee;
+
+		@Setup(Level.Invocation)
+		public void pick(Web web) {
+			do {
+				truster = web.randomPlayer();
+				trustee = web.randomPlayer();
+			} while (truster.equals(trustee)
+					|| web.graph.trustRelationExists(truster, trustee));
+		}
+
+		@TearDown(Level.Invocation)
+		public void restore(Web web) {
+			web.graph.removeTrustRelation(truster, trustee);
+		}
+	}
+
+	/**
+	 * A trust that exists, picked before every invocation and restored after
+	 * it.
+	 */
+	@State(Scope.Thread)
+	public static class PresentTrust {
+		OfflinePlayer truster;
+		OfflinePlayer trustee;
+
+		@Setup(Level.Invocation)
+		public void pick(Web web) {
+			int index = web.random.nextInt(web.web.trustCount());
+			truster = web.web.players[web.web.trusters[index]];
+			trustee = web.web.players[web.web.trustees[index]];
+		}
+
+		@TearDown(Level.Invocation)
+		public void restore(Web web) {
+			web.graph.addTrustRelation(truster, trustee);
+		}
+	}
+
+	@Benchmark
+	public void addTrustRelation(Web web, AbsentTrust trust) {
+		web.graph.addTrustRelation(trust.truster, trust.trustee);
+	}
+
+	@Benchmark
+	public void removeTrustRelation(Web web, PresentTrust trust) {
+		web.graph.removeTrustRelation(trust.truster, trust.trustee);
+	}
+
+	@Benchmark
+	public double getReputationCold(Web web, Cursor cursor) {
+		return web.graph.getReputation(web.coldPlayers[cursor
+				.advance(SAMPLES)]);
+	}
+
+	@Benchmark
+	public double getReputationWarm(Web web, Cursor cursor) {
+		return web.graph.getReputation(web.hotPlayers[cursor
+				.advance(HOT_PLAYERS)]);
+	}
+
+	@Benchmark
+	public List<OfflinePlayer> getTopTrusters(Web web, Cursor cursor) {
+		return web.graph.getTopTrusters(
+				web.coldPlayers[cursor.advance(SAMPLES)], TOP_TRUSTERS);
+	}
+
+	@Benchmark
+	public List<OfflinePlayer> getReference(Web web, Cursor cursor) {
+		int pair = cursor.advance(SAMPLES);
+		return web.graph.getReference(web.pairStarts[pair], web.pairEnds[pair]);
+	}
+}
@@ -0,0 +1,292 @@
+package com.gradysimon.reputationweb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import com.avaje.ebean.EbeanServer;
+
+/**
+ * Just enough of a Bukkit server for TrafficSimulator to drive the plugin's
+ * commands without Minecraft.
+ *
+ * Every player says he is online when asked with isOnline(), and has every
+ * permission, but the server lists nobody as online (getOnlinePlayers() is
+ * empty), so the refresh priority given to online players is never exercised
+ * in these runs. A player is identified by name: getOfflinePlayer() always
+ * returns the same object for the same name, and any two simulated players
+ * with the same name are equal, as with the server's own players.
+ *
+ * Commands are sent from a fresh sender for every command (see sender() and
+ * console()), so that the first message that sender receives can be timed as
+ * the reply to that command, even when the reply only arrives ticks later.
+ * Messages sent to a player's canonical object, such as "player now trusts
+ * you", are only counted.
+ *
+ * Tasks handed to the scheduler are queued until the simulator runs them at
+ * the start of the next tick, as the server would on its main thread;
+ * repeating tasks run at the start of every tick until they are cancelled.
+ * The database accepts everything and stores nothing.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class SimulatedServer {
+	/**
+	 * Receives the first message sent to a command's sender.
+	 */
+	interface ReplyListener {
+		void replied();
+	}
+
+	private final Map<String, Player> players = new HashMap<String, Player>();
+	private final ConcurrentLinkedQueue<Runnable> scheduledTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Map<Integer, Runnable> repeatingTasks = new LinkedHashMap<Integer, Runnable>();
+	private int nextTaskId = 1;
+	private long notifications = 0;
+
+	private final Server server;
+	private final Plugin plugin;
+	private final BukkitScheduler scheduler;
+	private final EbeanServer database;
+
+	SimulatedServer() {
+		this.server = stub(Server.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getOfflinePlayer")) {
+					return player((String) args[0]);
+				}
+				if (name.equals("getPlayer") || name.equals("getPlayerExact")) {
+					return player((String) args[0]);
+				}
+				if (name.equals("getWorlds")) {
+					return new ArrayList<World>();
+				}
+				if (name.equals("getOnlinePlayers")) {
+					return new Player[0];
+				}
+				if (name.equals("getScheduler")) {
+					return scheduler;
+				}
+				return objectMethod(proxy, method, args, "Server");
+			}
+		});
+		this.plugin = stub(Plugin.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getServer")) return server;
+				return objectMethod(proxy, method, args, "ReputationWeb");
+			}
+		});
+		this.scheduler = stub(BukkitScheduler.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("scheduleSyncRepeatingTask")) {
+					int id = nextTaskId++;
+					repeatingTasks.put(id, (Runnable) args[1]);
+					return id;
+				}
+				if (name.startsWith("scheduleSync")) {
+					scheduledTasks.add((Runnable) args[1]);
+					return nextTaskId++;
+				}
+				if (name.equals("cancelTask")) {
+					repeatingTasks.remove(args[0]);
+					return null;
+				}
+				return objectMethod(proxy, method, args, "Scheduler");
+			}
+		});
+		this.database = nullObject(EbeanServer.class);
+	}
+
+	Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Returns the plugin that owns the scheduler's tasks.
+	 */
+	Plugin getPlugin() {
+		return plugin;
+	}
+
+	EbeanServer getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Returns the player with the given name, creating him if he has not been
+	 * seen before.
+	 */
+	Player player(String name) {
+		Player player = players.get(name);
+		if (player == null) {
+			player = createPlayer(name, null);
+			players.put(name, player);
+		}
+		return player;
+	}
+
+	/**
+	 * Returns a sender for a single command, equal to the player with the
+	 * given name.
+	 */
+	Player sender(String name, ReplyListener listener) {
+		return createPlayer(name, listener);
+	}
+
+	/**
+	 * Returns a sender for a single command that is not a player, like the
+	 * server console.
+	 */
+	CommandSender console(final ReplyListener listener) {
+		return stub(CommandSender.class, new InvocationHandler() {
+			private boolean replied = false;
+
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("sendMessage")) {
+					if (!replied) {
+						replied = true;
+						listener.replied();
+					}
+					return null;
+				}
+				if (name.equals("getName")) return "CONSOLE";
+				if (name.equals("hasPermission") || name.equals("isOp")) {
+					return true;
+				}
+				return objectMethod(proxy, method, args, "CONSOLE");
+			}
+		});
+	}
+
+	/**
+	 * Runs every task that was scheduled since the last call.
+	 */
+	void runScheduledTasks() {
+		Runnable task;
+		while ((task = scheduledTasks.poll()) != null) {
+			task.run();
+		}
+		for (Runnable repeatingTask : new ArrayList<Runnable>(
+				repeatingTasks.values())) {
+			repeatingTask.run();
+		}
+	}
+
+	boolean hasScheduledTasks() {
+		return !scheduledTasks.isEmpty();
+	}
+
+	/**
+	 * Returns the number of messages sent to players that were not replies to
+	 * their own commands.
+	 */
+	long getNotifications() {
+		return notifications;
+	}
+
+	private Player createPlayer(String name, ReplyListener listener) {
+		return stub(Player.class, new PlayerHandler(name, listener));
+	}
+
+	private class PlayerHandler implements InvocationHandler {
+		private final String name;
+		private ReplyListener listener;
+
+		PlayerHandler(String name, ReplyListener listener) {
+			this.name = name;
+			this.listener = listener;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String methodName = method.getName();
+			if (methodName.equals("getName")
+					|| methodName.equals("getDisplayName")
+					|| methodName.equals("toString")) {
+				return name;
+			}
+			if (methodName.equals("hashCode")) return name.hashCode();
+			if (methodName.equals("equals")) {
+				Object other = args[0];
+				if (other == null || !Proxy.isProxyClass(other.getClass())) {
+					return false;
+				}
+				InvocationHandler handler = Proxy.getInvocationHandler(other);
+				return handler instanceof PlayerHandler
+						&& ((PlayerHandler) handler).name.equals(name);
+			}
+			if (methodName.equals("sendMessage")) {
+				if (listener != null) {
+					listener.replied();
+					listener = null;
+				} else {
+					notifications++;
+				}
+				return null;
+			}
+			if (methodName.equals("isOnline")
+					|| methodName.equals("hasPlayedBefore")
+					|| methodName.equals("hasPermission")) {
+				return true;
+			}
+			if (methodName.equals("getPlayer")) return player(name);
+			if (methodName.equals("getServer")) return server;
+			return BenchmarkPlayers.defaultValue(method.getReturnType());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * Returns an object that does nothing, and returns another such object
+	 * from every method that returns an interface, so that chained calls like
+	 * database.find(...).where().eq(...) work and end in null.
+	 */
+	private static <T> T nullObject(final Class<T> type) {
+		return stub(type, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				Class<?> returnType = method.getReturnType();
+				if (returnType.isInterface()
+						&& returnType.getName().startsWith("com.avaje")) {
+					return nullObject(returnType);
+				}
+				if (List.class.equals(returnType)) return new ArrayList<Object>();
+				return objectMethod(proxy, method, args, type.getSimpleName());
+			}
+		});
+	}
+
+	/**
+	 * Implements equals(), hashCode() and toString() by identity, and returns
+	 * the default value from everything else.
+	 */
+	private static Object objectMethod(Object proxy, Method method,
+			Object[] args, String description)
+	{
+		String name = method.getName();
+		if (name.equals("equals")) return proxy == args[0];
+		if (name.equals("hashCode")) return System.identityHashCode(proxy);
+		if (name.equals("toString")) return description;
+		return BenchmarkPlayers.defaultValue(method.getReturnType());
+	}
+}
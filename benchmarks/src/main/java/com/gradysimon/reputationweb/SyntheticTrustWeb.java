@@ -0,0 +1,135 @@
+package com.gradysimon.reputationweb;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * A randomly generated reputation web, used to benchmark ReputationGraph.
+ * 
+ * Every web has one player for every AVERAGE_TRUSTS trust relationships, so
+ * the average player trusts AVERAGE_TRUSTS others whatever the size of the
+ * web. The trusts themselves are laid out in one of three shapes:
+ * 
+ * RANDOM: every trust is between two players chosen uniformly at random.
+ * 
+ * POWER_LAW: players are more likely to trust players who are already trusted
+ * a lot, so a few players collect most of the trust, as on a real server where
+ * everybody trusts the admins.
+ * 
+ * CLUSTERED: players are split into groups of CLUSTER_SIZE, and most trusts
+ * stay within a group, like a server split into towns or factions.
+ * 
+ * Generation is deterministic for a given shape, size and seed.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+class SyntheticTrustWeb {
+	enum Shape {
+		RANDOM, POWER_LAW, CLUSTERED
+	}
+
+	static final int AVERAGE_TRUSTS = 8;
+	static final int CLUSTER_SIZE = 50;
+
+	/**
+	 * The chance that a POWER_LAW trust goes to a player in proportion to how
+	 * trusted he already is, rather than to any player.
+	 */
+	private static final double PREFERENTIAL_CHANCE = 0.8;
+
+	/**
+	 * The chance that a CLUSTERED trust stays within the truster's group.
+	 */
+	private static final double IN_CLUSTER_CHANCE = 0.9;
+
+	final OfflinePlayer[] players;
+	final int[] trusters;
+	final int[] trustees;
+
+	/**
+	 * Generates a web with the given shape and number of trust
+	 * relationships.
+	 */
+	SyntheticTrustWeb(Shape shape, int trusts, long seed) {
+		int playerCount = Math.max(2 * AVERAGE_TRUSTS, trusts / AVERAGE_TRUSTS);
+		this.players = BenchmarkPlayers.create(playerCount);
+		this.trusters = new int[trusts];
+		this.trustees = new int[trusts];
+		Random random = new Random(seed);
+		Set<Long> existing = new HashSet<Long>(trusts * 2);
+		int generated = 0;
+		while (generated < trusts) {
+			int truster = random.nextInt(playerCount);
+			int trustee = pickTrustee(shape, random, truster, generated);
+			if (truster == trustee) continue;
+			if (!existing.add(((long) truster << 32) | trustee)) continue;
+			trusters[generated] = truster;
+			trustees[generated] = trustee;
+			generated++;
+		}
+	}
+
+	int playerCount() {
+		return players.length;
+	}
+
+	int trustCount() {
+		return trusters.length;
+	}
+
+	/**
+	 * Returns a ReputationGraph holding every trust in the web.
+	 */
+	ReputationGraph build(double flowMultiplier, int maxChainLength) {
+		return build(flowMultiplier, maxChainLength, players);
+	}
+
+	/**
+	 * Returns a ReputationGraph holding every trust in the web, between the
+	 * given players instead of this web's own. The player at each index stands
+	 * in for this web's player at the same index.
+	 */
+	ReputationGraph build(double flowMultiplier, int maxChainLength,
+			OfflinePlayer[] as)
+	{
+		ReputationGraph graph = new ReputationGraph(flowMultiplier,
+				maxChainLength);
+		graph.startBulkLoad();
+		for (int i = 0; i < trusters.length; i++) {
+			graph.addTrustRelation(as[trusters[i]], as[trustees[i]]);
+		}
+		graph.finishBulkLoad(Runtime.getRuntime().availableProcessors());
+		return graph;
+	}
+
+	private int pickTrustee(Shape shape, Random random, int truster,
+			int generated)
+	{
+		int playerCount = players.length;
+		switch (shape) {
+		case POWER_LAW:
+			/*
+			 * Picking the trustee of an earlier trust picks each player in
+			 * proportion to the number of players who already trust him.
+			 */
+			if (generated > 0 && random.nextDouble() < PREFERENTIAL_CHANCE) {
+				return trustees[random.nextInt(generated)];
+			}
+			return random.nextInt(playerCount);
+		case CLUSTERED:
+			if (random.nextDouble() < IN_CLUSTER_CHANCE) {
+				int clusterStart = truster - truster % CLUSTER_SIZE;
+				int clusterSize = Math.min(CLUSTER_SIZE, playerCount
+						- clusterStart);
+				return clusterStart + random.nextInt(clusterSize);
+			}
+			return random.nextInt(playerCount);
+		default:
+			return random.nextInt(playerCount);
+		}
+	}
+}
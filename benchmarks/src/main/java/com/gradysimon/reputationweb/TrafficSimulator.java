@@ -0,0 +1,296 @@
+package com.gradysimon.reputationweb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.command.CommandSender;
+
+import com.avaje.ebean.EbeanServer;
+
+/**
+ * Replays a trace of commands against the plugin, on a simulated server with
+ * no Minecraft behind it, to find out before deploying whether a change will
+ * make the server lag.
+ *
+ * The simulator builds a synthetic web (see SyntheticTrustWeb), then runs the
+ * trace through ReputationCommandExecutor one server tick at a time, at the
+ * real tick rate of 20 ticks per second. At the start of every tick it runs
+ * the tasks the plugin handed to the scheduler, like the server's main thread
+ * would. Afterwards it reports, for each kind of command:
+ *
+ * main: how long the command held up the main thread, and
+ *
+ * reply: how long it took until the sender got an answer, which in
+ * asynchronous mode includes waiting for the engine's worker thread,
+ *
+ * together with how much of each tick's 50 ms the plugin used.
+ *
+ * Options are given as key=value:
+ *
+ * <pre>
+ * shape=RANDOM|POWER_LAW|CLUSTERED  shape of the web (CLUSTERED)
+ * trusts=n         trust relationships in the web (10000)
+ * commands=n       commands to generate (2000)
+ * rate=n           commands per second (40)
+ * seed=n           random seed (1)
+ * async=true       run the engine in asynchronous mode (false)
+ * refresh=ms       synchronous mode's refresh budget per tick, 0 for none (10)
+ * trace=file       replay this trace instead of generating one
+ * save=file        write the trace that was run to this file
+ * realtime=false   run ticks back to back instead of 50 ms apart (true)
+ * </pre>
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class TrafficSimulator {
+	private static final long TICK_NANOS = 1000000000L / TrafficTrace.TICKS_PER_SECOND;
+	private static final double FLOW_MULTIPLIER = 0.5;
+	private static final int MAX_CHAIN_LENGTH = 5;
+	private static final long DATABASE_FLUSH_MILLIS = 1000;
+
+	/**
+	 * How long to keep ticking after the last command while replies are
+	 * still outstanding or trust changes are still waiting to be applied.
+	 */
+	private static final int DRAIN_TICKS = 30 * TrafficTrace.TICKS_PER_SECOND;
+
+	private final SimulatedServer server = new SimulatedServer();
+	private final boolean realtime;
+
+	private final Map<String, LatencyRecorder> mainThreadTimes = new TreeMap<String, LatencyRecorder>();
+	private final Map<String, LatencyRecorder> replyTimes = new TreeMap<String, LatencyRecorder>();
+	private final LatencyRecorder tickTimes = new LatencyRecorder();
+	private int ticksOverBudget = 0;
+	private int outstandingReplies = 0;
+
+	private ReputationEngine engine;
+	private TrustStore trustStore;
+	private ReputationCommandExecutor executor;
+
+	private TrafficSimulator(boolean realtime) {
+		this.realtime = realtime;
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException
+	{
+		Map<String, String> options = parseOptions(args);
+		SyntheticTrustWeb.Shape shape = SyntheticTrustWeb.Shape
+				.valueOf(option(options, "shape", "CLUSTERED").toUpperCase());
+		int trusts = Integer.parseInt(option(options, "trusts", "10000"));
+		int commands = Integer.parseInt(option(options, "commands", "2000"));
+		double rate = Double.parseDouble(option(options, "rate", "40"));
+		long seed = Long.parseLong(option(options, "seed", "1"));
+		boolean async = Boolean.parseBoolean(option(options, "async", "false"));
+		long refreshBudget = Long.parseLong(option(options, "refresh", "10"));
+		boolean realtime = Boolean.parseBoolean(option(options, "realtime",
+				"true"));
+
+		TrafficSimulator simulator = new TrafficSimulator(realtime);
+		SyntheticTrustWeb web = new SyntheticTrustWeb(shape, trusts, seed);
+		simulator.start(web, async, refreshBudget);
+		TrafficTrace trace;
+		if (options.containsKey("trace")) {
+			trace = TrafficTrace.read(new File(options.get("trace")));
+		} else {
+			trace = TrafficTrace.generate(web, commands, rate, seed);
+		}
+		if (options.containsKey("save")) {
+			trace.write(new File(options.get("save")));
+		}
+		System.out.println("Replaying " + trace.getOperations().size()
+				+ " commands against a " + shape + " web of "
+				+ web.playerCount() + " players and " + trusts
+				+ " trusts, engine " + (async ? "asynchronous" : "synchronous")
+				+ ".");
+		simulator.run(trace);
+		simulator.report();
+	}
+
+	/**
+	 * Builds the graph from the web and starts the plugin's engine and
+	 * command executor on top of it.
+	 */
+	private void start(SyntheticTrustWeb web, boolean async,
+			long refreshBudget)
+	{
+		OfflinePlayer[] players = new OfflinePlayer[web.playerCount()];
+		for (int i = 0; i < players.length; i++) {
+			players[i] = server.player(web.players[i].getName());
+		}
+		long buildStart = System.nanoTime();
+		ReputationGraph graph = web.build(FLOW_MULTIPLIER, MAX_CHAIN_LENGTH,
+				players);
+		System.out.println(String.format("Built the web in %.1f s.",
+				(System.nanoTime() - buildStart) / 1e9));
+		Logger log = Logger.getLogger("ReputationWeb");
+		SimulatedPlugin plugin = new SimulatedPlugin(server.getDatabase());
+		graph.setMetrics(plugin.getMetrics());
+		engine = new ReputationEngine(server.getPlugin(), graph, async, log);
+		engine.setRefreshBudget(refreshBudget);
+		engine.start();
+		trustStore = new EbeanTrustStore(server.getDatabase(),
+				DATABASE_FLUSH_MILLIS, plugin.getMetrics(), log);
+		// Never started, so it knows nobody and, with no worlds, finds nobody
+		// on disk either: every player in the trace is already in the web.
+		KnownPlayerIndex knownPlayers = new KnownPlayerIndex(new File(
+				System.getProperty("java.io.tmpdir")), server.getServer()
+				.getWorlds(), log);
+		executor = new ReputationCommandExecutor(plugin, engine, trustStore,
+				knownPlayers, server.getServer());
+	}
+
+	private void run(TrafficTrace trace) throws InterruptedException {
+		List<TrafficTrace.Operation> operations = trace.getOperations();
+		long lastTick = operations.isEmpty() ? 0 : operations.get(operations
+				.size() - 1).tick;
+		int next = 0;
+		long runStart = System.nanoTime();
+		for (long tick = 0; tick <= lastTick
+				|| ((outstandingReplies > 0 || waitingToRefresh()) && tick <= lastTick
+						+ DRAIN_TICKS); tick++) {
+			long tickStart = System.nanoTime();
+			server.runScheduledTasks();
+			while (next < operations.size()
+					&& operations.get(next).tick <= tick) {
+				runCommand(operations.get(next));
+				next++;
+			}
+			long used = System.nanoTime() - tickStart;
+			tickTimes.record(used);
+			if (used > TICK_NANOS) ticksOverBudget++;
+			if (realtime) {
+				long sleepNanos = runStart + (tick + 1) * TICK_NANOS
+						- System.nanoTime();
+				if (sleepNanos > 0) {
+					Thread.sleep(sleepNanos / 1000000,
+							(int) (sleepNanos % 1000000));
+				}
+			}
+		}
+		engine.shutdown();
+		trustStore.close();
+	}
+
+	/**
+	 * Returns true while synchronous mode still has trust changes queued or
+	 * propagating within its refresh budget.
+	 */
+	private boolean waitingToRefresh() {
+		return engine.hasPendingRefresh();
+	}
+
+	private void runCommand(TrafficTrace.Operation operation) {
+		final String type = operation.type();
+		final long submitted = System.nanoTime();
+		SimulatedServer.ReplyListener listener = new SimulatedServer.ReplyListener() {
+			private boolean replied = false;
+
+			public void replied() {
+				if (replied) return;
+				replied = true;
+				outstandingReplies--;
+				recorder(replyTimes, type).record(System.nanoTime() - submitted);
+			}
+		};
+		outstandingReplies++;
+		CommandSender sender = operation.fromConsole() ? server
+				.console(listener) : server.sender(operation.sender, listener);
+		boolean handled = executor.onCommand(sender, null, operation.label,
+				operation.args);
+		recorder(mainThreadTimes, type).record(System.nanoTime() - submitted);
+		// The server answers unhandled commands with their usage message.
+		if (!handled) listener.replied();
+	}
+
+	private void report() {
+		System.out.println();
+		System.out.println(String.format("%-16s %7s %10s %10s %10s %10s %10s %10s",
+				"command (ms)", "count", "main p50", "main p99", "main max",
+				"reply p50", "reply p99", "reply max"));
+		for (String type : mainThreadTimes.keySet()) {
+			LatencyRecorder main = mainThreadTimes.get(type);
+			LatencyRecorder reply = recorder(replyTimes, type);
+			System.out.println(String.format(
+					"%-16s %7d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f", type,
+					main.count(), millis(main.percentile(0.5)),
+					millis(main.percentile(0.99)), millis(main.max()),
+					millis(reply.percentile(0.5)),
+					millis(reply.percentile(0.99)), millis(reply.max())));
+		}
+		System.out.println();
+		System.out.println(String.format(
+				"Tick budget used over %d ticks: mean %.1f%%, p50 %.1f%%, p99 %.1f%%, max %.1f%%; %d ticks over budget.",
+				tickTimes.count(), budget(tickTimes.mean()),
+				budget(tickTimes.percentile(0.5)),
+				budget(tickTimes.percentile(0.99)), budget(tickTimes.max()),
+				ticksOverBudget));
+		if (outstandingReplies > 0) {
+			System.out.println(outstandingReplies
+					+ " commands were never answered.");
+		}
+		System.out.println(server.getNotifications()
+				+ " notifications were sent to other players.");
+	}
+
+	private static LatencyRecorder recorder(
+			Map<String, LatencyRecorder> recorders, String type)
+	{
+		LatencyRecorder recorder = recorders.get(type);
+		if (recorder == null) {
+			recorder = new LatencyRecorder();
+			recorders.put(type, recorder);
+		}
+		return recorder;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static double budget(long nanos) {
+		return 100.0 * nanos / TICK_NANOS;
+	}
+
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			options.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		return options;
+	}
+
+	private static String option(Map<String, String> options, String key,
+			String defaultValue)
+	{
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * The plugin, with the simulated database in place of Bukkit's.
+	 */
+	private static class SimulatedPlugin extends ReputationWeb {
+		private final EbeanServer database;
+
+		SimulatedPlugin(EbeanServer database) {
+			this.database = database;
+		}
+
+		@Override
+		EbeanServer getPluginDatabase() {
+			return database;
+		}
+	}
+}
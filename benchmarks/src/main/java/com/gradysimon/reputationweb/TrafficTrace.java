@@ -0,0 +1,309 @@
+package com.gradysimon.reputationweb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A sequence of commands for TrafficSimulator to replay, each at a given
+ * server tick.
+ *
+ * Traces are stored as text, one command per line:
+ *
+ * <pre>
+ * &lt;tick&gt; &lt;sender&gt; &lt;label&gt; [args...]
+ * </pre>
+ *
+ * where sender is a player name or "console", and label and args are what
+ * the sender typed, e.g. "120 player7 trust player42" or
+ * "121 console rep connection player3 player9001". Blank lines and lines
+ * starting with # are ignored.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class TrafficTrace {
+	static final String CONSOLE = "console";
+	static final int TICKS_PER_SECOND = 20;
+
+	/**
+	 * The share of generated commands that come in bursts of /trust and
+	 * /untrust, that are /rep info on a popular player, and (the rest) that
+	 * are /rep connection between far-apart parts of the web.
+	 */
+	private static final double BURST_SHARE = 0.3;
+	private static final double INFO_SHARE = 0.5;
+
+	private static final int MAX_BURST = 16;
+	private static final double UNTRUST_CHANCE = 0.3;
+	private static final double TRUST_POPULAR_CHANCE = 0.5;
+
+	/**
+	 * The fraction of the web, by number of trusters, that counts as popular.
+	 */
+	private static final double POPULAR_FRACTION = 0.01;
+	private static final int MIN_POPULAR = 10;
+
+	static class Operation {
+		final long tick;
+		final String sender;
+		final String label;
+		final String[] args;
+
+		Operation(long tick, String sender, String label, String... args) {
+			this.tick = tick;
+			this.sender = sender;
+			this.label = label;
+			this.args = args;
+		}
+
+		/**
+		 * Returns the kind of command this is, e.g. "trust" or "rep info",
+		 * which is what latencies are reported by.
+		 */
+		String type() {
+			String lowerLabel = label.toLowerCase();
+			if ((lowerLabel.equals("rep") || lowerLabel.equals("reputation"))
+					&& args.length > 0) {
+				return "rep " + args[0].toLowerCase();
+			}
+			return lowerLabel;
+		}
+
+		boolean fromConsole() {
+			return sender.equals(CONSOLE);
+		}
+
+		String toLine() {
+			StringBuilder line = new StringBuilder();
+			line.append(tick).append(' ').append(sender).append(' ')
+					.append(label);
+			for (String arg : args) {
+				line.append(' ').append(arg);
+			}
+			return line.toString();
+		}
+	}
+
+	private final List<Operation> operations;
+
+	private TrafficTrace(List<Operation> operations) {
+		this.operations = operations;
+	}
+
+	/**
+	 * Returns the commands in the order they are to be run.
+	 */
+	List<Operation> getOperations() {
+		return operations;
+	}
+
+	static TrafficTrace read(File file) throws IOException {
+		List<Operation> operations = new ArrayList<Operation>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length < 3) {
+					throw new IOException(file + ":" + lineNumber
+							+ ": expected <tick> <sender> <label> [args...]");
+				}
+				long tick;
+				try {
+					tick = Long.parseLong(fields[0]);
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber
+							+ ": not a tick: " + fields[0]);
+				}
+				operations.add(new Operation(tick, fields[1], fields[2],
+						Arrays.copyOfRange(fields, 3, fields.length)));
+			}
+		} finally {
+			reader.close();
+		}
+		// Stable, so commands in the same tick keep their order.
+		Collections.sort(operations, new Comparator<Operation>() {
+			public int compare(Operation a, Operation b) {
+				return a.tick < b.tick ? -1 : (a.tick == b.tick ? 0 : 1);
+			}
+		});
+		return new TrafficTrace(operations);
+	}
+
+	void write(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			for (Operation operation : operations) {
+				writer.println(operation.toLine());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Generates a trace against the given web.
+	 *
+	 * @param count
+	 *            The number of commands to generate
+	 * @param rate
+	 *            The average number of commands per second
+	 */
+	static TrafficTrace generate(SyntheticTrustWeb web, int count,
+			double rate, long seed)
+	{
+		return new Generator(web, rate, seed).generate(count);
+	}
+
+	private static class Generator {
+		private final SyntheticTrustWeb web;
+		private final double ticksPerOperation;
+		private final Random random;
+		private final List<Operation> operations = new ArrayList<Operation>();
+		private double tick = 0;
+
+		/**
+		 * The ids of the most trusted players.
+		 */
+		private final int[] popular;
+
+		/**
+		 * Every trust as it will stand when the trace gets this far, packed
+		 * as truster << 32 | trustee, so that /trust is only generated for
+		 * trusts that do not exist and /untrust for ones that do.
+		 */
+		private final Set<Long> trusts = new HashSet<Long>();
+		private final List<Long> trustList = new ArrayList<Long>();
+
+		Generator(SyntheticTrustWeb web, double rate, long seed) {
+			this.web = web;
+			this.ticksPerOperation = TICKS_PER_SECOND / rate;
+			this.random = new Random(seed);
+			for (int i = 0; i < web.trustCount(); i++) {
+				addTrust(web.trusters[i], web.trustees[i]);
+			}
+			this.popular = findPopular();
+		}
+
+		TrafficTrace generate(int count) {
+			while (operations.size() < count) {
+				double choice = random.nextDouble();
+				if (choice < BURST_SHARE) {
+					int burst = 1 + random.nextInt(MAX_BURST);
+					burst = Math.min(burst, count - operations.size());
+					for (int i = 0; i < burst; i++) {
+						trustOrUntrust();
+					}
+					tick += ticksPerOperation * burst;
+				} else if (choice < BURST_SHARE + INFO_SHARE) {
+					add(CONSOLE, "rep", "info", name(pickPopular()));
+					tick += ticksPerOperation;
+				} else {
+					farConnection();
+					tick += ticksPerOperation;
+				}
+			}
+			return new TrafficTrace(operations);
+		}
+
+		private void trustOrUntrust() {
+			if (!trustList.isEmpty() && random.nextDouble() < UNTRUST_CHANCE) {
+				int index = random.nextInt(trustList.size());
+				long trust = trustList.get(index);
+				trustList.set(index, trustList.get(trustList.size() - 1));
+				trustList.remove(trustList.size() - 1);
+				trusts.remove(trust);
+				add(name((int) (trust >>> 32)), "untrust",
+						name((int) trust));
+				return;
+			}
+			int truster;
+			int trustee;
+			do {
+				truster = random.nextInt(web.playerCount());
+				trustee = random.nextDouble() < TRUST_POPULAR_CHANCE ? pickPopular()
+						: random.nextInt(web.playerCount());
+			} while (truster == trustee
+					|| trusts.contains(pack(truster, trustee)));
+			addTrust(truster, trustee);
+			add(name(truster), "trust", name(trustee));
+		}
+
+		/**
+		 * Adds a /rep connection between players in opposite halves of the
+		 * web. In a CLUSTERED web they are always in different clusters.
+		 */
+		private void farConnection() {
+			int clusterSize = SyntheticTrustWeb.CLUSTER_SIZE;
+			int clusters = Math.max(1, web.playerCount() / clusterSize);
+			int startCluster = random.nextInt(clusters);
+			int endCluster = (startCluster + clusters / 2) % clusters;
+			int start = startCluster * clusterSize
+					+ random.nextInt(Math.min(clusterSize, web.playerCount()));
+			int end = endCluster * clusterSize
+					+ random.nextInt(Math.min(clusterSize, web.playerCount()));
+			add(CONSOLE, "rep", "connection", name(start), name(end));
+		}
+
+		private int[] findPopular() {
+			int[] trusterCounts = new int[web.playerCount()];
+			for (int trustee : web.trustees) {
+				trusterCounts[trustee]++;
+			}
+			Integer[] ids = new Integer[web.playerCount()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = i;
+			}
+			final int[] counts = trusterCounts;
+			Arrays.sort(ids, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return counts[b] - counts[a];
+				}
+			});
+			int popularCount = Math.min(ids.length, Math.max(MIN_POPULAR,
+					(int) (ids.length * POPULAR_FRACTION)));
+			int[] popular = new int[popularCount];
+			for (int i = 0; i < popularCount; i++) {
+				popular[i] = ids[i];
+			}
+			return popular;
+		}
+
+		private int pickPopular() {
+			return popular[random.nextInt(popular.length)];
+		}
+
+		private void addTrust(int truster, int trustee) {
+			long trust = pack(truster, trustee);
+			if (trusts.add(trust)) trustList.add(trust);
+		}
+
+		private static long pack(int truster, int trustee) {
+			return ((long) truster << 32) | trustee;
+		}
+
+		private String name(int id) {
+			return web.players[id].getName();
+		}
+
+		private void add(String sender, String label, String... args) {
+			operations.add(new Operation((long) tick, sender, label, args));
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.gradysimon.reputationweb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Query;
+
+/**
+ * Keeps trust relationships in the rw_players and rw_trust_edges tables,
+ * through Bukkit's Ebean database. Each player's name is stored once, in
+ * rw_players, and edges refer to players by id. Changes are written by a
+ * TrustWriteBehindQueue.
+ *
+ * Trusts from older versions, which kept both names on every row of
+ * rw_trusts, are moved into the new tables the first time they are loaded.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class EbeanTrustStore implements TrustStore {
+	/**
+	 * The number of rows read from the database at a time while loading.
+	 */
+	private static final int LOAD_BATCH_SIZE = 1000;
+
+	private final EbeanServer database;
+	private final Logger log;
+	private final PlayerIds playerIds = new PlayerIds();
+	private final TrustWriteBehindQueue writer;
+
+	/**
+	 * @param flushIntervalMillis
+	 *            How often queued changes are written
+	 */
+	EbeanTrustStore(EbeanServer database, long flushIntervalMillis,
+			ReputationMetrics metrics, Logger log)
+	{
+		this.database = database;
+		this.log = log;
+		this.writer = new TrustWriteBehindQueue(database, playerIds,
+				flushIntervalMillis, metrics, log);
+	}
+
+	public void load(TrustVisitor visitor) {
+		migrateLegacyTrusts();
+		Map<Integer, String> names = loadPlayerNames();
+		int lastId = Integer.MIN_VALUE;
+		while (true) {
+			List<TrustEdge> edges = getEdgesFromDatabase(lastId,
+					LOAD_BATCH_SIZE);
+			for (TrustEdge edge : edges) {
+				String trusterName = names.get(edge.getTrusterId());
+				String trusteeName = names.get(edge.getTrusteeId());
+				if (trusterName == null || trusteeName == null) continue;
+				visitor.trustAdded(trusterName, trusteeName);
+			}
+			if (edges.size() < LOAD_BATCH_SIZE) break;
+			lastId = edges.get(edges.size() - 1).getId();
+		}
+	}
+
+	/**
+	 * Reads every player's name by id, and remembers each id for the writer.
+	 */
+	private Map<Integer, String> loadPlayerNames() {
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		int lastId = Integer.MIN_VALUE;
+		while (true) {
+			List<RWPlayer> players = database.find(RWPlayer.class)
+					.select("id,name").where().gt("id", lastId).orderBy("id")
+					.setMaxRows(LOAD_BATCH_SIZE).findList();
+			for (RWPlayer player : players) {
+				names.put(player.getId(), player.getName());
+				playerIds.put(player.getName(), player.getId());
+			}
+			if (players.size() < LOAD_BATCH_SIZE) break;
+			lastId = players.get(players.size() - 1).getId();
+		}
+		return names;
+	}
+
+	// Should execute query equivalent to:
+	// "SELECT id,truster_id,trustee_id FROM rw_trust_edges WHERE id > afterId
+	// ORDER BY id LIMIT batchSize"
+	// Paging by id rather than by offset keeps every page equally cheap, and
+	// only one page of beans is ever held at once.
+	private List<TrustEdge> getEdgesFromDatabase(int afterId, int batchSize) {
+		Query<TrustEdge> edgesQuery = database.find(TrustEdge.class);
+		edgesQuery = edgesQuery.select("id,trusterId,trusteeId");
+		return edgesQuery.where().gt("id", afterId).orderBy("id")
+				.setMaxRows(batchSize).findList();
+	}
+
+	/**
+	 * Moves any trusts left in rw_trusts into the new tables, in a single
+	 * transaction that also empties rw_trusts, so that the move happens once
+	 * and either completely or not at all. Duplicate rows are dropped.
+	 */
+	private void migrateLegacyTrusts() {
+		if (database.find(Trust.class).findRowCount() == 0) return;
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		Set<Long> migrated = new HashSet<Long>();
+		database.beginTransaction();
+		try {
+			int lastId = Integer.MIN_VALUE;
+			while (true) {
+				List<Trust> trusts = database.find(Trust.class)
+						.select("id,trusterName,trusteeName").where()
+						.gt("id", lastId).orderBy("id")
+						.setMaxRows(LOAD_BATCH_SIZE).findList();
+				for (Trust trust : trusts) {
+					int trusterId = playerIds.find(database,
+							trust.getTrusterName(), found, true);
+					int trusteeId = playerIds.find(database,
+							trust.getTrusteeName(), found, true);
+					if (!migrated.add(((long) trusterId << 32)
+							| (trusteeId & 0xFFFFFFFFL))) {
+						continue;
+					}
+					TrustEdge edge = new TrustEdge();
+					edge.setTrusterId(trusterId);
+					edge.setTrusteeId(trusteeId);
+					database.save(edge);
+				}
+				if (trusts.size() < LOAD_BATCH_SIZE) break;
+				lastId = trusts.get(trusts.size() - 1).getId();
+			}
+			database.execute(database.createSqlUpdate("delete from rw_trusts"));
+			database.commitTransaction();
+		} finally {
+			database.endTransaction();
+		}
+		playerIds.remember(found);
+		log.info("ReputationWeb: Moved " + migrated.size() + " trusts of "
+				+ found.size() + " players to rw_trust_edges.");
+	}
+
+	public void trustAdded(String trusterName, String trusteeName) {
+		writer.trustAdded(trusterName, trusteeName);
+	}
+
+	public void trustRemoved(String trusterName, String trusteeName) {
+		writer.trustRemoved(trusterName, trusteeName);
+	}
+
+	public void close() {
+		writer.close();
+	}
+}
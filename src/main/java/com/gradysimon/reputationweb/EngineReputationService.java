@@ -0,0 +1,158 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * The ReputationService that ReputationWeb registers, backed by its
+ * ReputationEngine. Reads go straight to the engine's latest snapshot. Anything
+ * else is handed to the main thread with the scheduler, since the engine may
+ * only be used there, and that costs up to a tick even when the caller is
+ * already on the main thread.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class EngineReputationService implements ReputationService {
+	private final Plugin plugin;
+	private final ReputationEngine engine;
+	private final ReputationChangeFeed feed;
+
+	EngineReputationService(Plugin plugin, ReputationEngine engine,
+			ReputationChangeFeed feed) {
+		this.plugin = plugin;
+		this.engine = engine;
+		this.feed = feed;
+	}
+
+	public ReputationSnapshot getSnapshot() {
+		return engine.getSnapshot();
+	}
+
+	public double getReputation(OfflinePlayer player) {
+		return engine.getSnapshot().getReputation(player);
+	}
+
+	public Map<OfflinePlayer, Double> getReputations(
+			Collection<? extends OfflinePlayer> players)
+	{
+		return getReputations(engine.getSnapshot(), players);
+	}
+
+	public boolean playerIsInGraph(OfflinePlayer player) {
+		return engine.getSnapshot().playerIsInGraph(player);
+	}
+
+	public boolean trustRelationExists(OfflinePlayer truster,
+			OfflinePlayer trustee)
+	{
+		return engine.getSnapshot().trustRelationExists(truster, trustee);
+	}
+
+	public CompletableFuture<Map<OfflinePlayer, Double>> getReputationsAsync(
+			final Collection<? extends OfflinePlayer> players)
+	{
+		final CompletableFuture<Map<OfflinePlayer, Double>> future = new CompletableFuture<Map<OfflinePlayer, Double>>();
+		runOnMainThread(future, new Runnable() {
+			public void run() {
+				engine.whenUpToDate(new Runnable() {
+					public void run() {
+						future.complete(getReputations(engine.getSnapshot(),
+								players));
+					}
+				});
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<List<OfflinePlayer>> getReferenceAsync(
+			final OfflinePlayer start, final OfflinePlayer end)
+	{
+		final CompletableFuture<List<OfflinePlayer>> future = new CompletableFuture<List<OfflinePlayer>>();
+		runOnMainThread(future, new Runnable() {
+			public void run() {
+				engine.getReference(start, end, complete(future));
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<List<OfflinePlayer>> getMostReputableReferenceAsync(
+			final OfflinePlayer start, final OfflinePlayer end)
+	{
+		final CompletableFuture<List<OfflinePlayer>> future = new CompletableFuture<List<OfflinePlayer>>();
+		runOnMainThread(future, new Runnable() {
+			public void run() {
+				engine.getMostReputableReference(start, end, complete(future));
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<List<OfflinePlayer>> getTopPlayersAsync(
+			final int offset, final int number)
+	{
+		final CompletableFuture<List<OfflinePlayer>> future = new CompletableFuture<List<OfflinePlayer>>();
+		runOnMainThread(future, new Runnable() {
+			public void run() {
+				engine.getTopPlayers(offset, number, complete(future));
+			}
+		});
+		return future;
+	}
+
+	public ReputationSubscription subscribe(
+			Collection<? extends OfflinePlayer> players,
+			ReputationChangeListener listener)
+	{
+		return feed.subscribe(players, listener);
+	}
+
+	public ReputationSubscription subscribe(double threshold,
+			ReputationChangeListener listener)
+	{
+		return feed.subscribe(threshold, listener);
+	}
+
+	private static Map<OfflinePlayer, Double> getReputations(
+			ReputationSnapshot snapshot,
+			Collection<? extends OfflinePlayer> players)
+	{
+		Map<OfflinePlayer, Double> reputations = new HashMap<OfflinePlayer, Double>(
+				players.size() * 2);
+		for (OfflinePlayer player : players) {
+			reputations.put(player, snapshot.getReputation(player));
+		}
+		return reputations;
+	}
+
+	/**
+	 * Runs the task on the main thread, or fails the future if the plugin has
+	 * been disabled and the task would never run.
+	 */
+	private void runOnMainThread(CompletableFuture<?> future, Runnable task) {
+		int taskId = plugin.getServer().getScheduler()
+				.scheduleSyncDelayedTask(plugin, task);
+		if (taskId == -1) {
+			future.completeExceptionally(new IllegalStateException(plugin
+					.getDescription().getName() + " is disabled."));
+		}
+	}
+
+	private static <T> ReputationEngine.Callback<T> complete(
+			final CompletableFuture<T> future)
+	{
+		return new ReputationEngine.Callback<T>() {
+			public void done(T result) {
+				future.complete(result);
+			}
+		};
+	}
+}
@@ -0,0 +1,657 @@
+package com.gradysimon.reputationweb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Keeps trust relationships in two binary files in the plugin's data folder,
+ * instead of in the database.
+ *
+ * trusts.journal is an append-only log of records, each one of:
+ *
+ * <pre>
+ * PLAYER  (byte 0) int id, short length, UTF-8 name
+ * TRUST   (byte 1) int truster id, int trustee id
+ * UNTRUST (byte 2) int truster id, int trustee id
+ * </pre>
+ *
+ * Every player is given an id the first time he comes up, and is written
+ * once as a PLAYER record; trust records refer to players by id only.
+ *
+ * trusts.snapshot holds the state of the web as of some point: every player
+ * name in id order, then every trust as a pair of ids. Once the journal has
+ * grown as large as the snapshot, the two are folded into a new snapshot and
+ * the journal starts again from empty, so that startup never has to replay a
+ * long history. Both files start with a magic number, a format version and a
+ * generation.
+ *
+ * The generation is what makes folding safe to interrupt. A journal continues
+ * the snapshot of the same generation, and each fold writes the new snapshot
+ * one generation up to trusts.snapshot.new, syncs it, moves it over the old
+ * one in a single step and only then empties the journal and moves it up a
+ * generation too. Whenever the server stops, the files on disk are one of:
+ * the old snapshot and its journal, perhaps with an unfinished new snapshot
+ * beside them, which is thrown away; the new snapshot and the old journal,
+ * whose records it already holds, so they are skipped; or the new snapshot and
+ * an empty journal. A journal of a later generation than the snapshot means
+ * the snapshot has gone missing, and is refused rather than replayed over the
+ * wrong state.
+ *
+ * Both files are read into memory whole, rather than memory-mapped, since
+ * some systems refuse to cut short or replace a file while it is mapped, and
+ * a mapping lasts until it is garbage collected. All writing
+ * is done by a single background thread: every change is encoded as it is
+ * queued and appended to the journal in one write per batch, so a change
+ * costs the caller no disk access. A write that fails is retried with the
+ * next batch, at the same position, so a half-written record is always
+ * overwritten; a record cut short by a crash is ignored when the journal is
+ * next read.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class JournalTrustStore implements TrustStore {
+	private static final int JOURNAL_MAGIC = 0x52574a4c; // "RWJL"
+	private static final int SNAPSHOT_MAGIC = 0x52575350; // "RWSP"
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER_LENGTH = 16;
+
+	private static final byte PLAYER_RECORD = 0;
+	private static final byte TRUST_RECORD = 1;
+	private static final byte UNTRUST_RECORD = 2;
+
+	/**
+	 * The journal is never folded into a new snapshot before it holds at
+	 * least this many trust records.
+	 */
+	private static final int MIN_RECORDS_BEFORE_SNAPSHOT = 10000;
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File snapshotFile;
+	private final File newSnapshotFile;
+	private final File journalFile;
+	private final ReputationMetrics metrics;
+	private final Logger log;
+	private final ExecutorService writer;
+
+	/**
+	 * Changes waiting for the writer thread, and whether it has been asked
+	 * to write them.
+	 */
+	private final ConcurrentLinkedQueue<Change> queued = new ConcurrentLinkedQueue<Change>();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	/*
+	 * The rest is only used by load() and, after it, the writer thread.
+	 */
+
+	private final Map<String, Integer> playerIds = new HashMap<String, Integer>();
+	private final List<String> playerNames = new ArrayList<String>();
+
+	private RandomAccessFile journal;
+	/**
+	 * The generation of the snapshot, which the journal continues.
+	 */
+	private long generation = 0;
+	/**
+	 * The length of the journal up to the end of its last complete record, or
+	 * 0 if it still has to be emptied and given the current generation.
+	 */
+	private long journalLength;
+	/**
+	 * Encoded records that have not been written to the journal yet.
+	 */
+	private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+	private final DataOutputStream unwrittenRecords = new DataOutputStream(
+			unwritten);
+
+	private int journalRecords = 0;
+	/**
+	 * The number of trust records at which the journal is next folded into
+	 * the snapshot.
+	 */
+	private int snapshotThreshold = MIN_RECORDS_BEFORE_SNAPSHOT;
+
+	JournalTrustStore(File folder, ReputationMetrics metrics, Logger log) {
+		this.snapshotFile = new File(folder, "trusts.snapshot");
+		this.newSnapshotFile = new File(folder, "trusts.snapshot.new");
+		this.journalFile = new File(folder, "trusts.journal");
+		this.metrics = metrics;
+		this.log = log;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable,
+						"ReputationWeb journal writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void load(final TrustVisitor visitor) throws IOException {
+		File folder = journalFile.getParentFile();
+		if (!folder.exists()) folder.mkdirs();
+		if (newSnapshotFile.exists()) {
+			// A fold was cut short before its snapshot was moved into place,
+			// so the old snapshot and journal still hold everything.
+			newSnapshotFile.delete();
+		}
+		RecordVisitor byName = new RecordVisitor() {
+			public void trust(int truster, int trustee, boolean added) {
+				String trusterName = playerNames.get(truster);
+				String trusteeName = playerNames.get(trustee);
+				if (added) {
+					visitor.trustAdded(trusterName, trusteeName);
+				} else {
+					visitor.trustRemoved(trusterName, trusteeName);
+				}
+			}
+		};
+		int snapshotTrusts = 0;
+		if (snapshotFile.exists()) {
+			snapshotTrusts = readSnapshot(byName);
+		}
+		journalLength = readJournal(byName);
+		snapshotThreshold = Math.max(MIN_RECORDS_BEFORE_SNAPSHOT,
+				snapshotTrusts);
+		openJournal();
+	}
+
+	public void trustAdded(String trusterName, String trusteeName) {
+		enqueue(new Change(trusterName, trusteeName, true));
+	}
+
+	public void trustRemoved(String trusterName, String trusteeName) {
+		enqueue(new Change(trusterName, trusteeName, false));
+	}
+
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS,
+					TimeUnit.SECONDS)) {
+				log.warning("ReputationWeb: Timed out waiting for the journal writer.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (journal == null) return;
+		writeQueued();
+		if (unwritten.size() > 0) {
+			log.severe("ReputationWeb: Some trust changes could not be written to "
+					+ journalFile + ".");
+		}
+		try {
+			journal.getChannel().force(true);
+			journal.close();
+		} catch (IOException e) {
+			log.warning("ReputationWeb: Unable to close " + journalFile + ".");
+			e.printStackTrace();
+		}
+	}
+
+	private void enqueue(Change change) {
+		queued.add(change);
+		if (writeScheduled.compareAndSet(false, true) && !writer.isShutdown()) {
+			writer.execute(new Runnable() {
+				public void run() {
+					writeQueued();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Appends every queued change to the journal, and folds the journal into
+	 * a new snapshot if it has grown large enough.
+	 */
+	private void writeQueued() {
+		writeScheduled.set(false);
+		Change change;
+		try {
+			while ((change = queued.poll()) != null) {
+				int truster = getPlayerId(change.trusterName);
+				int trustee = getPlayerId(change.trusteeName);
+				unwrittenRecords.writeByte(change.added ? TRUST_RECORD
+						: UNTRUST_RECORD);
+				unwrittenRecords.writeInt(truster);
+				unwrittenRecords.writeInt(trustee);
+				journalRecords++;
+			}
+			if (unwritten.size() == 0) return;
+			long startTime = System.nanoTime();
+			if (journalLength < HEADER_LENGTH) resetJournal();
+			ByteBuffer records = ByteBuffer.wrap(unwritten.toByteArray());
+			FileChannel channel = journal.getChannel();
+			long position = journalLength;
+			while (records.hasRemaining()) {
+				position += channel.write(records, position);
+			}
+			journalLength = position;
+			unwritten.reset();
+			metrics.recordStorage("journal write", System.nanoTime()
+					- startTime);
+		} catch (IOException e) {
+			log.severe("ReputationWeb: Unable to write to " + journalFile
+					+ ". Will try again.");
+			e.printStackTrace();
+			return;
+		}
+		if (journalRecords >= snapshotThreshold) {
+			long startTime = System.nanoTime();
+			writeSnapshot();
+			metrics.recordStorage("snapshot write", System.nanoTime()
+					- startTime);
+		}
+	}
+
+	/**
+	 * Returns the id of the named player, giving him one and queuing his
+	 * PLAYER record if he has none yet.
+	 */
+	private int getPlayerId(String name) throws IOException {
+		Integer id = playerIds.get(name);
+		if (id != null) return id;
+		int newId = addPlayer(name);
+		byte[] encodedName = name.getBytes(UTF8);
+		unwrittenRecords.writeByte(PLAYER_RECORD);
+		unwrittenRecords.writeInt(newId);
+		unwrittenRecords.writeShort(encodedName.length);
+		unwrittenRecords.write(encodedName);
+		return newId;
+	}
+
+	private int addPlayer(String name) {
+		int id = playerNames.size();
+		playerNames.add(name);
+		playerIds.put(name, id);
+		return id;
+	}
+
+	/**
+	 * Opens the journal for appending, first emptying it if it is new or
+	 * already folded into the snapshot, and cutting off any record that was
+	 * only partly written.
+	 */
+	private void openJournal() throws IOException {
+		journal = new RandomAccessFile(journalFile, "rw");
+		if (journalLength < HEADER_LENGTH) {
+			resetJournal();
+		} else if (journal.length() > journalLength) {
+			log.warning("ReputationWeb: Ignoring "
+					+ (journal.length() - journalLength)
+					+ " bytes at the end of " + journalFile
+					+ ", left by an unfinished write.");
+			journal.setLength(journalLength);
+		}
+	}
+
+	/**
+	 * Empties the journal and writes its header, with the current generation.
+	 * The journal is cut to nothing first, so that a crash part way through
+	 * leaves a journal too short to have a header, which is read as empty.
+	 */
+	private void resetJournal() throws IOException {
+		FileChannel channel = journal.getChannel();
+		journal.setLength(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(JOURNAL_MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putLong(generation);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.force(true);
+		journalLength = HEADER_LENGTH;
+	}
+
+	/**
+	 * Reads the snapshot, registering every player in it and taking its
+	 * generation.
+	 *
+	 * @return The number of trusts in the snapshot
+	 */
+	private int readSnapshot(RecordVisitor visitor) throws IOException {
+		ByteBuffer snapshot = readFile(snapshotFile);
+		generation = checkHeader(snapshot, SNAPSHOT_MAGIC, snapshotFile);
+		try {
+			int playerCount = snapshot.getInt();
+			for (int id = 0; id < playerCount; id++) {
+				addPlayer(readName(snapshot));
+			}
+			return readSnapshotTrusts(snapshot, playerCount, visitor);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(snapshotFile + " is cut short.");
+		}
+	}
+
+	/**
+	 * Reads the trusts at the end of the snapshot, checking that each is
+	 * between players the snapshot holds.
+	 *
+	 * @return The number of trusts in the snapshot
+	 */
+	private int readSnapshotTrusts(ByteBuffer snapshot, int playerCount,
+			RecordVisitor visitor) throws IOException
+	{
+		int trustCount = snapshot.getInt();
+		for (int i = 0; i < trustCount; i++) {
+			int truster = snapshot.getInt();
+			int trustee = snapshot.getInt();
+			if (truster < 0 || truster >= playerCount || trustee < 0
+					|| trustee >= playerCount) {
+				throw new IOException(snapshotFile
+						+ " holds a trust between unknown players.");
+			}
+			visitor.trust(truster, trustee, true);
+		}
+		return trustCount;
+	}
+
+	/**
+	 * Replays the journal, registering every player in it, if it continues
+	 * the snapshot.
+	 *
+	 * @return The length of the journal up to the end of its last complete
+	 *         record, or 0 if there is no journal or it has already been
+	 *         folded into the snapshot.
+	 */
+	private long readJournal(RecordVisitor visitor) throws IOException {
+		if (!journalFile.exists() || journalFile.length() < HEADER_LENGTH) {
+			return 0;
+		}
+		ByteBuffer records = readFile(journalFile);
+		long journalGeneration = checkHeader(records, JOURNAL_MAGIC,
+				journalFile);
+		if (journalGeneration < generation) {
+			log.info("ReputationWeb: " + journalFile
+					+ " was already folded into " + snapshotFile
+					+ " and will be emptied.");
+			return 0;
+		}
+		if (journalGeneration > generation) {
+			throw new IOException(journalFile + " continues generation "
+					+ journalGeneration + " of " + snapshotFile
+					+ ", but the snapshot is of generation " + generation
+					+ ". Neither file has been changed.");
+		}
+		while (records.hasRemaining()) {
+			int recordStart = records.position();
+			int type = readRecord(records, visitor);
+			if (type < 0) return recordStart;
+			if (type != PLAYER_RECORD) journalRecords++;
+		}
+		return records.position();
+	}
+
+	/**
+	 * Reads one journal record.
+	 *
+	 * @return The type of the record, or -1 if the record is incomplete or
+	 *         makes no sense, which means it is the unfinished last record of
+	 *         the journal
+	 */
+	private int readRecord(ByteBuffer records, RecordVisitor visitor) {
+		byte type = records.get();
+		if (type == PLAYER_RECORD) {
+			if (records.remaining() < 6) return -1;
+			int id = records.getInt();
+			int length = records.getShort() & 0xffff;
+			if (id != playerNames.size() || records.remaining() < length) {
+				return -1;
+			}
+			byte[] encodedName = new byte[length];
+			records.get(encodedName);
+			addPlayer(new String(encodedName, UTF8));
+			return type;
+		}
+		if (type != TRUST_RECORD && type != UNTRUST_RECORD) return -1;
+		if (records.remaining() < 8) return -1;
+		int truster = records.getInt();
+		int trustee = records.getInt();
+		if (truster < 0 || truster >= playerNames.size() || trustee < 0
+				|| trustee >= playerNames.size()) {
+			return -1;
+		}
+		visitor.trust(truster, trustee, type == TRUST_RECORD);
+		return type;
+	}
+
+	/**
+	 * Folds the snapshot and the journal into a new snapshot, then empties
+	 * the journal. If anything goes wrong, the old snapshot and journal are
+	 * kept, and the fold is tried again once the journal has grown further.
+	 */
+	private void writeSnapshot() {
+		final Set<Long> trusts = new HashSet<Long>();
+		RecordVisitor collector = new RecordVisitor() {
+			public void trust(int truster, int trustee, boolean added) {
+				long trust = ((long) truster << 32) | trustee;
+				if (added) {
+					trusts.add(trust);
+				} else {
+					trusts.remove(trust);
+				}
+			}
+		};
+		try {
+			replayIds(collector);
+			writeSnapshotFile(newSnapshotFile, trusts, generation + 1);
+			Files.move(newSnapshotFile.toPath(), snapshotFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			log.warning("ReputationWeb: Unable to write " + snapshotFile
+					+ ". Will try again later.");
+			e.printStackTrace();
+			snapshotThreshold = journalRecords
+					+ Math.max(MIN_RECORDS_BEFORE_SNAPSHOT, snapshotThreshold);
+			return;
+		}
+		// The new snapshot is in place, and holds everything in the journal.
+		syncFolder(snapshotFile.getParentFile());
+		generation++;
+		journalLength = 0;
+		journalRecords = 0;
+		snapshotThreshold = Math.max(MIN_RECORDS_BEFORE_SNAPSHOT,
+				trusts.size());
+		try {
+			resetJournal();
+		} catch (IOException e) {
+			log.warning("ReputationWeb: Unable to empty " + journalFile
+					+ ". Will try again with the next change.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Makes the files moved into the folder stay moved after a crash, where
+	 * the system allows a folder to be synced.
+	 */
+	private static void syncFolder(File folder) {
+		try {
+			FileChannel channel = FileChannel.open(folder.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Not every system can open a folder; the move stands regardless.
+		}
+	}
+
+	/**
+	 * Reads the snapshot and the journal again, by id. Every player is
+	 * already registered, so nothing is registered twice.
+	 */
+	private void replayIds(RecordVisitor visitor) throws IOException {
+		if (snapshotFile.exists()) {
+			ByteBuffer snapshot = readFile(snapshotFile);
+			checkHeader(snapshot, SNAPSHOT_MAGIC, snapshotFile);
+			try {
+				int playerCount = snapshot.getInt();
+				for (int id = 0; id < playerCount; id++) {
+					readName(snapshot);
+				}
+				readSnapshotTrusts(snapshot, playerCount, visitor);
+			} catch (BufferUnderflowException e) {
+				throw new IOException(snapshotFile + " is cut short.");
+			}
+		}
+		ByteBuffer records = readFile(journalFile);
+		if (records.limit() < journalLength) {
+			throw new IOException(journalFile + " is cut short.");
+		}
+		records.position(HEADER_LENGTH);
+		records.limit((int) journalLength);
+		try {
+			while (records.hasRemaining()) {
+				byte type = records.get();
+				if (type == PLAYER_RECORD) {
+					records.getInt();
+					int length = records.getShort() & 0xffff;
+					if (records.remaining() < length) {
+						throw new BufferUnderflowException();
+					}
+					records.position(records.position() + length);
+					continue;
+				}
+				int truster = records.getInt();
+				int trustee = records.getInt();
+				if (truster < 0 || truster >= playerNames.size()
+						|| trustee < 0 || trustee >= playerNames.size()) {
+					throw new IOException(journalFile
+							+ " holds a trust between unknown players.");
+				}
+				visitor.trust(truster, trustee, type == TRUST_RECORD);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(journalFile + " is cut short.");
+		}
+	}
+
+	private void writeSnapshotFile(File file, Set<Long> trusts,
+			long snapshotGeneration) throws IOException
+	{
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(stream));
+			output.writeInt(SNAPSHOT_MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeLong(snapshotGeneration);
+			output.writeInt(playerNames.size());
+			for (String name : playerNames) {
+				byte[] encodedName = name.getBytes(UTF8);
+				output.writeShort(encodedName.length);
+				output.write(encodedName);
+			}
+			output.writeInt(trusts.size());
+			for (long trust : trusts) {
+				output.writeInt((int) (trust >>> 32));
+				output.writeInt((int) trust);
+			}
+			output.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads the whole file into a buffer on the heap.
+	 */
+	private static ByteBuffer readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to read.");
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// Keep reading until the buffer is full or the file ends.
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Checks the magic number and format version at the start of a file.
+	 *
+	 * @return The generation of the file
+	 */
+	private static long checkHeader(ByteBuffer buffer, int magic, File file)
+			throws IOException
+	{
+		if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != magic) {
+			throw new IOException(file + " is not a ReputationWeb file.");
+		}
+		int version = buffer.getInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException(file + " has unknown format version "
+					+ version + ".");
+		}
+		return buffer.getLong();
+	}
+
+	private static String readName(ByteBuffer buffer) {
+		byte[] encodedName = new byte[buffer.getShort() & 0xffff];
+		buffer.get(encodedName);
+		return new String(encodedName, UTF8);
+	}
+
+	/**
+	 * Receives the records of the snapshot and the journal, by player id.
+	 */
+	private interface RecordVisitor {
+		void trust(int truster, int trustee, boolean added);
+	}
+
+	private static class Change {
+		private final String trusterName;
+		private final String trusteeName;
+		private final boolean added;
+
+		Change(String trusterName, String trusteeName, boolean added) {
+			this.trusterName = trusterName;
+			this.trusteeName = trusteeName;
+			this.added = added;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.gradysimon.reputationweb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Knows the name of every player who has ever been on the server, so that
+ * commands can tell a real player from a typo without touching the disk.
+ *
+ * The names are kept in known_players.txt in the plugin's data folder, one per
+ * line. The first time the plugin runs there is no such file, and the index
+ * is built by listing the players folder of every world. Either way the names
+ * are read on a background thread; until that has finished, getRealName() checks
+ * for the player's file in each world instead, which is one file lookup per
+ * world rather than a listing of every folder. Players who join are added as
+ * they join, and appended to the file in the background once it has been
+ * loaded.
+ *
+ * Names are matched without regard to case, and always come back spelled the
+ * way the player spells his name, so that /trust notch and /trust Notch are
+ * about the same player. They are kept in a PlayerNameTrie, which also
+ * completes names from what has been typed of them.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class KnownPlayerIndex implements Listener {
+	private static final String FILE_NAME = "known_players.txt";
+	private static final String PLAYER_FILE_SUFFIX = ".dat";
+
+	/**
+	 * What a player name may be made of. Anything else is never looked up on
+	 * disk, so that a typed name cannot reach outside the players folders.
+	 */
+	private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_]{1,16}");
+
+	private final PlayerNameTrie names = new PlayerNameTrie();
+	private final File file;
+	private final List<File> playerFolders = new ArrayList<File>();
+	private final Logger log;
+	private Plugin plugin;
+
+	/**
+	 * True once every name from the file or the world folders is in names.
+	 */
+	private volatile boolean ready = false;
+
+	KnownPlayerIndex(File dataFolder, List<World> worlds, Logger log) {
+		this.file = new File(dataFolder, FILE_NAME);
+		this.log = log;
+		for (World world : worlds) {
+			playerFolders.add(new File(world.getWorldFolder(), "players"));
+		}
+	}
+
+	/**
+	 * Adds the players who are online now, starts reading the index in the
+	 * background and starts listening for players joining.
+	 */
+	void start(Plugin plugin) {
+		this.plugin = plugin;
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			names.add(player.getName());
+		}
+		plugin.getServer().getPluginManager().registerEvents(this, plugin);
+		plugin.getServer().getScheduler()
+				.scheduleAsyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						load();
+					}
+				});
+	}
+
+	/**
+	 * Adds a name known from somewhere else, such as the reputation web. Must
+	 * be called before start(), so that the name is saved with the rest.
+	 */
+	void add(String name) {
+		names.add(name);
+	}
+
+	/**
+	 * Returns the name of the player who has been on the server before under
+	 * the given name, in any case, spelled as he spells it, or null if there is
+	 * no such player.
+	 */
+	String getRealName(String name) {
+		String realName = names.get(name);
+		if (realName != null || ready) return realName;
+		if (!VALID_NAME.matcher(name).matches()) return null;
+		for (File folder : playerFolders) {
+			File playerFile = new File(folder, name + PLAYER_FILE_SUFFIX);
+			if (playerFile.exists()) return spellingOf(playerFile, name);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the name of the player whose file this is, as the file system
+	 * spells it. Where file names ignore case, the file may have been found
+	 * under a name spelled differently.
+	 */
+	private static String spellingOf(File playerFile, String name) {
+		try {
+			String fileName = playerFile.getCanonicalFile().getName();
+			if (fileName.equalsIgnoreCase(name + PLAYER_FILE_SUFFIX)) {
+				return fileName.substring(0, name.length());
+			}
+		} catch (IOException e) {
+			// Fall back to the name as it was given.
+		}
+		return name;
+	}
+
+	/**
+	 * Returns up to limit names that start with the prefix, in any case, in
+	 * alphabetical order.
+	 */
+	List<String> complete(String prefix, int limit) {
+		return names.withPrefix(prefix, limit);
+	}
+
+	boolean isReady() {
+		return ready;
+	}
+
+	int size() {
+		return names.size();
+	}
+
+	@EventHandler
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		final String name = event.getPlayer().getName();
+		if (!names.add(name) || plugin == null) return;
+		plugin.getServer().getScheduler()
+				.scheduleAsyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						append(name);
+					}
+				});
+	}
+
+	private void load() {
+		long startTime = System.currentTimeMillis();
+		try {
+			if (file.exists()) {
+				readFile();
+			} else {
+				scanPlayerFolders();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING,
+					"ReputationWeb: Unable to read the known players.", e);
+			// Better to fall back on a slow but complete index than to keep
+			// checking the disk forever.
+			scanPlayerFolders();
+		}
+		synchronized (this) {
+			// Also saves the players who joined while loading, which append()
+			// left out.
+			try {
+				save();
+			} catch (IOException e) {
+				log.log(Level.WARNING,
+						"ReputationWeb: Unable to save the known players.", e);
+			}
+			ready = true;
+		}
+		log.info("ReputationWeb: Indexed " + names.size() + " known players in "
+				+ (System.currentTimeMillis() - startTime) + " ms.");
+	}
+
+	private void readFile() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0) names.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void scanPlayerFolders() {
+		for (File folder : playerFolders) {
+			// A world without a players folder has no players of its own, but
+			// the worlds after it still might.
+			String[] fileNames = folder.list();
+			if (fileNames == null) continue;
+			for (String fileName : fileNames) {
+				if (fileName.endsWith(PLAYER_FILE_SUFFIX)) {
+					names.add(fileName.substring(0, fileName.length()
+							- PLAYER_FILE_SUFFIX.length()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes out every known name, replacing the file.
+	 */
+	private synchronized void save() throws IOException {
+		file.getParentFile().mkdirs();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			for (String name : names.all()) {
+				writer.println(name);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private synchronized void append(String name) {
+		if (!ready) return;
+		try {
+			PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+			try {
+				writer.println(name);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "ReputationWeb: Unable to save " + name
+					+ " as a known player.", e);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.avaje.ebean.EbeanServer;
+
+/**
+ * Remembers the rw_players id of each player name, so that writing a trust
+ * edge does not need to look the names up in the database every time.
+ * 
+ * Ids that are created or looked up inside a transaction are collected in a
+ * separate map and only remembered once the transaction has been committed
+ * (see remember()), so that a rolled-back transaction never leaves behind ids
+ * that do not exist.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+class PlayerIds {
+	private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Records the id of a player that was read from the database.
+	 */
+	void put(String name, int id) {
+		ids.put(name, id);
+	}
+
+	/**
+	 * Returns the id of the named player, or null if he is not in rw_players
+	 * and create is false. Must be called inside a transaction.
+	 * 
+	 * @param found
+	 *            Ids found in this transaction, which are checked first and
+	 *            added to
+	 * @param create
+	 *            Whether to insert the player if he is not there yet
+	 */
+	Integer find(EbeanServer database, String name,
+			Map<String, Integer> found, boolean create)
+	{
+		Integer id = ids.get(name);
+		if (id != null) return id;
+		id = found.get(name);
+		if (id != null) return id;
+		RWPlayer player = database.find(RWPlayer.class).where()
+				.eq("name", name).findUnique();
+		if (player == null) {
+			if (!create) return null;
+			player = new RWPlayer();
+			player.setName(name);
+			database.save(player);
+		}
+		found.put(name, player.getId());
+		return player.getId();
+	}
+
+	/**
+	 * Remembers the ids found in a transaction that has been committed.
+	 */
+	void remember(Map<String, Integer> found) {
+		ids.putAll(found);
+	}
+}
@@ -0,0 +1,147 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Player names, looked up without regard to case. Finding a name, or the
+ * names that start with a prefix, takes time in proportion to the length of
+ * the name or prefix (and to the number of names found), however many names
+ * there are.
+ *
+ * The names are kept in a trie of their lower-cased characters, held in
+ * parallel arrays rather than as an object per node: node 0 is the root, and
+ * each node has the character that leads to it, its first child and its next
+ * sibling. Siblings are kept in order of their characters, so names with a
+ * prefix come out in alphabetical order. A node that ends a name holds the
+ * name as it was first added, so that a name typed in any case can be turned
+ * back into the real one.
+ *
+ * Safe to use from any thread.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class PlayerNameTrie {
+	private static final int NONE = -1;
+
+	private char[] characters = new char[64];
+	private int[] firstChildren = new int[64];
+	private int[] nextSiblings = new int[64];
+	private String[] names = new String[64];
+	private int nodeCount = 1;
+	private int size = 0;
+
+	PlayerNameTrie() {
+		firstChildren[0] = NONE;
+		nextSiblings[0] = NONE;
+	}
+
+	/**
+	 * Adds the name, unless it is already here in some case.
+	 *
+	 * @return false if the name was already here
+	 */
+	synchronized boolean add(String name) {
+		int node = 0;
+		for (int i = 0; i < name.length(); i++) {
+			node = childOrNew(node, Character.toLowerCase(name.charAt(i)));
+		}
+		if (names[node] != null) return false;
+		names[node] = name;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Returns the name as it was added, whatever case it is given in, or null
+	 * if it is not here.
+	 */
+	synchronized String get(String name) {
+		int node = find(name);
+		return node == NONE ? null : names[node];
+	}
+
+	/**
+	 * Returns up to limit names that start with the prefix, whatever case it
+	 * is given in, in alphabetical order.
+	 */
+	synchronized List<String> withPrefix(String prefix, int limit) {
+		List<String> found = new ArrayList<String>();
+		int node = find(prefix);
+		if (node != NONE && limit > 0) collect(node, found, limit);
+		return found;
+	}
+
+	/**
+	 * Returns every name, in alphabetical order.
+	 */
+	synchronized List<String> all() {
+		return withPrefix("", size);
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private int find(String name) {
+		int node = 0;
+		for (int i = 0; i < name.length() && node != NONE; i++) {
+			node = child(node, Character.toLowerCase(name.charAt(i)));
+		}
+		return node;
+	}
+
+	private int child(int node, char character) {
+		int child = firstChildren[node];
+		while (child != NONE && characters[child] < character) {
+			child = nextSiblings[child];
+		}
+		return child != NONE && characters[child] == character ? child : NONE;
+	}
+
+	private int childOrNew(int node, char character) {
+		int previous = NONE;
+		int child = firstChildren[node];
+		while (child != NONE && characters[child] < character) {
+			previous = child;
+			child = nextSiblings[child];
+		}
+		if (child != NONE && characters[child] == character) return child;
+		int created = newNode(character, child);
+		if (previous == NONE) {
+			firstChildren[node] = created;
+		} else {
+			nextSiblings[previous] = created;
+		}
+		return created;
+	}
+
+	private int newNode(char character, int nextSibling) {
+		if (nodeCount == characters.length) {
+			int capacity = nodeCount * 2;
+			characters = Arrays.copyOf(characters, capacity);
+			firstChildren = Arrays.copyOf(firstChildren, capacity);
+			nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+			names = Arrays.copyOf(names, capacity);
+		}
+		int node = nodeCount++;
+		characters[node] = character;
+		firstChildren[node] = NONE;
+		nextSiblings[node] = nextSibling;
+		return node;
+	}
+
+	/**
+	 * Adds the names at and below the node to found, in order, until there
+	 * are limit of them.
+	 */
+	private void collect(int node, List<String> found, int limit) {
+		if (names[node] != null) found.add(names[node]);
+		for (int child = firstChildren[node]; child != NONE
+				&& found.size() < limit; child = nextSiblings[child]) {
+			collect(child, found, limit);
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package com.gradysimon.reputationweb;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bukkit.ChatColor;
 import org.bukkit.OfflinePlayer;
@@ -10,10 +13,30 @@ import org.bukkit.entity.Player;
 
 class RWChatOutputManager {
 
-	private ReputationGraph reputationGraph;
+	private ReputationEngine reputationEngine;
+
+	private static final int maxCachedInfo = 256;
+
+	/**
+	 * The /rep info output last rendered for each player, least recently
+	 * looked up first. Looking up a player again costs a map lookup and a
+	 * version check of him and his top trusters, unless one of them has
+	 * changed since. Only used on the main thread.
+	 */
+	private final Map<OfflinePlayer, RenderedInfo> infoCache = new LinkedHashMap<OfflinePlayer, RenderedInfo>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<OfflinePlayer, RenderedInfo> eldest)
+		{
+			return size() > maxCachedInfo;
+		}
+	};
 
-	RWChatOutputManager(ReputationGraph reputationGraph) {
-		this.reputationGraph = reputationGraph;
+	RWChatOutputManager(ReputationEngine reputationEngine) {
+		this.reputationEngine = reputationEngine;
 	}
 
 	void mustBePlayerError(CommandSender recipient) {
@@ -51,6 +74,11 @@ class RWChatOutputManager {
 		sendMessage(recipient, message);
 	}
 
+	void invalidPageError(CommandSender recipient, String page) {
+		String message = formatError("That is not a valid page number: " + page);
+		sendMessage(recipient, message);
+	}
+
 	void cannotTrustSelfError(CommandSender recipient) {
 		String message = formatError("You can only trust other players.");
 		sendMessage(recipient, message);
@@ -86,7 +114,8 @@ class RWChatOutputManager {
 	}
 
 	void playerTrustedMessage(Player player, OfflinePlayer truster) {
-		double newReputation = reputationGraph.getReputation(player);
+		double newReputation = reputationEngine.getSnapshot().getReputation(
+				player);
 		String message = formatPlayer(truster)
 				+ formatNorm(" now trusts you. Your new reputation is ")
 				+ formatRep(newReputation) + formatNorm(".");
@@ -94,7 +123,8 @@ class RWChatOutputManager {
 	}
 
 	void playerUntrustedMessage(Player player, OfflinePlayer truster) {
-		double newReputation = reputationGraph.getReputation(player);
+		double newReputation = reputationEngine.getSnapshot().getReputation(
+				player);
 		String message = formatPlayer(truster)
 				+ formatNorm(" has stopped trusting you. Your new reputation is ")
 				+ formatRep(newReputation) + ".";
@@ -102,10 +132,13 @@ class RWChatOutputManager {
 	}
 
 	void referralCommandOutput(CommandSender sender, List<OfflinePlayer> path,
-			OfflinePlayer startPlayer, OfflinePlayer endPlayer)
+			OfflinePlayer startPlayer, OfflinePlayer endPlayer,
+			boolean mostReputable)
 	{
 		List<String> output = new ArrayList<String>();
-		output.add(formatNorm("Chain of trust between ")
+		String chainDescription = mostReputable ? "Most reputable chain of trust between "
+				: "Chain of trust between ";
+		output.add(formatNorm(chainDescription)
 				+ formatPlayer(startPlayer) + formatNorm(" and ")
 				+ formatPlayer(endPlayer) + formatNorm(":"));
 		String pathString = formatPlayer(startPlayer);
@@ -117,37 +150,204 @@ class RWChatOutputManager {
 	}
 
 	void infoCommandOutput(CommandSender sender, OfflinePlayer player,
-			List<OfflinePlayer> topTrusters)
+			int numberOfTopTrusters)
+	{
+		ReputationSnapshot snapshot = reputationEngine.getSnapshot();
+		RenderedInfo info = infoCache.get(player);
+		if (info == null || !info.isCurrent(snapshot)) {
+			info = renderInfo(snapshot, player, numberOfTopTrusters);
+			infoCache.put(player, info);
+		}
+		sendMessage(sender, info.lines);
+	}
+
+	private RenderedInfo renderInfo(ReputationSnapshot snapshot,
+			OfflinePlayer player, int numberOfTopTrusters)
 	{
-		double reputation = reputationGraph.getReputation(player);
-		int numberOfTrusters = reputationGraph.trustersCount(player);
-		int numberOfTrustees = reputationGraph.trusteesCount(player);
+		int numberOfTrusters = snapshot.trustersCount(player);
+		int numberOfTrustees = snapshot.trusteesCount(player);
+		List<OfflinePlayer> topTrusters = snapshot.getTopTrusters(player,
+				numberOfTopTrusters);
 		List<String> output = new ArrayList<String>();
 		output.add(formatHeader("==== Reputation Information ===="));
 		output.add(formatNorm("Player: ") + formatPlayerNoRep(player));
-		output.add(formatNorm("Reputation: ") + formatRep(reputation));
-		String trustCountOutput = formatNorm("Trusted by ")
-				+ formatNum(numberOfTrusters) + " ";
-		trustCountOutput += formatNorm((numberOfTrusters == 1 ? "player"
-				: "players") + ". ");
-		trustCountOutput += formatNorm("Trusts ") + formatNum(numberOfTrustees)
-				+ " ";
-		trustCountOutput += formatNorm((numberOfTrustees == 1 ? "player"
-				: "players") + ".");
-		output.add(trustCountOutput);
+		output.add(formatNorm("Reputation: ")
+				+ formatRep(snapshot.getReputation(player)));
+		StringBuilder line = new StringBuilder();
+		line.append(formatNorm("Trusted by ")).append(formatNum(numberOfTrusters))
+				.append(' ');
+		line.append(formatNorm((numberOfTrusters == 1 ? "player" : "players")
+				+ ". "));
+		line.append(formatNorm("Trusts ")).append(formatNum(numberOfTrustees))
+				.append(' ');
+		line.append(formatNorm((numberOfTrustees == 1 ? "player" : "players")
+				+ "."));
+		output.add(line.toString());
 		if (numberOfTrusters > 0) {
-			String topTrustersOutput = formatNorm("Most reputable players who trust ")
-					+ formatPlayerNoRep(player) + formatNorm(": ");
-			output.add(topTrustersOutput);
-			topTrustersOutput = "";
+			output.add(formatNorm("Most reputable players who trust ")
+					+ formatPlayerNoRep(player) + formatNorm(": "));
+			line.setLength(0);
 			for (int i = 0; i < topTrusters.size(); i++) {
 				OfflinePlayer truster = topTrusters.get(i);
-				topTrustersOutput += formatPlayer(truster);
+				line.append(formatPlayerNoRep(truster)).append(
+						formatRep(snapshot.getReputation(truster)));
 				if (i != topTrusters.size() - 1) {
-					topTrustersOutput += formatNorm(", ");
+					line.append(formatNorm(", "));
 				}
 			}
-			output.add(topTrustersOutput);
+			output.add(line.toString());
+		}
+		output.add(formatHeader("============================"));
+		return new RenderedInfo(snapshot, player, topTrusters,
+				Collections.unmodifiableList(output));
+	}
+
+	void recomputeStartedMessage(CommandSender recipient) {
+		String message = formatNorm("Recomputing every player's reputation...");
+		sendMessage(recipient, message);
+	}
+
+	void recomputeAlreadyRunningError(CommandSender recipient) {
+		String message = formatError("Reputations are already being recomputed.");
+		sendMessage(recipient, message);
+	}
+
+	void recomputeCommandOutput(CommandSender sender,
+			ReputationRecomputeJob.Report report)
+	{
+		if (report == null) {
+			sendMessage(sender, formatError("Recomputing reputations failed. See the server log."));
+			return;
+		}
+		List<String> output = new ArrayList<String>();
+		output.add(formatHeader("==== Reputations Recomputed ===="));
+		output.add(formatNorm("Players: ") + formatNum(report.players)
+				+ formatNorm(", trusts: ") + formatNum(report.trusts));
+		output.add(formatNorm("Took ") + formatNum((int) report.elapsedMillis)
+				+ formatNorm(" ms on ") + formatNum(report.threads)
+				+ formatNorm(" threads."));
+		if (report.corrected == 0) {
+			output.add(formatNorm("Every stored reputation was correct."));
+		} else {
+			output.add(formatError("Corrected the reputations of ")
+					+ formatNum(report.corrected) + formatError(" players."));
+		}
+		if (report.refreshed > 0) {
+			output.add(formatNorm("Also brought ")
+					+ formatNum(report.refreshed)
+					+ formatNorm(" players who were waiting to be refreshed up to date."));
+		}
+		output.add(formatHeader("============================"));
+		sendMessage(sender, output);
+	}
+
+	void reloadStartedMessage(CommandSender recipient) {
+		String message = formatNorm("Reloaded config.yml. Recalculating reputations with the new parameters...");
+		sendMessage(recipient, message);
+	}
+
+	void invalidParametersError(CommandSender recipient, double flowFactor,
+			int maxChainLength)
+	{
+		String message = formatError("config.yml needs a flow_factor between 0 and 1 and a max_chain_length of at least 1, but has "
+				+ flowFactor + " and " + maxChainLength + ".");
+		sendMessage(recipient, message);
+	}
+
+	void reloadCommandOutput(CommandSender sender,
+			ReputationRecomputeJob.Report report)
+	{
+		if (report == null) {
+			sendMessage(sender, formatError("Recalculating reputations failed. The old parameters are still in use. See the server log."));
+			return;
+		}
+		List<String> output = new ArrayList<String>();
+		output.add(formatHeader("==== Parameters Reloaded ===="));
+		output.add(formatNorm("flow_factor: ")
+				+ formatNum(report.flowMultiplier)
+				+ formatNorm(", max_chain_length: ")
+				+ formatNum(report.maxChainLength));
+		output.add(formatNorm("The reputations of ")
+				+ formatNum(report.corrected + report.refreshed)
+				+ formatNorm(" of ") + formatNum(report.players)
+				+ formatNorm(" players changed."));
+		output.add(formatNorm("Took ") + formatNum((int) report.elapsedMillis)
+				+ formatNorm(" ms on ") + formatNum(report.threads)
+				+ formatNorm(" threads."));
+		output.add(formatHeader("============================"));
+		sendMessage(sender, output);
+	}
+
+	void statsCommandOutput(CommandSender sender, ReputationMetrics metrics) {
+		List<String> output = new ArrayList<String>();
+		output.add(formatHeader("==== ReputationWeb Stats ===="));
+		output.add(formatNorm("Main thread time per command (p50 / p99 / max):"));
+		addTimes(output, metrics.getCommandTimes());
+		output.add(formatNorm("Trust changes: ")
+				+ formatNum(metrics.getTrustChanges())
+				+ formatNorm(". Players recalculated per change: ")
+				+ formatCounts(metrics.getPlayersRecalculated())
+				+ formatNorm(", changed: ")
+				+ formatCounts(metrics.getPlayersChanged()));
+		output.add(formatNorm("Recalculations: ")
+				+ formatNum(metrics.getRecalculations())
+				+ formatNorm(". Players visited per recalculation: ")
+				+ formatCounts(metrics.getPlayersVisited()));
+		output.add(formatNorm("Path searches: ")
+				+ formatNum(metrics.getPathSearches())
+				+ formatNorm(". Largest frontier: ")
+				+ formatCounts(metrics.getLargestFrontiers()));
+		output.add(formatNorm("Storage time (p50 / p99 / max):"));
+		addTimes(output, metrics.getStorageTimes());
+		output.add(formatHeader("============================"));
+		sendMessage(sender, output);
+	}
+
+	private static void addTimes(List<String> output,
+			Map<String, ReputationMetrics.Histogram> times)
+	{
+		if (times.isEmpty()) {
+			output.add(formatNorm("  Nothing yet."));
+		}
+		for (Map.Entry<String, ReputationMetrics.Histogram> entry : times
+				.entrySet())
+		{
+			ReputationMetrics.Histogram histogram = entry.getValue();
+			output.add(formatNorm("  " + entry.getKey() + ": ")
+					+ formatNum(histogram.count()) + formatNorm(" times, ")
+					+ formatMillis(histogram.percentile(0.5)) + formatNorm(" / ")
+					+ formatMillis(histogram.percentile(0.99))
+					+ formatNorm(" / ") + formatMillis(histogram.max())
+					+ formatNorm(" ms"));
+		}
+	}
+
+	/**
+	 * Formats the mean and maximum of a histogram of numbers of players.
+	 */
+	private static String formatCounts(ReputationMetrics.Histogram histogram) {
+		return formatNorm("mean ")
+				+ ChatColor.YELLOW + String.format("%.1f", histogram.mean())
+				+ formatNorm(", max ") + formatNum(histogram.max());
+	}
+
+	private static String formatMillis(long nanos) {
+		return "" + ChatColor.YELLOW
+				+ String.format("%.2f", ReputationMetrics.toMillis(nanos));
+	}
+
+	void topCommandOutput(CommandSender sender, List<OfflinePlayer> topPlayers,
+			int page, int pageCount, int firstRank)
+	{
+		List<String> output = new ArrayList<String>();
+		output.add(formatHeader("==== Most Reputable Players (page " + page
+				+ " of " + Math.max(pageCount, 1) + ") ===="));
+		if (topPlayers.isEmpty()) {
+			output.add(formatNorm("There are no players on this page."));
+		}
+		for (int i = 0; i < topPlayers.size(); i++) {
+			output.add(formatNum(firstRank + i + 1) + formatNorm(". ")
+					+ formatPlayer(topPlayers.get(i)));
 		}
 		output.add(formatHeader("============================"));
 		sendMessage(sender, output);
@@ -165,6 +365,11 @@ class RWChatOutputManager {
 		output.add(formatCommand("/rep untrust <player>"));
 		output.add(formatCommand("/rep info <player>"));
 		output.add(formatCommand("/rep connection <player>"));
+		output.add(formatCommand("/rep chain <player>"));
+		output.add(formatCommand("/rep top [page]"));
+		output.add(formatCommand("/rep recompute"));
+		output.add(formatCommand("/rep reload"));
+		output.add(formatCommand("/rep stats"));
 		sendMessage(sender, output);
 	}
 
@@ -228,6 +433,74 @@ class RWChatOutputManager {
 		sendMessage(sender, output);
 	}
 
+	void chainHelp(CommandSender sender) {
+		List<String> output = new ArrayList<String>();
+		String message = "";
+		message = formatHelp("Usage: ");
+		message += formatCommand("/rep chain <player>");
+		message += formatHelp(" or ");
+		message += formatCommand("/rep chain <player> <player>");
+		output.add(message);
+		message = formatHelp("Like ") + formatCommand("/rep connection");
+		message += formatHelp(", but out of the shortest paths of trust, "
+				+ "find the one made up of the most reputable players.");
+		output.add(message);
+		sendMessage(sender, output);
+	}
+
+	void topHelp(CommandSender sender) {
+		List<String> output = new ArrayList<String>();
+		String message = "";
+		message = formatHelp("Usage: ");
+		message += formatCommand("/rep top");
+		message += formatHelp(" or ");
+		message += formatCommand("/rep top <page>");
+		output.add(message);
+		message = formatHelp("List the most reputable players on the server.");
+		output.add(message);
+		sendMessage(sender, output);
+	}
+
+	void recomputeHelp(CommandSender sender) {
+		List<String> output = new ArrayList<String>();
+		String message = "";
+		message = formatHelp("Usage: ");
+		message += formatCommand("/rep recompute");
+		output.add(message);
+		message = formatHelp("Recompute every player's reputation from "
+				+ "scratch and report any that were wrong.");
+		output.add(message);
+		sendMessage(sender, output);
+	}
+
+	void reloadHelp(CommandSender sender) {
+		List<String> output = new ArrayList<String>();
+		String message = "";
+		message = formatHelp("Usage: ");
+		message += formatCommand("/rep reload");
+		output.add(message);
+		message = formatHelp("Reload the reputation parameters from "
+				+ "config.yml and recalculate every reputation with them.");
+		output.add(message);
+		message = formatHelp("Players see the old reputations until the "
+				+ "new ones are ready.");
+		output.add(message);
+		sendMessage(sender, output);
+	}
+
+	void statsHelp(CommandSender sender) {
+		List<String> output = new ArrayList<String>();
+		String message = "";
+		message = formatHelp("Usage: ");
+		message += formatCommand("/rep stats");
+		output.add(message);
+		message = formatHelp("Show how much time commands and storage have "
+				+ "taken, and how much work trust changes and searches did, "
+				+ "since the plugin was enabled.");
+		output.add(message);
+		sendMessage(sender, output);
+	}
+
 	void sendMessage(CommandSender recipient, List<String> message) {
 		for (String line : message) {
 			sendMessage(recipient, line);
@@ -252,7 +525,7 @@ class RWChatOutputManager {
 	}
 
 	private String formatRep(OfflinePlayer player) {
-		return formatRep(reputationGraph.getReputation(player));
+		return formatRep(reputationEngine.getSnapshot().getReputation(player));
 	}
 
 	// TODO: consider using getDisplayName().
@@ -269,6 +542,10 @@ class RWChatOutputManager {
 		return "" + ChatColor.YELLOW + num;
 	}
 
+	private static String formatNum(long num) {
+		return "" + ChatColor.YELLOW + num;
+	}
+
 	private static String formatNum(double num) {
 		return "" + ChatColor.YELLOW + num;
 	}
@@ -288,4 +565,47 @@ class RWChatOutputManager {
 	private String formatHelp(String string) {
 		return formatNorm(string);
 	}
+
+	/**
+	 * The /rep info output for a player, and what it was rendered from: the
+	 * versions of the player and of each of his top trusters, whose
+	 * reputations it shows.
+	 */
+	private static class RenderedInfo {
+		private final long snapshotVersion;
+		private final OfflinePlayer[] players;
+		private final long[] playerVersions;
+		private final List<String> lines;
+
+		RenderedInfo(ReputationSnapshot snapshot, OfflinePlayer player,
+				List<OfflinePlayer> topTrusters, List<String> lines) {
+			this.snapshotVersion = snapshot.getVersion();
+			this.players = new OfflinePlayer[topTrusters.size() + 1];
+			this.playerVersions = new long[players.length];
+			players[0] = player;
+			for (int i = 1; i < players.length; i++) {
+				players[i] = topTrusters.get(i - 1);
+			}
+			for (int i = 0; i < players.length; i++) {
+				playerVersions[i] = snapshot.getPlayerVersion(players[i]);
+			}
+			this.lines = lines;
+		}
+
+		/**
+		 * Returns true if none of the players the output was rendered from
+		 * have changed by the given snapshot. A player whose top trusters
+		 * change, or are joined by another, changes himself, so the trusters
+		 * recorded are still the ones to show.
+		 */
+		boolean isCurrent(ReputationSnapshot snapshot) {
+			if (snapshot.getVersion() == snapshotVersion) return true;
+			for (int i = 0; i < players.length; i++) {
+				if (snapshot.getPlayerVersion(players[i]) != playerVersions[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,44 @@
+package com.gradysimon.reputationweb;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import com.avaje.ebean.validation.NotNull;
+
+/**
+ * A player who has trusted or been trusted by someone. Trust edges refer to
+ * players by id, so that each name is stored only once.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+@Entity()
+@Table(name = "rw_players")
+public class RWPlayer {
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	private int id;
+
+	@NotNull
+	@Column(unique = true)
+	private String name;
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+}
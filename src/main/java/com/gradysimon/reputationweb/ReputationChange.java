@@ -0,0 +1,44 @@
+package com.gradysimon.reputationweb;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * A change to one player's reputation. When changes are delivered in batches,
+ * the changes a player went through in that time are rolled into one, from
+ * the reputation he had before the first to the one he had after the last.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationChange {
+	private final OfflinePlayer player;
+	private final double oldReputation;
+	private final double newReputation;
+
+	ReputationChange(OfflinePlayer player, double oldReputation,
+			double newReputation) {
+		this.player = player;
+		this.oldReputation = oldReputation;
+		this.newReputation = newReputation;
+	}
+
+	public OfflinePlayer getPlayer() {
+		return player;
+	}
+
+	public double getOldReputation() {
+		return oldReputation;
+	}
+
+	public double getNewReputation() {
+		return newReputation;
+	}
+
+	/**
+	 * Returns true if the change took the player's reputation from below the
+	 * threshold to at or above it, or the other way round.
+	 */
+	public boolean crosses(double threshold) {
+		return (oldReputation >= threshold) != (newReputation >= threshold);
+	}
+}
@@ -0,0 +1,42 @@
+package com.gradysimon.reputationweb;
+
+import java.util.List;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Called on the main thread with a batch of reputation changes: every player
+ * whose reputation changed since the last batch, once each. See
+ * ReputationChangeFeed. A single trust can change thousands of reputations,
+ * so handlers should pick out the players they care about rather than do
+ * something for every change, or subscribe through ReputationService instead.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationChangeEvent extends Event {
+	private static final HandlerList handlers = new HandlerList();
+
+	private final List<ReputationChange> changes;
+
+	ReputationChangeEvent(List<ReputationChange> changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Returns the changes in this batch, which cannot be modified.
+	 */
+	public List<ReputationChange> getChanges() {
+		return changes;
+	}
+
+	@Override
+	public HandlerList getHandlers() {
+		return handlers;
+	}
+
+	public static HandlerList getHandlerList() {
+		return handlers;
+	}
+}
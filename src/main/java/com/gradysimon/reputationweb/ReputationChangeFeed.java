@@ -0,0 +1,266 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Hands reputation changes on to other plugins in batches, as a
+ * ReputationChangeEvent and to the subscriptions made through
+ * ReputationService.
+ *
+ * A single trust can change thousands of reputations, and a player can
+ * change many times in quick succession, so changes are collected for a
+ * window of ticks (events.window_ticks in config.yml) from the first one, and
+ * a player who changed several times in that window is delivered once, from
+ * his reputation before the first change to the one after the last. Players
+ * who ended up where they started are left out.
+ *
+ * Changes are only collected while somebody is listening: a handler of the
+ * event, or a subscription. A subscription covers either a set of players, or
+ * a threshold, and receives only the changes of those players, or only those
+ * that cross it.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationChangeFeed implements ReputationListener {
+	private final Plugin plugin;
+	private final long windowTicks;
+	private final Logger log;
+
+	/**
+	 * The changes collected in the current window, by player. Only used on
+	 * the main thread.
+	 */
+	private final Map<OfflinePlayer, PendingChange> pending = new LinkedHashMap<OfflinePlayer, PendingChange>();
+	private boolean deliveryScheduled = false;
+
+	/**
+	 * Set by stop(), after which nothing is collected or delivered.
+	 */
+	private boolean stopped = false;
+
+	/**
+	 * The subscriptions to particular players, by player, and those to
+	 * thresholds. Guarded by this, since subscriptions may be made and
+	 * cancelled from any thread.
+	 */
+	private final Map<OfflinePlayer, List<Subscription>> playerSubscriptions = new HashMap<OfflinePlayer, List<Subscription>>();
+	private final List<Subscription> thresholdSubscriptions = new ArrayList<Subscription>();
+	private volatile int subscriptionCount = 0;
+
+	ReputationChangeFeed(Plugin plugin, long windowTicks, Logger log) {
+		this.plugin = plugin;
+		this.windowTicks = windowTicks;
+		this.log = log;
+	}
+
+	public void reputationChanged(OfflinePlayer player, double oldReputation,
+			double newReputation)
+	{
+		if (stopped || !anyoneListening()) return;
+		PendingChange change = pending.get(player);
+		if (change == null) {
+			pending.put(player, new PendingChange(oldReputation, newReputation));
+		} else {
+			change.newReputation = newReputation;
+		}
+		if (deliveryScheduled) return;
+		deliveryScheduled = true;
+		plugin.getServer().getScheduler()
+				.scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						deliver();
+					}
+				}, windowTicks);
+	}
+
+	/**
+	 * Drops the changes collected so far, for good: changes reported after
+	 * this, such as those the engine applies as it shuts down, are ignored,
+	 * since the plugin can no longer schedule their delivery.
+	 */
+	void stop() {
+		stopped = true;
+		pending.clear();
+	}
+
+	/**
+	 * Makes the listener receive the changes of the given players.
+	 */
+	ReputationSubscription subscribe(
+			Collection<? extends OfflinePlayer> players,
+			ReputationChangeListener listener)
+	{
+		Subscription subscription = new Subscription(
+				new HashSet<OfflinePlayer>(players), 0, listener);
+		synchronized (this) {
+			for (OfflinePlayer player : subscription.players) {
+				List<Subscription> subscriptions = playerSubscriptions
+						.get(player);
+				if (subscriptions == null) {
+					subscriptions = new ArrayList<Subscription>(1);
+					playerSubscriptions.put(player, subscriptions);
+				}
+				subscriptions.add(subscription);
+			}
+			subscriptionCount++;
+		}
+		return subscription;
+	}
+
+	/**
+	 * Makes the listener receive the changes that cross the threshold, in
+	 * either direction.
+	 */
+	ReputationSubscription subscribe(double threshold,
+			ReputationChangeListener listener)
+	{
+		Subscription subscription = new Subscription(null, threshold, listener);
+		synchronized (this) {
+			thresholdSubscriptions.add(subscription);
+			subscriptionCount++;
+		}
+		return subscription;
+	}
+
+	private boolean anyoneListening() {
+		return subscriptionCount > 0
+				|| ReputationChangeEvent.getHandlerList()
+						.getRegisteredListeners().length > 0;
+	}
+
+	/**
+	 * Delivers the changes collected in the window that has just ended.
+	 */
+	private void deliver() {
+		deliveryScheduled = false;
+		if (stopped) return;
+		List<ReputationChange> changes = new ArrayList<ReputationChange>(
+				pending.size());
+		for (Map.Entry<OfflinePlayer, PendingChange> entry : pending
+				.entrySet())
+		{
+			PendingChange change = entry.getValue();
+			if (change.oldReputation != change.newReputation) {
+				changes.add(new ReputationChange(entry.getKey(),
+						change.oldReputation, change.newReputation));
+			}
+		}
+		pending.clear();
+		if (changes.isEmpty()) return;
+		plugin.getServer().getPluginManager().callEvent(
+				new ReputationChangeEvent(Collections
+						.unmodifiableList(changes)));
+		for (Map.Entry<Subscription, List<ReputationChange>> batch : sortOut(
+				changes).entrySet())
+		{
+			Subscription subscription = batch.getKey();
+			if (subscription.cancelled) continue;
+			try {
+				subscription.listener.reputationsChanged(Collections
+						.unmodifiableList(batch.getValue()));
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE,
+						"ReputationWeb: A reputation change listener failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the changes each subscription covers, leaving out the
+	 * subscriptions that cover none of them.
+	 */
+	private synchronized Map<Subscription, List<ReputationChange>> sortOut(
+			List<ReputationChange> changes)
+	{
+		Map<Subscription, List<ReputationChange>> batches = new LinkedHashMap<Subscription, List<ReputationChange>>();
+		if (subscriptionCount == 0) return batches;
+		for (ReputationChange change : changes) {
+			List<Subscription> subscriptions = playerSubscriptions.get(change
+					.getPlayer());
+			if (subscriptions != null) {
+				for (Subscription subscription : subscriptions) {
+					addToBatch(batches, subscription, change);
+				}
+			}
+			for (Subscription subscription : thresholdSubscriptions) {
+				if (change.crosses(subscription.threshold)) {
+					addToBatch(batches, subscription, change);
+				}
+			}
+		}
+		return batches;
+	}
+
+	private static void addToBatch(
+			Map<Subscription, List<ReputationChange>> batches,
+			Subscription subscription, ReputationChange change)
+	{
+		List<ReputationChange> batch = batches.get(subscription);
+		if (batch == null) {
+			batch = new ArrayList<ReputationChange>();
+			batches.put(subscription, batch);
+		}
+		batch.add(change);
+	}
+
+	private synchronized void cancel(Subscription subscription) {
+		if (subscription.cancelled) return;
+		subscription.cancelled = true;
+		subscriptionCount--;
+		if (subscription.players == null) {
+			thresholdSubscriptions.remove(subscription);
+			return;
+		}
+		for (OfflinePlayer player : subscription.players) {
+			List<Subscription> subscriptions = playerSubscriptions.get(player);
+			subscriptions.remove(subscription);
+			if (subscriptions.isEmpty()) playerSubscriptions.remove(player);
+		}
+	}
+
+	private class Subscription implements ReputationSubscription {
+		/**
+		 * The players this subscription covers, or null if it covers a
+		 * threshold.
+		 */
+		private final Set<OfflinePlayer> players;
+		private final double threshold;
+		private final ReputationChangeListener listener;
+		private volatile boolean cancelled = false;
+
+		Subscription(Set<OfflinePlayer> players, double threshold,
+				ReputationChangeListener listener) {
+			this.players = players;
+			this.threshold = threshold;
+			this.listener = listener;
+		}
+
+		public void cancel() {
+			ReputationChangeFeed.this.cancel(this);
+		}
+	}
+
+	private static class PendingChange {
+		private final double oldReputation;
+		private double newReputation;
+
+		PendingChange(double oldReputation, double newReputation) {
+			this.oldReputation = oldReputation;
+			this.newReputation = newReputation;
+		}
+	}
+}
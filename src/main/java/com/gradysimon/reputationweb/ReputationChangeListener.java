@@ -0,0 +1,18 @@
+package com.gradysimon.reputationweb;
+
+import java.util.List;
+
+/**
+ * Receives the reputation changes a subscription asked for. See
+ * ReputationService.subscribe().
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public interface ReputationChangeListener {
+	/**
+	 * Called on the main thread with the changes in a batch that the
+	 * subscription covers. Never called with an empty list.
+	 */
+	void reputationsChanged(List<ReputationChange> changes);
+}
@@ -1,50 +1,127 @@
 package com.gradysimon.reputationweb;
 
-import java.io.File;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.bukkit.OfflinePlayer;
 import org.bukkit.Server;
-import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
 
-import com.avaje.ebean.EbeanServer;
-import com.avaje.ebean.Query;
-
-public class ReputationCommandExecutor implements CommandExecutor {
+public class ReputationCommandExecutor implements CommandExecutor,
+		TabCompleter {
 
 	ReputationWeb plugin;
-	ReputationGraph reputationGraph;
+	ReputationEngine reputationEngine;
+	TrustStore trustStore;
 	Server server;
 	RWChatOutputManager output;
-	Set<OfflinePlayer> havePlayedBefore = new HashSet<OfflinePlayer>();
+	KnownPlayerIndex knownPlayers;
+	ReputationMetrics metrics;
+
+	private final int numOfTopTrusters = ReputationGraph.TOP_TRUSTERS;
+	private final int leaderboardPageSize = 10;
+	private final int maxCompletions = 50;
 
-	private final int numOfTopTrusters = 5;
+	private static final String[] subcommands = { "trust", "untrust", "info",
+			"connection", "chain", "top", "recompute", "reload", "stats",
+			"help" };
 
 	private final String trustPermissionNode = "reputationweb.trust";
 	private final String infoSelfPermissionNode = "reputationweb.info.self";
 	private final String infoAllPermissionNode = "reputationweb.info.all";
 	private final String connectionSelfPermissionNode = "reputationweb.connection.self";
 	private final String connectionAllPermissionNode = "reputationweb.connection.all";
+	private final String topPermissionNode = "reputationweb.top";
+	private final String recomputePermissionNode = "reputationweb.recompute";
+	private final String reloadPermissionNode = "reputationweb.reload";
+	private final String statsPermissionNode = "reputationweb.stats";
 
 	ReputationCommandExecutor(ReputationWeb plugin,
-			ReputationGraph reputationGraph, Server server) {
+			ReputationEngine reputationEngine,
+			TrustStore trustStore, KnownPlayerIndex knownPlayers, Server server) {
 		this.plugin = plugin;
-		this.reputationGraph = reputationGraph;
+		this.reputationEngine = reputationEngine;
+		this.trustStore = trustStore;
+		this.knownPlayers = knownPlayers;
 		this.server = server;
-		output = new RWChatOutputManager(reputationGraph);
-		loadPlayersWhoHavePlayed();
+		this.metrics = plugin.getMetrics();
+		output = new RWChatOutputManager(reputationEngine);
 	}
 
 	public boolean onCommand(CommandSender sender, Command command,
 			String label, String[] args)
 	{
+		long startTime = System.nanoTime();
 		label = label.toLowerCase();
+		boolean handled = handleCommand(sender, label, args);
+		if (handled) {
+			metrics.recordCommand(commandName(label, args), System.nanoTime()
+					- startTime);
+		}
+		return handled;
+	}
+
+	/**
+	 * Completes subcommands of /rep, and the names of players who have been on
+	 * the server wherever a command takes one.
+	 */
+	public List<String> onTabComplete(CommandSender sender, Command command,
+			String alias, String[] args)
+	{
+		String label = command.getName().toLowerCase();
+		String typed = args.length == 0 ? "" : args[args.length - 1];
+		if (label.equals("trust") || label.equals("untrust")) {
+			if (args.length == 1) return knownPlayers.complete(typed, maxCompletions);
+		} else if (label.equals("rep") || label.equals("reputation")) {
+			if (args.length == 1) return completeSubcommand(typed);
+			String subcommand = args[0].toLowerCase();
+			if (args.length == 2 && subcommand.equals("help")) {
+				return completeSubcommand(typed);
+			}
+			if (args.length == 2 && takesPlayer(subcommand)
+					|| args.length == 3 && takesTwoPlayers(subcommand)) {
+				return knownPlayers.complete(typed, maxCompletions);
+			}
+		}
+		return new ArrayList<String>();
+	}
+
+	private List<String> completeSubcommand(String typed) {
+		List<String> completions = new ArrayList<String>();
+		String prefix = typed.toLowerCase();
+		for (String subcommand : subcommands) {
+			if (subcommand.startsWith(prefix)) completions.add(subcommand);
+		}
+		return completions;
+	}
+
+	private boolean takesPlayer(String subcommand) {
+		return subcommand.equals("trust") || subcommand.equals("untrust")
+				|| subcommand.equals("info") || takesTwoPlayers(subcommand);
+	}
+
+	private boolean takesTwoPlayers(String subcommand) {
+		return subcommand.equals("connection") || subcommand.equals("chain");
+	}
+
+	/**
+	 * Returns the name a handled command is measured under: the subcommand
+	 * for /rep, so that /trust and /rep trust count as the same command.
+	 */
+	private String commandName(String label, String[] args) {
+		if (label.equals("rep") || label.equals("reputation")) {
+			return args[0].toLowerCase();
+		}
+		return label;
+	}
+
+	private boolean handleCommand(CommandSender sender, String label,
+			String[] args)
+	{
 		if (label.equals("rep") || label.equals("reputation")) {
 			return dispatchReputationCommand(sender, args);
 		} else if (label.equals("trust") && args.length > 0) {
@@ -69,6 +146,16 @@ public class ReputationCommandExecutor implements CommandExecutor {
 				output.infoHelp(sender);
 			} else if (args[1].equals("connection")) {
 				output.connectionHelp(sender);
+			} else if (args[1].equals("chain")) {
+				output.chainHelp(sender);
+			} else if (args[1].equals("top")) {
+				output.topHelp(sender);
+			} else if (args[1].equals("recompute")) {
+				output.recomputeHelp(sender);
+			} else if (args[1].equals("reload")) {
+				output.reloadHelp(sender);
+			} else if (args[1].equals("stats")) {
+				output.statsHelp(sender);
 			}
 		}
 
@@ -89,7 +176,21 @@ public class ReputationCommandExecutor implements CommandExecutor {
 				infoCommand(sender, args);
 				return true;
 			} else if (firstArg.equals("connection") && args.length > 1) {
-				referralCommand(sender, args);
+				referralCommand(sender, args, false);
+				return true;
+			} else if (firstArg.equals("chain") && args.length > 1) {
+				referralCommand(sender, args, true);
+				return true;
+			} else if (firstArg.equals("top")) {
+				return topCommand(sender, args);
+			} else if (firstArg.equals("recompute") && args.length == 1) {
+				recomputeCommand(sender);
+				return true;
+			} else if (firstArg.equals("reload") && args.length == 1) {
+				reloadCommand(sender);
+				return true;
+			} else if (firstArg.equals("stats") && args.length == 1) {
+				statsCommand(sender);
 				return true;
 			} else if (firstArg.equals("help")) {
 				helpCommand(sender, args);
@@ -99,17 +200,17 @@ public class ReputationCommandExecutor implements CommandExecutor {
 		return false;
 	}
 
-	private void trustCommand(CommandSender sender, String targetName) {
+	private void trustCommand(final CommandSender sender, String targetName) {
 		if (!isOnlinePlayer(sender)) {
 			output.mustBePlayerError(sender);
 			return;
 		}
-		Player senderPlayer = (Player) sender;
+		final Player senderPlayer = (Player) sender;
 		if (!hasPermission(senderPlayer, trustPermissionNode)) {
 			output.lacksPermissionError(sender);
 			return;
 		}
-		OfflinePlayer otherPlayer = getRealPlayer(targetName);
+		final OfflinePlayer otherPlayer = getRealPlayer(targetName);
 		if (otherPlayer == null) {
 			output.playerDoesNotExistError(sender, targetName);
 			return;
@@ -118,106 +219,137 @@ public class ReputationCommandExecutor implements CommandExecutor {
 			output.cannotTrustSelfError(sender);
 			return;
 		}
-		if (reputationGraph.trustRelationExists(senderPlayer, otherPlayer)) {
+		if (reputationEngine.trustRelationExists(senderPlayer, otherPlayer)) {
 			output.alreadyTrustsPlayerError(sender, otherPlayer);
 			return;
 		}
 		addTrustToDatabase(senderPlayer.getName(), otherPlayer.getName());
-		reputationGraph.addTrustRelation(senderPlayer, otherPlayer);
-		output.trustSuccessMessage(sender, otherPlayer);
-		if (otherPlayer.isOnline()) {
-			output.playerTrustedMessage(otherPlayer.getPlayer(), senderPlayer);
-		}
+		reputationEngine.addTrustRelation(senderPlayer, otherPlayer,
+				new Runnable() {
+					public void run() {
+						output.trustSuccessMessage(sender, otherPlayer);
+						if (otherPlayer.isOnline()) {
+							output.playerTrustedMessage(otherPlayer.getPlayer(),
+									senderPlayer);
+						}
+					}
+				});
 	}
 
 	private void addTrustToDatabase(String truster, String trustee) {
-		Trust trust = new Trust();
-		trust.setTrusterName(truster);
-		trust.setTrusteeName(trustee);
-		EbeanServer database = plugin.getPluginDatabase();
-		database.save(trust);
+		trustStore.trustAdded(truster, trustee);
 	}
 
-	private void untrustCommand(CommandSender sender, String targetName) {
+	private void untrustCommand(final CommandSender sender, String targetName) {
 		if (!isOnlinePlayer(sender)) {
 			output.mustBePlayerError(sender);
 			return;
 		}
-		Player senderPlayer = (Player) sender;
+		final Player senderPlayer = (Player) sender;
 		if (!hasPermission(senderPlayer, trustPermissionNode)) {
 			output.lacksPermissionError(sender);
 			return;
 		}
-		OfflinePlayer otherPlayer = getRealPlayer(targetName);
+		final OfflinePlayer otherPlayer = getRealPlayer(targetName);
 		if (otherPlayer == null) {
 			output.playerDoesNotExistError(sender, targetName);
 			return;
 		}
-		if (!reputationGraph.trustRelationExists(senderPlayer, otherPlayer)) {
+		if (!reputationEngine.trustRelationExists(senderPlayer, otherPlayer)) {
 			output.doesNotTrustPlayerError(sender, otherPlayer);
 			return;
 		}
 		removeTrustFromDatabase(senderPlayer.getName(), otherPlayer.getName());
-		reputationGraph.removeTrustRelation(senderPlayer, otherPlayer);
-		output.untrustSuccessMessage(sender, otherPlayer);
-		if (otherPlayer.isOnline()) {
-			output.playerUntrustedMessage(otherPlayer.getPlayer(), senderPlayer);
-		}
+		reputationEngine.removeTrustRelation(senderPlayer, otherPlayer,
+				new Runnable() {
+					public void run() {
+						output.untrustSuccessMessage(sender, otherPlayer);
+						if (otherPlayer.isOnline()) {
+							output.playerUntrustedMessage(
+									otherPlayer.getPlayer(), senderPlayer);
+						}
+					}
+				});
 	}
 
 	private void removeTrustFromDatabase(String truster, String trustee) {
-		EbeanServer database = plugin.getPluginDatabase();
-		Query<Trust> query = database.find(Trust.class);
-		Trust trust = query.where().eq("trusterName", truster)
-				.eq("trusteeName", trustee).findUnique();
-		database.delete(trust);
+		trustStore.trustRemoved(truster, trustee);
 	}
 
-	private boolean referralCommand(CommandSender sender, String[] args) {
+	/**
+	 * Handles /rep connection and /rep chain, which differ only in which path
+	 * of trust they look for.
+	 * 
+	 * @param mostReputable
+	 *            true to find the most reputable shortest path, false to find
+	 *            any shortest path
+	 */
+	private boolean referralCommand(CommandSender sender, String[] args,
+			boolean mostReputable)
+	{
 		if (args.length == 2) {
-			selfReferralCommand(sender, args);
+			selfReferralCommand(sender, args, mostReputable);
 			return true;
 		}
 		if (args.length == 3) {
-			otherReferralCommand(sender, args);
+			otherReferralCommand(sender, args, mostReputable);
 			return true;
 		}
 		return false;
 	}
 
-	private void selfReferralCommand(CommandSender sender, String[] args) {
+	private void findReference(OfflinePlayer start, OfflinePlayer end,
+			boolean mostReputable,
+			ReputationEngine.Callback<List<OfflinePlayer>> callback)
+	{
+		if (mostReputable) {
+			reputationEngine.getMostReputableReference(start, end, callback);
+		} else {
+			reputationEngine.getReference(start, end, callback);
+		}
+	}
+
+	private void selfReferralCommand(final CommandSender sender,
+			String[] args, final boolean mostReputable)
+	{
 		if (!isOnlinePlayer(sender)) {
 			output.mustBePlayerOrAddArgsError(sender);
 			return;
 		}
-		Player senderPlayer = (Player) sender;
+		final Player senderPlayer = (Player) sender;
 		if (!hasPermission(senderPlayer, connectionSelfPermissionNode)) {
 			output.lacksPermissionError(sender);
 			return;
 		}
-		OfflinePlayer otherPlayer = getRealPlayer(args[1]);
+		final OfflinePlayer otherPlayer = getRealPlayer(args[1]);
 		if (otherPlayer == null) {
 			output.playerDoesNotExistError(sender, args[1]);
 			return;
 		}
-		List<OfflinePlayer> path = reputationGraph.getReference(senderPlayer,
-				otherPlayer);
-		if (path == null) {
-			output.noTrustPathExistsMessage(sender, otherPlayer);
-			return;
-		}
-		output.referralCommandOutput(sender, path, senderPlayer, otherPlayer);
+		findReference(senderPlayer, otherPlayer, mostReputable,
+				new ReputationEngine.Callback<List<OfflinePlayer>>() {
+					public void done(List<OfflinePlayer> path) {
+						if (path == null) {
+							output.noTrustPathExistsMessage(sender, otherPlayer);
+							return;
+						}
+						output.referralCommandOutput(sender, path,
+								senderPlayer, otherPlayer, mostReputable);
+					}
+				});
 	}
 
-	private void otherReferralCommand(CommandSender sender, String[] args) {
+	private void otherReferralCommand(final CommandSender sender,
+			String[] args, final boolean mostReputable)
+	{
 		if (isOnlinePlayer(sender)) {
 			if (!hasPermission((Player) sender, connectionAllPermissionNode)) {
 				output.lacksPermissionError(sender);
 				return;
 			}
 		}
-		OfflinePlayer startPlayer = getRealPlayer(args[1]);
-		OfflinePlayer endPlayer = getRealPlayer(args[2]);
+		final OfflinePlayer startPlayer = getRealPlayer(args[1]);
+		final OfflinePlayer endPlayer = getRealPlayer(args[2]);
 		if (startPlayer == null) {
 			output.playerDoesNotExistError(sender, args[1]);
 			return;
@@ -226,13 +358,113 @@ public class ReputationCommandExecutor implements CommandExecutor {
 			output.playerDoesNotExistError(sender, args[2]);
 			return;
 		}
-		List<OfflinePlayer> path = reputationGraph.getReference(startPlayer,
-				endPlayer);
-		if (path == null) {
-			output.noTrustPathExistsMessage(sender, startPlayer, endPlayer);
+		findReference(startPlayer, endPlayer, mostReputable,
+				new ReputationEngine.Callback<List<OfflinePlayer>>() {
+					public void done(List<OfflinePlayer> path) {
+						if (path == null) {
+							output.noTrustPathExistsMessage(sender,
+									startPlayer, endPlayer);
+							return;
+						}
+						output.referralCommandOutput(sender, path,
+								startPlayer, endPlayer, mostReputable);
+					}
+				});
+	}
+
+	private boolean topCommand(final CommandSender sender, String[] args) {
+		if (args.length > 2) {
+			return false;
+		}
+		if (isOnlinePlayer(sender)) {
+			if (!hasPermission((Player) sender, topPermissionNode)) {
+				output.lacksPermissionError(sender);
+				return true;
+			}
+		}
+		int page = 1;
+		if (args.length == 2) {
+			try {
+				page = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				page = 0;
+			}
+			if (page < 1) {
+				output.invalidPageError(sender, args[1]);
+				return true;
+			}
+		}
+		final int requestedPage = page;
+		final int offset = (page - 1) * leaderboardPageSize;
+		reputationEngine.getTopPlayers(offset, leaderboardPageSize,
+				new ReputationEngine.Callback<List<OfflinePlayer>>() {
+					public void done(List<OfflinePlayer> topPlayers) {
+						int playerCount = reputationEngine.getSnapshot()
+								.getPlayerCount();
+						int pageCount = (playerCount + leaderboardPageSize - 1)
+								/ leaderboardPageSize;
+						output.topCommandOutput(sender, topPlayers,
+								requestedPage, pageCount, offset);
+					}
+				});
+		return true;
+	}
+
+	private void recomputeCommand(final CommandSender sender) {
+		if (isOnlinePlayer(sender)) {
+			if (!hasPermission((Player) sender, recomputePermissionNode)) {
+				output.lacksPermissionError(sender);
+				return;
+			}
+		}
+		boolean started = reputationEngine.recompute(new ReputationEngine.Callback<ReputationRecomputeJob.Report>() {
+			public void done(ReputationRecomputeJob.Report report) {
+				output.recomputeCommandOutput(sender, report);
+			}
+		});
+		if (started) {
+			output.recomputeStartedMessage(sender);
+		} else {
+			output.recomputeAlreadyRunningError(sender);
+		}
+	}
+
+	private void reloadCommand(final CommandSender sender) {
+		if (isOnlinePlayer(sender)) {
+			if (!hasPermission((Player) sender, reloadPermissionNode)) {
+				output.lacksPermissionError(sender);
+				return;
+			}
+		}
+		plugin.reloadConfiguration();
+		double flowFactor = plugin.getFlowFactor();
+		int maxChainLength = plugin.getMaxChainLength();
+		if (flowFactor <= 0 || flowFactor >= 1 || maxChainLength < 1) {
+			output.invalidParametersError(sender, flowFactor, maxChainLength);
 			return;
 		}
-		output.referralCommandOutput(sender, path, startPlayer, endPlayer);
+		boolean started = reputationEngine.reload(flowFactor, maxChainLength,
+				plugin.getMaxConnectionLength(),
+				new ReputationEngine.Callback<ReputationRecomputeJob.Report>() {
+					public void done(ReputationRecomputeJob.Report report) {
+						output.reloadCommandOutput(sender, report);
+					}
+				});
+		if (started) {
+			output.reloadStartedMessage(sender);
+		} else {
+			output.recomputeAlreadyRunningError(sender);
+		}
+	}
+
+	private void statsCommand(CommandSender sender) {
+		if (isOnlinePlayer(sender)) {
+			if (!hasPermission((Player) sender, statsPermissionNode)) {
+				output.lacksPermissionError(sender);
+				return;
+			}
+		}
+		output.statsCommandOutput(sender, metrics);
 	}
 
 	private boolean infoCommand(CommandSender sender, String[] args) {
@@ -276,9 +508,7 @@ public class ReputationCommandExecutor implements CommandExecutor {
 	}
 
 	private void coreInfoCommand(CommandSender sender, OfflinePlayer player) {
-		List<OfflinePlayer> topTrusters = reputationGraph.getTopTrusters(
-				player, numOfTopTrusters);
-		output.infoCommandOutput(sender, player, topTrusters);
+		output.infoCommandOutput(sender, player, numOfTopTrusters);
 	}
 
 	private boolean hasPermission(Player player, String permissionNode) {
@@ -291,54 +521,21 @@ public class ReputationCommandExecutor implements CommandExecutor {
 
 	/**
 	 * Returns an OfflinePlayer object if and only if the player has been on the
-	 * server before or is presently online. Returns null otherwise.
+	 * server before or is presently online. Returns null otherwise. The name
+	 * may be typed in any case.
 	 * 
 	 * @param name
 	 *            The name of the player to return a Player object for.
 	 * @return The Player object with the specified name. Returns null if the
 	 *         player by that name has never been on the server before.
 	 */
-	// The layout of this method seems funky, but it is like that to avoid as
-	// much as possible the expensive hasPlayedBefore() method.
 	private OfflinePlayer getRealPlayer(String name) {
+		String realName = knownPlayers.getRealName(name);
+		if (realName != null) return server.getOfflinePlayer(realName);
 		OfflinePlayer potentialPlayer = server.getOfflinePlayer(name);
-		if (reputationGraph.playerIsInGraph(potentialPlayer)) {
-			return potentialPlayer;
-		}
-		if (hasPlayedBefore(potentialPlayer)) {
+		if (reputationEngine.getSnapshot().playerIsInGraph(potentialPlayer)) {
 			return potentialPlayer;
 		}
 		return null;
 	}
-
-	private boolean hasPlayedBefore(OfflinePlayer player) {
-		if (havePlayedBefore.contains(player)) {
-			return true;
-		}
-		String playerName = player.getName();
-		List<World> worlds = server.getWorlds();
-		for (World world : worlds) {
-			File playersFolder = new File(world.getWorldFolder(), "players");
-			if (!playersFolder.exists()) break;
-			for (String fileName : playersFolder.list()) {
-				String name = fileName.substring(0, fileName.length() - 4);
-				if (name.equals(playerName)) {
-					return true;
-				}
-			}
-		}
-		return false;
-	}
-
-	private void loadPlayersWhoHavePlayed() {
-		List<World> worlds = server.getWorlds();
-		for (World world : worlds) {
-			File playersFolder = new File(world.getWorldFolder(), "players");
-			if (!playersFolder.exists()) break;
-			for (String fileName : playersFolder.list()) {
-				String name = fileName.substring(0, fileName.length() - 4);
-				havePlayedBefore.add(server.getOfflinePlayer(name));
-			}
-		}
-	}
 }
\ No newline at end of file
@@ -0,0 +1,855 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Owns the ReputationGraph and decides which thread works on it.
+ *
+ * Every change to the web goes through the engine, and after every change the
+ * engine publishes a new ReputationSnapshot. Commands read from the latest
+ * snapshot and never touch the graph directly.
+ *
+ * In synchronous mode the graph is changed right away on the calling thread
+ * (the server's main thread), exactly as before. With a refresh budget (see
+ * setRefreshBudget()), trust changes there are queued instead, and applied
+ * and propagated through the graph a little at a time within the budget, by
+ * each change as it comes in and by a task that runs every tick, so that a
+ * change that affects thousands of players never holds up a single tick for
+ * long. Changes that queue up while a propagation is running are applied
+ * together once it finishes, and propagated in a single walk, so that the
+ * queue drains however far behind it falls. In asynchronous mode, changes
+ * and queries that need the whole graph are queued for a single worker thread,
+ * which is the only thread that ever touches the graph. The worker applies
+ * everything that has queued up, publishes one snapshot for the lot, and then
+ * hands any results back to the main thread through the scheduler, so the
+ * server tick never waits for a reputation update.
+ *
+ * Shutting down applies every change that was submitted before it, in either
+ * mode, so that none is lost, but reports none of them: once the plugin is
+ * being disabled nothing can be scheduled for it, so the whenApplied
+ * callbacks, the callbacks waiting for a refresh and the listeners are
+ * dropped rather than run.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationEngine {
+
+	/**
+	 * Receives the result of a query that was run against the graph. Always
+	 * called on the server's main thread.
+	 */
+	interface Callback<T> {
+		void done(T result);
+	}
+
+	private static final int MAX_PENDING_BEFORE_PRUNING = 256;
+
+	/**
+	 * Told about every reputation that changes. Only changed before start().
+	 */
+	private final List<ReputationListener> listeners = new ArrayList<ReputationListener>();
+
+	/**
+	 * The number of times a recomputation is run beside the graph before
+	 * synchronous mode with a refresh budget holds back trust changes to let
+	 * it finish. A recomputation never runs on the graph's thread, which may
+	 * be the main thread.
+	 */
+	private static final int MAX_RECOMPUTE_ATTEMPTS = 3;
+
+	/**
+	 * The number of most reputable players, the first page of /rep top, who
+	 * are brought up to date first by a propagation that takes more than one
+	 * tick.
+	 */
+	private static final int PRIORITY_LEADERBOARD_SIZE = 10;
+
+	private final Plugin plugin;
+	private final ReputationGraph graph;
+	private final Logger log;
+	private final boolean asynchronous;
+
+	private volatile ReputationSnapshot snapshot;
+
+	/**
+	 * The number of trust changes submitted so far. Only used on the main
+	 * thread.
+	 */
+	private long submittedChanges = 0;
+
+	/**
+	 * The number of trust changes made to the graph so far. Only used on the
+	 * thread that owns the graph.
+	 */
+	private long appliedChanges = 0;
+
+	/**
+	 * Trust changes that have been submitted but may not be part of the latest
+	 * snapshot yet, so that a player who trusts someone twice in quick
+	 * succession is still told that he already trusts him. Only used on the
+	 * main thread.
+	 */
+	private Map<Relation, PendingChange> pendingChanges = new HashMap<Relation, PendingChange>();
+
+	private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+	private Thread worker;
+	private volatile boolean running = false;
+
+	/**
+	 * Set by shutdown(), after which nothing applied is reported any more.
+	 */
+	private volatile boolean shuttingDown = false;
+
+	/**
+	 * The most time to spend applying and propagating trust changes per tick
+	 * in synchronous mode, or 0 to do it all as part of each change.
+	 */
+	private long refreshBudgetNanos = 0;
+	private long spentThisTick = 0;
+	private int refreshTask = -1;
+
+	/**
+	 * Trust changes waiting for the budget to apply them, in the order they
+	 * were submitted. Only used in synchronous mode with a refresh budget.
+	 */
+	private final Queue<DeferredChange> deferredChanges = new LinkedList<DeferredChange>();
+
+	/**
+	 * True while the deferred changes are held back so that a recomputation
+	 * that trust changes keep overtaking can finish. Only used in synchronous
+	 * mode with a refresh budget.
+	 */
+	private boolean holdingChanges = false;
+
+	/**
+	 * Callbacks waiting for the deferred changes to be applied and propagated.
+	 * Only used in synchronous mode with a refresh budget.
+	 */
+	private List<Runnable> waitingForRefresh = new ArrayList<Runnable>();
+
+	/**
+	 * Main-thread callbacks for tasks the worker has run but whose results
+	 * have not been published yet. Only used on the worker thread.
+	 */
+	private List<Runnable> completedCallbacks = new ArrayList<Runnable>();
+
+	/**
+	 * True while a recomputation is running. Only used on the main thread.
+	 */
+	private boolean recomputing = false;
+
+	ReputationEngine(Plugin plugin, ReputationGraph graph, boolean asynchronous,
+			Logger log) {
+		this.plugin = plugin;
+		this.graph = graph;
+		this.asynchronous = asynchronous;
+		this.log = log;
+		this.snapshot = ReputationSnapshot
+				.empty(new ConcurrentHashMap<OfflinePlayer, Integer>());
+		publishSnapshot();
+	}
+
+	/**
+	 * Starts the worker thread, if the engine is in asynchronous mode. The
+	 * graph must not be touched directly once this has been called.
+	 */
+	void start() {
+		if (!asynchronous) {
+			if (refreshBudgetNanos > 0) startRefreshing();
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				processTasks();
+			}
+		}, "ReputationWeb engine");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Applies every change that was submitted before this call, without
+	 * reporting any of them, and stops the worker thread or the refresh task.
+	 */
+	void shutdown() {
+		shuttingDown = true;
+		waitingForRefresh.clear();
+		if (refreshTask != -1) {
+			plugin.getServer().getScheduler().cancelTask(refreshTask);
+			refreshTask = -1;
+			refreshUntil(Long.MAX_VALUE);
+		}
+		if (worker == null) return;
+		running = false;
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+	boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * Sets the most time, in milliseconds per server tick, that synchronous
+	 * mode spends applying trust changes and bringing reputations up to date
+	 * after them. Must be called before start(). With 0, the default, every
+	 * change is applied and propagated before it returns. Asynchronous mode
+	 * ignores the budget, since its worker thread never holds up a tick.
+	 */
+	void setRefreshBudget(long millis) {
+		refreshBudgetNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Returns true while synchronous mode has trust changes waiting to be
+	 * applied or still propagating. Must be called on the main thread.
+	 */
+	boolean hasPendingRefresh() {
+		return !asynchronous
+				&& (graph.isRefreshing() || !deferredChanges.isEmpty());
+	}
+
+	private void startRefreshing() {
+		graph.setDeferRefresh(true);
+		refreshTask = plugin.getServer().getScheduler()
+				.scheduleSyncRepeatingTask(plugin, new Runnable() {
+					public void run() {
+						spentThisTick = 0;
+						refresh();
+					}
+				}, 1, 1);
+	}
+
+	/**
+	 * Spends what is left of this tick's budget on queued changes.
+	 */
+	private void refresh() {
+		if (!graph.isRefreshing() && deferredChanges.isEmpty()) {
+			// A recomputation may have finished the propagation that the
+			// waiting callbacks were queued behind.
+			runIfUpToDate();
+			return;
+		}
+		long startTime = System.nanoTime();
+		refreshUntil(startTime + refreshBudgetNanos - spentThisTick);
+		spentThisTick += System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Carries on with the propagation in progress, and once it is finished,
+	 * applies every queued change and propagates them together, until the
+	 * deadline. Then publishes what changed and tells the players whose
+	 * changes were applied.
+	 */
+	private void refreshUntil(long deadline) {
+		List<Runnable> applied = new ArrayList<Runnable>();
+		while (true) {
+			if (!graph.isRefreshing()) {
+				if (deferredChanges.isEmpty() || System.nanoTime() >= deadline
+						|| (holdingChanges && !shuttingDown)) {
+					break;
+				}
+				while (!deferredChanges.isEmpty()) {
+					DeferredChange next = deferredChanges.remove();
+					next.change.run();
+					appliedChanges = next.sequence;
+					if (next.whenApplied != null) applied.add(next.whenApplied);
+				}
+			}
+			if (!graph.refresh(
+					Arrays.asList(plugin.getServer().getOnlinePlayers()),
+					PRIORITY_LEADERBOARD_SIZE, deadline)) {
+				break;
+			}
+		}
+		publishSnapshot();
+		if (shuttingDown) return;
+		for (Runnable whenApplied : applied) {
+			whenApplied.run();
+		}
+		runIfUpToDate();
+	}
+
+	/**
+	 * Runs the callbacks passed to whenUpToDate() while changes were pending,
+	 * if none are pending any more.
+	 */
+	private void runIfUpToDate() {
+		if (hasPendingRefresh() || waitingForRefresh.isEmpty()) return;
+		List<Runnable> upToDate = waitingForRefresh;
+		waitingForRefresh = new ArrayList<Runnable>();
+		for (Runnable callback : upToDate) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Tells the listener about every change to a player's reputation from now
+	 * on, on the main thread, once the change has been published. Must be
+	 * called before start().
+	 */
+	void addListener(ReputationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Returns the latest published snapshot. Safe to call from any thread.
+	 */
+	ReputationSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns true if the truster trusts the trustee, taking into account
+	 * trust changes that were submitted but have not been published yet. Must
+	 * be called on the main thread.
+	 */
+	boolean trustRelationExists(OfflinePlayer truster, OfflinePlayer trustee) {
+		ReputationSnapshot current = snapshot;
+		PendingChange pending = pendingChanges.get(new Relation(truster,
+				trustee));
+		if (pending != null) {
+			if (pending.sequence > current.getAppliedChanges()) {
+				return pending.trusted;
+			}
+			pendingChanges.remove(pending.relation);
+		}
+		return current.trustRelationExists(truster, trustee);
+	}
+
+	/**
+	 * Makes the truster trust the trustee.
+	 *
+	 * @param whenApplied
+	 *            Run on the main thread once the change is visible in the
+	 *            latest snapshot. May be null.
+	 */
+	void addTrustRelation(final OfflinePlayer truster,
+			final OfflinePlayer trustee, Runnable whenApplied)
+	{
+		submitChange(new Relation(truster, trustee), true, new Runnable() {
+			public void run() {
+				graph.addTrustRelation(truster, trustee);
+			}
+		}, whenApplied);
+	}
+
+	/**
+	 * Makes the truster stop trusting the trustee.
+	 *
+	 * @param whenApplied
+	 *            Run on the main thread once the change is visible in the
+	 *            latest snapshot. May be null.
+	 */
+	void removeTrustRelation(final OfflinePlayer truster,
+			final OfflinePlayer trustee, Runnable whenApplied)
+	{
+		submitChange(new Relation(truster, trustee), false, new Runnable() {
+			public void run() {
+				graph.removeTrustRelation(truster, trustee);
+			}
+		}, whenApplied);
+	}
+
+	/**
+	 * Runs the callback on the main thread once every trust change submitted
+	 * so far is part of the latest snapshot, along with the reputations it
+	 * changed. Must be called on the main thread.
+	 */
+	void whenUpToDate(Runnable callback) {
+		if (asynchronous) {
+			runOnGraphThread(new Runnable() {
+				public void run() {
+				}
+			}, callback);
+		} else if (hasPendingRefresh()) {
+			waitingForRefresh.add(callback);
+		} else {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Finds a shortest path of trust between two players. See
+	 * ReputationGraph.getReference(). The callback receives null if there is
+	 * no such path.
+	 */
+	void getReference(final OfflinePlayer start, final OfflinePlayer end,
+			Callback<List<OfflinePlayer>> callback)
+	{
+		query(new GraphQuery<List<OfflinePlayer>>(callback) {
+			List<OfflinePlayer> compute() {
+				return graph.getReference(start, end);
+			}
+		});
+	}
+
+	/**
+	 * Finds the most reputable shortest path of trust between two players.
+	 * See ReputationGraph.getMostReputableReference(). The callback receives
+	 * null if there is no such path.
+	 */
+	void getMostReputableReference(final OfflinePlayer start,
+			final OfflinePlayer end, Callback<List<OfflinePlayer>> callback)
+	{
+		query(new GraphQuery<List<OfflinePlayer>>(callback) {
+			List<OfflinePlayer> compute() {
+				return graph.getMostReputableReference(start, end);
+			}
+		});
+	}
+
+	/**
+	 * Finds the most reputable players in the whole web. See
+	 * ReputationGraph.getTopPlayers().
+	 */
+	void getTopPlayers(final int offset, final int number,
+			Callback<List<OfflinePlayer>> callback)
+	{
+		query(new GraphQuery<List<OfflinePlayer>>(callback) {
+			List<OfflinePlayer> compute() {
+				return graph.getTopPlayers(offset, number);
+			}
+		});
+	}
+
+	/**
+	 * Recalculates every player's reputation from scratch, on all cores, and
+	 * corrects any that the incremental updates got wrong. The callback
+	 * receives a report of what was found, or null if the recomputation
+	 * failed.
+	 *
+	 * The work is done on a frozen copy of the web, beside the thread that
+	 * owns the graph, and the results are installed on that thread all at
+	 * once. If trusts changed while the copy was being worked on, the results
+	 * are out of date and the recomputation starts again, as often as it
+	 * takes. In synchronous mode with a refresh budget, after
+	 * MAX_RECOMPUTE_ATTEMPTS tries, trust changes are queued but not applied
+	 * until the next try is installed, so that nothing can change underneath
+	 * it.
+	 *
+	 * @return false if a recomputation is already running, in which case
+	 *         nothing is done
+	 */
+	boolean recompute(Callback<ReputationRecomputeJob.Report> callback) {
+		return startRecomputation(new Recomputation(callback));
+	}
+
+	/**
+	 * Switches the graph to new parameters. Every reputation is recalculated
+	 * with them in the same way as by recompute(), and until that is done,
+	 * reputations stay as they were under the old parameters.
+	 *
+	 * @param maxConnectionLength
+	 *            See ReputationGraph.setMaxConnectionLength()
+	 * @return false if a recomputation is already running, in which case
+	 *         nothing is done
+	 */
+	boolean reload(double flowMultiplier, int maxChainLength,
+			int maxConnectionLength,
+			Callback<ReputationRecomputeJob.Report> callback)
+	{
+		Recomputation recomputation = new Recomputation(callback);
+		recomputation.setParameters(flowMultiplier, maxChainLength,
+				maxConnectionLength);
+		return startRecomputation(recomputation);
+	}
+
+	private boolean startRecomputation(final Recomputation recomputation) {
+		if (recomputing) return false;
+		recomputing = true;
+		runOnGraphThread(new Runnable() {
+			public void run() {
+				recomputation.start();
+			}
+		}, null);
+		return true;
+	}
+
+	private void submitChange(Relation relation, boolean trusted,
+			final Runnable change, Runnable whenApplied)
+	{
+		submittedChanges++;
+		if (!asynchronous && refreshTask != -1) {
+			if (pendingChanges.size() >= MAX_PENDING_BEFORE_PRUNING) {
+				prunePendingChanges();
+			}
+			pendingChanges.put(relation, new PendingChange(relation, trusted,
+					submittedChanges));
+			deferredChanges.add(new DeferredChange(change, submittedChanges,
+					whenApplied));
+			refresh();
+			return;
+		}
+		if (!asynchronous) {
+			change.run();
+			appliedChanges = submittedChanges;
+			publishSnapshot();
+			if (whenApplied != null) whenApplied.run();
+			return;
+		}
+		if (pendingChanges.size() >= MAX_PENDING_BEFORE_PRUNING) {
+			prunePendingChanges();
+		}
+		pendingChanges.put(relation, new PendingChange(relation, trusted,
+				submittedChanges));
+		final long sequence = submittedChanges;
+		runOnGraphThread(new Runnable() {
+			public void run() {
+				change.run();
+				appliedChanges = sequence;
+			}
+		}, whenApplied);
+	}
+
+	/**
+	 * Forgets the pending changes that the latest snapshot already includes.
+	 */
+	private void prunePendingChanges() {
+		long published = snapshot.getAppliedChanges();
+		Iterator<PendingChange> iterator = pendingChanges.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().sequence <= published) iterator.remove();
+		}
+	}
+
+	private <T> void query(final GraphQuery<T> query) {
+		runOnGraphThread(query, new Runnable() {
+			public void run() {
+				query.callback.done(query.result);
+			}
+		});
+	}
+
+	/**
+	 * Runs work on the thread that owns the graph, then runs whenDone on the
+	 * main thread once the snapshot reflects the work.
+	 */
+	private void runOnGraphThread(Runnable work, final Runnable whenDone) {
+		if (!asynchronous) {
+			work.run();
+			if (whenDone != null) whenDone.run();
+			return;
+		}
+		tasks.add(work);
+		if (whenDone != null) {
+			tasks.add(new Runnable() {
+				public void run() {
+					completedCallbacks.add(whenDone);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The worker thread's loop. Runs everything that has queued up, publishes
+	 * a single snapshot for it, then hands the callbacks to the main thread.
+	 * Exits once it has been asked to stop and the queue is empty.
+	 */
+	private void processTasks() {
+		List<Runnable> batch = new ArrayList<Runnable>();
+		while (running || !tasks.isEmpty()) {
+			try {
+				batch.add(tasks.take());
+			} catch (InterruptedException e) {
+				// Woken up by shutdown(); drain whatever is left.
+			}
+			tasks.drainTo(batch);
+			if (batch.isEmpty()) continue;
+			for (Runnable task : batch) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "ReputationWeb: Reputation update failed.", e);
+				}
+			}
+			batch.clear();
+			publishSnapshot();
+			scheduleCallbacks();
+		}
+	}
+
+	private void scheduleCallbacks() {
+		if (completedCallbacks.isEmpty()) return;
+		final List<Runnable> callbacks = completedCallbacks;
+		completedCallbacks = new ArrayList<Runnable>();
+		if (shuttingDown) return;
+		plugin.getServer().getScheduler()
+				.scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						for (Runnable callback : callbacks) {
+							callback.run();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Runs work on the thread that owns the graph, from any thread. In
+	 * synchronous mode that is the main thread, so the work is handed to the
+	 * scheduler, and a snapshot is published after it.
+	 */
+	private void runOnGraphThreadLater(final Runnable work) {
+		if (asynchronous) {
+			tasks.add(work);
+			return;
+		}
+		plugin.getServer().getScheduler()
+				.scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						work.run();
+						publishSnapshot();
+					}
+				});
+	}
+
+	private void publishSnapshot() {
+		int[] changedPlayers = graph.drainChangedPlayers();
+		if (changedPlayers.length == 0
+				&& appliedChanges == snapshot.getAppliedChanges()) {
+			return;
+		}
+		ReputationSnapshot previous = snapshot;
+		snapshot = snapshot.update(graph, changedPlayers, appliedChanges);
+		if (!listeners.isEmpty()) {
+			notifyListeners(previous, snapshot, changedPlayers);
+		}
+	}
+
+	/**
+	 * Tells the listeners about the players whose reputation differs between
+	 * the two snapshots, out of those that changed. Changed players include
+	 * those whose trusts changed but not their reputation, who are left out.
+	 */
+	private void notifyListeners(ReputationSnapshot previous,
+			ReputationSnapshot current, int[] changedPlayers)
+	{
+		final List<ReputationChange> changes = new ArrayList<ReputationChange>();
+		for (int id : changedPlayers) {
+			double oldReputation = previous.getReputation(id);
+			double newReputation = current.getReputation(id);
+			if (oldReputation != newReputation) {
+				changes.add(new ReputationChange(current.getPlayer(id),
+						oldReputation, newReputation));
+			}
+		}
+		if (changes.isEmpty() || shuttingDown) return;
+		Runnable notification = new Runnable() {
+			public void run() {
+				for (ReputationChange change : changes) {
+					for (ReputationListener listener : listeners) {
+						listener.reputationChanged(change.getPlayer(),
+								change.getOldReputation(),
+								change.getNewReputation());
+					}
+				}
+			}
+		};
+		if (asynchronous) {
+			completedCallbacks.add(notification);
+		} else {
+			notification.run();
+		}
+	}
+
+	/**
+	 * One run of recompute() or reload(). start() and install() run on the
+	 * thread that owns the graph; the job itself runs on a thread of its own.
+	 */
+	private class Recomputation {
+		private final Callback<ReputationRecomputeJob.Report> callback;
+		private final int threads = Runtime.getRuntime().availableProcessors();
+		private int attempts = 0;
+
+		/**
+		 * True if the graph is to be switched to the parameters below, false
+		 * to recompute with the ones it has.
+		 */
+		private boolean newParameters = false;
+		private double flowMultiplier;
+		private int maxChainLength;
+		private int maxConnectionLength;
+
+		Recomputation(Callback<ReputationRecomputeJob.Report> callback) {
+			this.callback = callback;
+		}
+
+		void setParameters(double flowMultiplier, int maxChainLength,
+				int maxConnectionLength)
+		{
+			this.newParameters = true;
+			this.flowMultiplier = flowMultiplier;
+			this.maxChainLength = maxChainLength;
+			this.maxConnectionLength = maxConnectionLength;
+		}
+
+		void start() {
+			attempts++;
+			final ReputationRecomputeJob job = prepare();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						job.run(threads);
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE,
+								"ReputationWeb: Recomputation failed.", e);
+						runOnGraphThreadLater(new Runnable() {
+							public void run() {
+								finish(null);
+							}
+						});
+						return;
+					}
+					runOnGraphThreadLater(new Runnable() {
+						public void run() {
+							install(job);
+						}
+					});
+				}
+			}, "ReputationWeb recompute");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void install(ReputationRecomputeJob job) {
+			ReputationRecomputeJob.Report report = graph.installRecompute(job);
+			if (report == null) {
+				if (attempts >= MAX_RECOMPUTE_ATTEMPTS && refreshTask != -1) {
+					holdingChanges = true;
+				}
+				start();
+				return;
+			}
+			if (newParameters) {
+				graph.setMaxConnectionLength(maxConnectionLength);
+			}
+			finish(report);
+		}
+
+		private ReputationRecomputeJob prepare() {
+			if (newParameters) {
+				return graph.prepareRecompute(flowMultiplier, maxChainLength);
+			}
+			return graph.prepareRecompute(graph.getFlowMultiplier(),
+					graph.getMaxChainLength());
+		}
+
+		/**
+		 * Hands the report to the callback on the main thread, once the
+		 * snapshot includes the installed results.
+		 */
+		private void finish(final ReputationRecomputeJob.Report report) {
+			Runnable done = new Runnable() {
+				public void run() {
+					recomputing = false;
+					callback.done(report);
+				}
+			};
+			if (asynchronous) {
+				completedCallbacks.add(done);
+			} else {
+				// The held changes are applied by the next refresh.
+				holdingChanges = false;
+				publishSnapshot();
+				// Installing the results ends any propagation in progress.
+				runIfUpToDate();
+				done.run();
+			}
+		}
+	}
+
+	/**
+	 * A query against the graph, run on the thread that owns it. The result
+	 * is delivered to the callback on the main thread.
+	 */
+	private static abstract class GraphQuery<T> implements Runnable {
+		private final Callback<T> callback;
+		private T result;
+
+		GraphQuery(Callback<T> callback) {
+			this.callback = callback;
+		}
+
+		abstract T compute();
+
+		public void run() {
+			result = compute();
+		}
+	}
+
+	/**
+	 * An ordered pair of players: a truster and a trustee.
+	 */
+	private static class Relation {
+		private final OfflinePlayer truster;
+		private final OfflinePlayer trustee;
+
+		Relation(OfflinePlayer truster, OfflinePlayer trustee) {
+			this.truster = truster;
+			this.trustee = trustee;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Relation)) return false;
+			Relation relation = (Relation) other;
+			return truster.equals(relation.truster)
+					&& trustee.equals(relation.trustee);
+		}
+
+		@Override
+		public int hashCode() {
+			return truster.hashCode() * 31 + trustee.hashCode();
+		}
+	}
+
+	private static class PendingChange {
+		private final Relation relation;
+		private final boolean trusted;
+		private final long sequence;
+
+		PendingChange(Relation relation, boolean trusted, long sequence) {
+			this.relation = relation;
+			this.trusted = trusted;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * A trust change queued in synchronous mode until the refresh budget
+	 * allows it to be applied.
+	 */
+	private static class DeferredChange {
+		private final Runnable change;
+		private final long sequence;
+		private final Runnable whenApplied;
+
+		DeferredChange(Runnable change, long sequence, Runnable whenApplied) {
+			this.change = change;
+			this.sequence = sequence;
+			this.whenApplied = whenApplied;
+		}
+	}
+}
@@ -1,15 +1,12 @@
 package com.gradysimon.reputationweb;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Set;
 
 import org.bukkit.OfflinePlayer;
 
@@ -37,33 +34,264 @@ import org.bukkit.OfflinePlayer;
  * by vouching for those who vouch for them, and it would be possible to greatly
  * increase one's reputation by creating such cycles.
  * 
- * Much of the mechanics for the calculations of the reputation web are actually
- * found in ReputationEntity
+ * Internally, every player in the graph is given a dense int id. The trust
+ * relationships themselves are stored as int arrays in a TrustAdjacency, and
+ * the per-player state (reputation and whether it is up to date) is kept in
+ * arrays indexed by that id, so that traversals never have to chase pointers
+ * through per-player objects.
+ * 
+ * Reputations are maintained eagerly. For every player, the graph remembers how
+ * many players are found at each distance from him (his "rings"). When a trust
+ * relationship changes, only the players whose rings actually change are
+ * recalculated, so reading a reputation never has to search the graph.
  * 
  * @author Genre (Grady Simon)
  * 
  */
 public class ReputationGraph {
+	/**
+	 * The number of top trusters kept up to date for every player, and so the
+	 * most that getTopTrusters() can return without looking at all of a
+	 * player's trusters.
+	 */
+	static final int TOP_TRUSTERS = 5;
+
 	/**
 	 * Determines how strongly the reputation of the truster affects the
 	 * reputation of the trustee. Should be less than 1 and greater than 0.
+	 * Only changed by installRecompute().
 	 */
-	private final double flowMultiplier;
+	private double flowMultiplier;
 
 	/**
 	 * Determines how many degrees away from a player in the reputation web
 	 * another player can be while still influencing that player's reputation.
 	 * If player1 vouches for player0, then they are 1 degree away from each
 	 * other. If player2 then vouches for player1, player2 is 2 degrees from
-	 * player0, and so on.
+	 * player0, and so on. Only changed by installRecompute().
+	 */
+	private int maxChainLength;
+
+	/**
+	 * The longest chain of trust that getReference() will search for, or 0
+	 * to search for chains of any length.
+	 */
+	private int maxConnectionLength = 0;
+
+	/**
+	 * Maps each player in the graph to his id.
+	 */
+	private Map<OfflinePlayer, Integer> playerIds = new HashMap<OfflinePlayer, Integer>();
+
+	/**
+	 * The player for each id. The inverse of playerIds.
 	 */
-	private final int maxChainLength;
+	private OfflinePlayer[] players = new OfflinePlayer[16];
 
-	private Map<OfflinePlayer, ReputationEntity> playerEntityMap = new HashMap<OfflinePlayer, ReputationEntity>();
+	/**
+	 * Who trusts whom, by id.
+	 */
+	private final TrustAdjacency adjacency = new TrustAdjacency();
+
+	/**
+	 * Each player's reputation. Always up to date.
+	 */
+	private double[] reputations = new double[16];
+
+	/**
+	 * For each player, his TOP_TRUSTERS most reputable trusters, best first,
+	 * TOP_TRUSTERS entries per player of which the first topTrusterCounts[id]
+	 * are used. Kept up to date as trust relationships and reputations
+	 * change, so that showing a popular player's top trusters never has to
+	 * look at all of them. Players of equal reputation are ordered by id.
+	 */
+	private int[] topTrusters = new int[16 * TOP_TRUSTERS];
+	private int[] topTrusterCounts = new int[16];
+
+	/**
+	 * Scratch space for rebuildTopTrusters() to tell whether a list changed.
+	 */
+	private final int[] previousTopTrusters = new int[TOP_TRUSTERS];
+
+	/**
+	 * For each player, the number of players found at each distance from him,
+	 * maxChainLength entries per player. The entry at index id *
+	 * maxChainLength + i is the number of players who are i + 1 steps of
+	 * trust away from the player with that id.
+	 */
+	private int[] ringCounts;
+
+	/**
+	 * For each player, a hash of which players are in which of his rings.
+	 * Two players can trade places between rings without changing the ring
+	 * counts, so the counts alone cannot tell whether a player's rings have
+	 * changed.
+	 */
+	private long[] ringSignatures = new long[16];
+
+	/**
+	 * flowMultiplier^i for each distance i, so that it is not recomputed for
+	 * every update.
+	 */
+	private double[] ringWeights;
+
+	/**
+	 * Scratch space for calculating rings on the thread that owns the graph.
+	 */
+	private RingScratch ringScratch;
+
+	/**
+	 * The players reached so far by propagateTrustChange(). Separate from
+	 * ringScratch, which the players' own recalculations use in the middle of
+	 * the propagation.
+	 */
+	private final SearchScratch propagationScratch = new SearchScratch();
+
+	/**
+	 * Whether trust changes only start propagating, for refresh() to carry on
+	 * a little at a time, instead of propagating to completion straight away.
+	 */
+	private boolean deferRefresh = false;
+
+	/**
+	 * The propagation in progress (see startPropagation()), if any. The
+	 * players whose rings changed at the current distance from the trustees
+	 * are in propagationScratch.current, and the walk has got as far as the
+	 * trustee at propagationTrustee of the player at propagationIndex. At
+	 * distance 0, propagationScratch.current holds the trustees themselves,
+	 * and the walk recalculates them rather than the players they trust.
+	 */
+	private boolean propagating = false;
+	private int propagationMark;
+	private int propagationDistance;
+	private int propagationIndex;
+	private int propagationTrustee;
+	private int propagationRecalculated;
+	private int propagationChanged;
+	private int propagationSlices;
+
+	/**
+	 * Players recalculated by refresh() ahead of the walk, because they are
+	 * the ones most likely to be looked at, and which of them changed. The
+	 * walk treats a player who changed ahead of it as changed when it gets to
+	 * him, so the players he trusts are not missed.
+	 */
+	private final IntFrontier refreshedEarly = new IntFrontier();
+	private final BitSet refreshedEarlyMarks = new BitSet();
+	private final BitSet changedEarlyMarks = new BitSet();
+
+	/**
+	 * Where the cost of trust changes and searches is measured.
+	 */
+	private ReputationMetrics metrics = new ReputationMetrics();
+
+	/**
+	 * True between startBulkLoad() and finishBulkLoad(), while reputations
+	 * are not kept up to date.
+	 */
+	private boolean bulkLoading = false;
+
+	/**
+	 * The number of trust relationships that have been added or removed so
+	 * far, so that a recomputation can tell whether the web has changed since
+	 * it started.
+	 */
+	private long trustChanges = 0;
+
+	/**
+	 * Every player, ordered by reputation. Kept up to date as reputations
+	 * change, for the server-wide leaderboard.
+	 */
+	private final ReputationRankIndex rankIndex = new ReputationRankIndex();
+
+	/**
+	 * Visited marks for findPathBetween(). A player was reached from the start
+	 * of the current search if his mark equals forwardMark, and from the end
+	 * if it equals forwardMark + 1. Every search moves forwardMark on by two,
+	 * so old marks never have to be cleared.
+	 */
+	private int[] searchMarks = new int[16];
+	private int forwardMark = 0;
+
+	/**
+	 * For players reached from the start of the current search, the player
+	 * before them on the path; for players reached from the end, the player
+	 * after them.
+	 */
+	private int[] searchLinks = new int[16];
+
+	/**
+	 * The trust relationship at which the two sides of the last search met.
+	 */
+	private int meetingFrom;
+	private int meetingTo;
+
+	/**
+	 * For findMostReputablePath(): each player's distance to the end of the
+	 * search, and the highest reputation sum of a chain from the start to
+	 * him. Only meaningful for players marked in the current search.
+	 */
+	private int[] chainDistances = new int[16];
+	private double[] chainSums = new double[16];
+
+	/**
+	 * The frontiers of the path searches, reused from one search to the next
+	 * so that a search allocates nothing but its result.
+	 */
+	private final IntFrontier[] searchFrontiers = { new IntFrontier(),
+			new IntFrontier(), new IntFrontier() };
+
+	/**
+	 * The players whose reputation or trust relationships have changed since
+	 * the last call to drainChangedPlayers(), each listed once.
+	 */
+	private IntFrontier changedPlayers = new IntFrontier();
+	private BitSet changedPlayerMarks = new BitSet();
+
+	/**
+	 * Limits the length of the chains of trust that getReference() searches
+	 * for. Searches give up as soon as it is clear that no chain of at most
+	 * this many steps exists.
+	 * 
+	 * @param maxConnectionLength
+	 *            The maximum number of steps, or 0 for no limit.
+	 */
+	void setMaxConnectionLength(int maxConnectionLength) {
+		this.maxConnectionLength = maxConnectionLength;
+	}
+
+	/**
+	 * Measures the graph's work in the given metrics from now on.
+	 */
+	void setMetrics(ReputationMetrics metrics) {
+		this.metrics = metrics;
+	}
 
 	ReputationGraph(double flowMultiplier, int maxChainLength) {
 		this.flowMultiplier = flowMultiplier;
 		this.maxChainLength = maxChainLength;
+		this.ringCounts = new int[16 * maxChainLength];
+		this.ringWeights = ringWeights(flowMultiplier, maxChainLength);
+		this.ringScratch = new RingScratch(maxChainLength);
+	}
+
+	/**
+	 * Returns flowMultiplier^i for each distance i up to maxChainLength.
+	 */
+	static double[] ringWeights(double flowMultiplier, int maxChainLength) {
+		double[] weights = new double[maxChainLength];
+		for (int i = 0; i < maxChainLength; i++) {
+			weights[i] = Math.pow(flowMultiplier, i);
+		}
+		return weights;
+	}
+
+	double getFlowMultiplier() {
+		return flowMultiplier;
+	}
+
+	int getMaxChainLength() {
+		return maxChainLength;
 	}
 
 	/**
@@ -76,17 +304,16 @@ public class ReputationGraph {
 	 */
 	public double getReputation(OfflinePlayer player) {
 		if (playerIsInGraph(player)) {
-			return getEntity(player).getReputation();
+			return getReputation(getId(player));
 		}
 		return 0;
 	}
 
 	/**
 	 * Adds a trust relationship from OfflinePlayer truster to OfflinePlayer
-	 * trustee. Updates the corresponding ReputationEntity objects for the two
-	 * OfflinePlayer objects to reflect this change. If either of the players
-	 * were not previously represented in the reputation graph, this method will
-	 * ensure that they are added to it.
+	 * trustee. Updates the graph to reflect this change. If either of the
+	 * players were not previously represented in the reputation graph, this
+	 * method will ensure that they are added to it.
 	 * 
 	 * @param truster
 	 *            The player who should now trust the trustee
@@ -100,17 +327,22 @@ public class ReputationGraph {
 		if (!playerIsInGraph(trustee)) {
 			addPlayerToGraph(trustee);
 		}
-		ReputationEntity trusterEntity = getEntity(truster);
-		ReputationEntity trusteeEntity = getEntity(trustee);
-		trusterEntity.addTrustee(trusteeEntity);
-		trusteeEntity.addTruster(trusterEntity);
-		propagateTrustChange(trusteeEntity);
+		int trusterId = getId(truster);
+		int trusteeId = getId(trustee);
+		finishRefresh();
+		if (!adjacency.addEdge(trusterId, trusteeId)) return;
+		trustChanges++;
+		if (!bulkLoading) {
+			markChanged(trusterId);
+			markChanged(trusteeId);
+			insertTopTruster(trusteeId, trusterId);
+			trustChanged(trusteeId);
+		}
 	}
 
 	/**
 	 * Removes a trust relationship, if one exists, between the truster and the
-	 * trustee. Updates the Reputation Graph to reflect this and each player's
-	 * corresponding ReputationEntity.
+	 * trustee. Updates the Reputation Graph to reflect this.
 	 * 
 	 * @param truster
 	 *            The player that should no longer trust the trustee
@@ -120,11 +352,174 @@ public class ReputationGraph {
 	void removeTrustRelation(OfflinePlayer truster, OfflinePlayer trustee)
 	{
 		if (playerIsInGraph(truster) && playerIsInGraph(trustee)) {
-			ReputationEntity trusterEntity = getEntity(truster);
-			ReputationEntity trusteeEntity = getEntity(trustee);
-			trusterEntity.removeTrustee(trusteeEntity);
-			trusteeEntity.removeTruster(trusterEntity);
-			propagateTrustChange(trusteeEntity);
+			int trusterId = getId(truster);
+			int trusteeId = getId(trustee);
+			finishRefresh();
+			if (!adjacency.removeEdge(trusterId, trusteeId)) return;
+			trustChanges++;
+			if (!bulkLoading) {
+				markChanged(trusterId);
+				markChanged(trusteeId);
+				// A truster who was not kept may move up into the freed place.
+				if (removeTopTruster(trusteeId, trusterId) >= 0
+						&& adjacency.trusterCount(trusteeId) >= TOP_TRUSTERS) {
+					rebuildTopTrusters(trusteeId);
+				}
+				trustChanged(trusteeId);
+			}
+		}
+	}
+
+	/**
+	 * Brings reputations up to date after the trusters of the player with the
+	 * given id changed, or with deferRefresh, starts to. Changes made before
+	 * refresh() is called are propagated together, in a single walk.
+	 */
+	private void trustChanged(int trustee) {
+		if (propagating) {
+			addPropagationSource(trustee);
+		} else {
+			startPropagation(trustee);
+		}
+		if (!deferRefresh) continuePropagation(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Stops reputations from being updated as trust relationships are added
+	 * and removed, so that a whole web can be loaded without recalculating
+	 * the same players over and over. Until finishBulkLoad() is called, only
+	 * addTrustRelation() and removeTrustRelation() may be used.
+	 */
+	void startBulkLoad() {
+		bulkLoading = true;
+	}
+
+	/**
+	 * Calculates the rings and reputation of every player from scratch, and
+	 * goes back to keeping them up to date as trust relationships change.
+	 * Each player's calculation only looks as far as maxChainLength steps, so
+	 * the whole calculation grows with the number of trust relationships
+	 * rather than with the number of additions.
+	 * 
+	 * @param threads
+	 *            The most threads to calculate with
+	 */
+	void finishBulkLoad(int threads) {
+		bulkLoading = false;
+		adjacency.compact();
+		ReputationRecomputeJob job = new ReputationRecomputeJob(adjacency,
+				flowMultiplier, maxChainLength, trustChanges);
+		job.run(threads);
+		ReputationRecomputeJob.Report report = installRecompute(job);
+		// Nobody's top trusters were kept during the load. Installing the
+		// results has already rebuilt them if anybody's reputation changed.
+		if (report == null || report.corrected + report.refreshed == 0) {
+			rebuildAllTopTrusters();
+		}
+	}
+
+	/**
+	 * Returns a job that recalculates every player from a frozen copy of the
+	 * trust relationships, so that it can run on other threads while the
+	 * graph carries on changing. Must be called on the thread that owns the
+	 * graph.
+	 * 
+	 * @param flowMultiplier
+	 *            The flow multiplier to calculate with, which becomes the
+	 *            graph's when the job is installed
+	 * @param maxChainLength
+	 *            Likewise for the maximum chain length
+	 */
+	ReputationRecomputeJob prepareRecompute(double flowMultiplier,
+			int maxChainLength)
+	{
+		return new ReputationRecomputeJob(adjacency.frozenCopy(),
+				flowMultiplier, maxChainLength, trustChanges);
+	}
+
+	/**
+	 * Replaces every player's rings and reputation with the ones a finished
+	 * job calculated, and takes on the job's parameters if they differ from
+	 * the graph's. Every changed player is published in the same snapshot, so
+	 * nobody ever sees a mix of old and new reputations. Must be called on the
+	 * thread that owns the graph.
+	 * 
+	 * @return what the job found, or null if trust relationships have changed
+	 *         since the job was prepared, in which case its results are out of
+	 *         date and nothing was installed
+	 */
+	ReputationRecomputeJob.Report installRecompute(ReputationRecomputeJob job)
+	{
+		if (job.getTrustChanges() != trustChanges
+				|| job.playerCount != playerCount()) {
+			return null;
+		}
+		if (job.flowMultiplier != flowMultiplier
+				|| job.maxChainLength != maxChainLength) {
+			flowMultiplier = job.flowMultiplier;
+			ringWeights = job.ringWeights;
+			if (job.maxChainLength != maxChainLength) {
+				maxChainLength = job.maxChainLength;
+				ringCounts = new int[players.length * maxChainLength];
+				ringScratch = new RingScratch(maxChainLength);
+			}
+		}
+		int corrected = 0;
+		int refreshed = 0;
+		for (int id = 0; id < job.playerCount; id++) {
+			int base = id * maxChainLength;
+			boolean changed = ringSignatures[id] != job.ringSignatures[id]
+					|| reputations[id] != job.reputations[id];
+			for (int i = 0; i < maxChainLength && !changed; i++) {
+				changed = ringCounts[base + i] != job.ringCounts[base + i];
+			}
+			if (!changed) continue;
+			/*
+			 * While a propagation is unfinished, there is no telling a wrong
+			 * reputation from one it has not got to yet.
+			 */
+			if (propagating) {
+				refreshed++;
+			} else {
+				corrected++;
+			}
+			System.arraycopy(job.ringCounts, base, ringCounts, base,
+					maxChainLength);
+			ringSignatures[id] = job.ringSignatures[id];
+			reputations[id] = job.reputations[id];
+			rankIndex.update(id, reputations[id]);
+			markChanged(id);
+		}
+		// Every player is up to date now, so the propagation has nothing
+		// left to do.
+		if (propagating) endPropagation();
+		if (corrected + refreshed > 0) rebuildAllTopTrusters();
+		return new ReputationRecomputeJob.Report(job, corrected, refreshed);
+	}
+
+	/**
+	 * Calculates the rings and reputation of the players with ids from up to,
+	 * but not including, to, from the given trust relationships, into the
+	 * given arrays. The chain length is that of the weights, which must match
+	 * the scratch space. Reads nothing from the graph, so it is safe to run on
+	 * several threads at once for different players, as long as the trust
+	 * relationships do not change.
+	 */
+	static void calculateRings(TrustAdjacency source, int from, int to,
+			double[] weights, RingScratch scratch, int[] counts,
+			long[] signatures, double[] reputations)
+	{
+		int chainLength = weights.length;
+		for (int id = from; id < to; id++) {
+			long signature = computeRings(source, id, scratch);
+			int base = id * chainLength;
+			double reputation = 0.0;
+			for (int i = 0; i < chainLength; i++) {
+				counts[base + i] = scratch.counts[i];
+				reputation += weights[i] * scratch.counts[i];
+			}
+			signatures[id] = signature;
+			reputations[id] = reputation;
 		}
 	}
 
@@ -144,9 +539,7 @@ public class ReputationGraph {
 			OfflinePlayer trustee)
 	{
 		if (playerIsInGraph(truster) && playerIsInGraph(trustee)) {
-			ReputationEntity trusterEntity = getEntity(truster);
-			ReputationEntity trusteeEntity = getEntity(trustee);
-			return trusterEntity.trustsEntity(trusteeEntity);
+			return adjacency.containsEdge(getId(truster), getId(trustee));
 		}
 		return false;
 	}
@@ -162,15 +555,45 @@ public class ReputationGraph {
 	 * @param otherPlayer
 	 *            The player to find a connection to
 	 * @return a list of players that represents a shortest path, in order, of
-	 *         trust between trustingPlayer and otherPlayer.
+	 *         trust between trustingPlayer and otherPlayer, or null if there
+	 *         is no such path (or none within the maximum connection length).
 	 */
 	public List<OfflinePlayer> getReference(OfflinePlayer trustingPlayer,
 			OfflinePlayer otherPlayer)
 	{
 		if (playerIsInGraph(trustingPlayer) && playerIsInGraph(otherPlayer)) {
-			ReputationEntity requester = getEntity(trustingPlayer);
-			ReputationEntity otherEntity = getEntity(otherPlayer);
-			return convertToPlayerList(findPathBetween(requester, otherEntity));
+			int[] path = findPathBetween(getId(trustingPlayer),
+					getId(otherPlayer));
+			if (path != null) {
+				return convertToPlayerList(path, path.length);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Like getReference(), but out of all the shortest paths of trust between
+	 * the two players, returns the one whose players have the highest total
+	 * reputation.
+	 * 
+	 * @param trustingPlayer
+	 *            The player to find a connection to otherPlayer from
+	 * @param otherPlayer
+	 *            The player to find a connection to
+	 * @return a list of players that represents the most reputable shortest
+	 *         path, in order, of trust between trustingPlayer and otherPlayer,
+	 *         or null if there is no such path (or none within the maximum
+	 *         connection length).
+	 */
+	public List<OfflinePlayer> getMostReputableReference(
+			OfflinePlayer trustingPlayer, OfflinePlayer otherPlayer)
+	{
+		if (playerIsInGraph(trustingPlayer) && playerIsInGraph(otherPlayer)) {
+			int[] path = findMostReputablePath(getId(trustingPlayer),
+					getId(otherPlayer));
+			if (path != null) {
+				return convertToPlayerList(path, path.length);
+			}
 		}
 		return null;
 	}
@@ -194,16 +617,57 @@ public class ReputationGraph {
 		if (!playerIsInGraph(player)) {
 			return new ArrayList<OfflinePlayer>();
 		}
-		ReputationEntity entity = getEntity(player);
-		PriorityQueue<ReputationEntity> priorityQueue = new PriorityQueue<ReputationEntity>();
-		priorityQueue.addAll(entity.trusters);
-		List<ReputationEntity> topTrusters = new ArrayList<ReputationEntity>(
-				number);
-		for (int i = 0; i < number; i++) {
-			if (priorityQueue.isEmpty()) break;
-			topTrusters.add(priorityQueue.poll());
+		int id = getId(player);
+		if (number <= TOP_TRUSTERS) {
+			int found = Math.min(number, topTrusterCounts[id]);
+			List<OfflinePlayer> topPlayers = new ArrayList<OfflinePlayer>(found);
+			for (int i = 0; i < found; i++) {
+				topPlayers.add(players[topTrusters[id * TOP_TRUSTERS + i]]);
+			}
+			return topPlayers;
 		}
-		return convertToPlayerList(topTrusters);
+		int trusterCount = adjacency.trusterCount(id);
+		/*
+		 * Keep the best trusters seen so far in descending order, inserting
+		 * each new truster into place. Only number entries are ever kept, so
+		 * this never has to order all of the trusters.
+		 */
+		int[] topTrusters = new int[Math.min(number, trusterCount)];
+		int found = 0;
+		for (int i = 0; i < trusterCount; i++) {
+			int truster = adjacency.getTruster(id, i);
+			double reputation = getReputation(truster);
+			int position = found;
+			while (position > 0
+					&& getReputation(topTrusters[position - 1]) < reputation) {
+				position--;
+			}
+			if (position >= topTrusters.length) continue;
+			int shifted = Math.min(found, topTrusters.length - 1) - position;
+			System.arraycopy(topTrusters, position, topTrusters, position + 1,
+					shifted);
+			topTrusters[position] = truster;
+			if (found < topTrusters.length) found++;
+		}
+		return convertToPlayerList(topTrusters, found);
+	}
+
+	/**
+	 * Returns the most reputable players in the whole web, in order of
+	 * descending reputation.
+	 * 
+	 * @param offset
+	 *            The number of players to skip. 0 starts at the most reputable
+	 *            player.
+	 * @param number
+	 *            The number of players to return. If there are not enough
+	 *            players past offset, the method will just return as many as
+	 *            are available.
+	 * @return A List of the players ranked offset + 1 through offset + number
+	 */
+	public List<OfflinePlayer> getTopPlayers(int offset, int number) {
+		int[] ids = rankIndex.page(offset, number);
+		return convertToPlayerList(ids, ids.length);
 	}
 
 	/**
@@ -217,7 +681,7 @@ public class ReputationGraph {
 	 */
 	public int trustersCount(OfflinePlayer player) {
 		if (playerIsInGraph(player)) {
-			return getEntity(player).getNumberOfTrusters();
+			return adjacency.trusterCount(getId(player));
 		}
 		return 0;
 	}
@@ -233,7 +697,7 @@ public class ReputationGraph {
 	 */
 	public int trusteesCount(OfflinePlayer player) {
 		if (playerIsInGraph(player)) {
-			return getEntity(player).getNumberOfTrustees();
+			return adjacency.trusteeCount(getId(player));
 		}
 		return 0;
 	}
@@ -246,10 +710,14 @@ public class ReputationGraph {
 	 *         List if the supplied player does not exist in the graph.
 	 */
 	public List<OfflinePlayer> getTrusters(OfflinePlayer player) {
+		List<OfflinePlayer> trusters = new ArrayList<OfflinePlayer>();
 		if (playerIsInGraph(player)) {
-			return convertToPlayerList(getEntity(player).getTrusters());
+			int id = getId(player);
+			for (int i = 0; i < adjacency.trusterCount(id); i++) {
+				trusters.add(players[adjacency.getTruster(id, i)]);
+			}
 		}
-		return new ArrayList<OfflinePlayer>();
+		return trusters;
 	}
 
 	/**
@@ -260,10 +728,14 @@ public class ReputationGraph {
 	 *         empty List if the supplied player does not exist in the graph.
 	 */
 	public List<OfflinePlayer> getTrustees(OfflinePlayer player) {
+		List<OfflinePlayer> trustees = new ArrayList<OfflinePlayer>();
 		if (playerIsInGraph(player)) {
-			return convertToPlayerList(getEntity(player).getTrustees());
+			int id = getId(player);
+			for (int i = 0; i < adjacency.trusteeCount(id); i++) {
+				trustees.add(players[adjacency.getTrustee(id, i)]);
+			}
 		}
-		return new ArrayList<OfflinePlayer>();
+		return trustees;
 	}
 
 	/**
@@ -274,307 +746,907 @@ public class ReputationGraph {
 	 *         otherwise.
 	 */
 	public boolean playerIsInGraph(OfflinePlayer player) {
-		return playerEntityMap.containsKey(player);
+		return playerIds.containsKey(player);
 	}
 
 	private void addPlayerToGraph(OfflinePlayer player) {
-		playerEntityMap.put(player, new ReputationEntity(player));
+		int id = adjacency.addNode();
+		if (id == players.length) {
+			players = Arrays.copyOf(players, id * 2);
+			reputations = Arrays.copyOf(reputations, id * 2);
+			ringCounts = Arrays.copyOf(ringCounts, id * 2 * maxChainLength);
+			ringSignatures = Arrays.copyOf(ringSignatures, id * 2);
+			topTrusters = Arrays.copyOf(topTrusters, id * 2 * TOP_TRUSTERS);
+			topTrusterCounts = Arrays.copyOf(topTrusterCounts, id * 2);
+			searchMarks = Arrays.copyOf(searchMarks, id * 2);
+			searchLinks = Arrays.copyOf(searchLinks, id * 2);
+			chainDistances = Arrays.copyOf(chainDistances, id * 2);
+			chainSums = Arrays.copyOf(chainSums, id * 2);
+		}
+		// A player with no trusters has empty rings and a reputation of 0.
+		players[id] = player;
+		playerIds.put(player, id);
+		rankIndex.update(id, 0.0);
+		markChanged(id);
+	}
+
+	/**
+	 * Returns the number of players in the graph. Ids run from 0 to one less
+	 * than this.
+	 */
+	int playerCount() {
+		return adjacency.nodeCount();
+	}
+
+	OfflinePlayer getPlayer(int id) {
+		return players[id];
 	}
 
 	/**
-	 * Gets the ReputationEntity for the supplied OfflinePlayer. Be sure to only
-	 * use this method if you are sure the OfflinePlayer is in the graph
-	 * already. Use playerIsInGraph() to check.
+	 * Returns the ids of the players who trust the player with the given id.
+	 */
+	int[] getTrusterIds(int id) {
+		int[] trusters = new int[adjacency.trusterCount(id)];
+		for (int i = 0; i < trusters.length; i++) {
+			trusters[i] = adjacency.getTruster(id, i);
+		}
+		return trusters;
+	}
+
+	/**
+	 * Returns the ids of the top trusters of the player with the given id,
+	 * best first. There are at most TOP_TRUSTERS of them.
+	 */
+	int[] getTopTrusterIds(int id) {
+		return Arrays.copyOfRange(topTrusters, id * TOP_TRUSTERS, id
+				* TOP_TRUSTERS + topTrusterCounts[id]);
+	}
+
+	/**
+	 * Returns the ids of the players who the player with the given id trusts.
+	 */
+	int[] getTrusteeIds(int id) {
+		int[] trustees = new int[adjacency.trusteeCount(id)];
+		for (int i = 0; i < trustees.length; i++) {
+			trustees[i] = adjacency.getTrustee(id, i);
+		}
+		return trustees;
+	}
+
+	/**
+	 * Returns the ids of every player whose reputation or trust relationships
+	 * changed since the last call to this method, and starts tracking changes
+	 * afresh.
+	 */
+	int[] drainChangedPlayers() {
+		int[] changed = Arrays.copyOf(changedPlayers.nodes, changedPlayers.size);
+		for (int id : changed) {
+			changedPlayerMarks.clear(id);
+		}
+		changedPlayers.size = 0;
+		return changed;
+	}
+
+	private void markChanged(int id) {
+		if (!changedPlayerMarks.get(id)) {
+			changedPlayerMarks.set(id);
+			changedPlayers.add(id);
+		}
+	}
+
+	/**
+	 * Gets the id for the supplied OfflinePlayer. Be sure to only use this
+	 * method if you are sure the OfflinePlayer is in the graph already. Use
+	 * playerIsInGraph() to check.
 	 * 
 	 * @param player
 	 * @return
 	 */
-	private ReputationEntity getEntity(OfflinePlayer player) {
-		return playerEntityMap.get(player);
+	private int getId(OfflinePlayer player) {
+		return playerIds.get(player);
+	}
+
+	/**
+	 * Returns the player's current reputation. This returned reputation value
+	 * is guaranteed to be up to date.
+	 * 
+	 * @param id
+	 *            The id of the player.
+	 * @return The player's reputation.
+	 */
+	double getReputation(int id) {
+		return reputations[id];
 	}
 
 	/**
-	 * Flag the reputations of all players whose reputation could have been
-	 * affected by the vouch change as being potentially inaccurate. Should be
-	 * called on the trustee, not the truster.
+	 * Start updating the reputations of all players whose reputation could
+	 * have been affected by the vouch change; continuePropagation() does the
+	 * walk. Should be called on the trustee, not the truster, after the change
+	 * has been made.
+	 * 
+	 * Only a player whose rings changed can pass the change on. If none of a
+	 * player's distances to other players changed, then no shortest chain of
+	 * trust through the changed relationship runs through him, so the players
+	 * he trusts only need to be looked at if some other changed player leads
+	 * to them. The walk therefore stops at every player whose rings stayed the
+	 * same.
+	 * 
+	 * Several changes can be propagated in one walk, out from all of their
+	 * trustees at once. Each player is recalculated from the trust
+	 * relationships themselves, so it comes out right whichever change the
+	 * walk reaches him through, and a player with changed rings is always
+	 * reached from one of the trustees within maxChainLength - 1 steps.
 	 * 
 	 * @param trustee
-	 *            The ReputationEntity to propagate out from.
+	 *            The id of the player to propagate out from.
 	 */
-	private void propagateTrustChange(ReputationEntity trustee) {
-		/*
-		 * Loop maxChainLength times, each iteration moving one degree further
-		 * out from the voucher. Keep track of the players whose reputations
-		 * have already been updated, to ensure that they are not re-updated.
-		 */
-		Set<ReputationEntity> todoSet = new HashSet<ReputationEntity>();
-		Set<ReputationEntity> nextSet = new HashSet<ReputationEntity>();
-		Set<ReputationEntity> updatedSet = new HashSet<ReputationEntity>();
-		todoSet.add(trustee);
-		for (int i = 1; i <= maxChainLength; i++) {
-			boolean isLast = (i == maxChainLength);
-			for (ReputationEntity current : todoSet) {
-				current.reputationIsAccurate = false;
-				updatedSet.add(current);
-				if (isLast) continue;
-				for (ReputationEntity trusteeOfCurrent : current.trustees) {
-					if (!updatedSet.contains(trusteeOfCurrent))
-						nextSet.add(trusteeOfCurrent);
+	private void startPropagation(int trustee) {
+		propagationMark = propagationScratch.startSearch(adjacency.nodeCount());
+		propagationScratch.current.size = 0;
+		propagationScratch.next.size = 0;
+		propagationScratch.marks[trustee] = propagationMark;
+		propagationScratch.current.add(trustee);
+		propagationDistance = 0;
+		propagationIndex = 0;
+		propagationTrustee = 0;
+		propagationRecalculated = 0;
+		propagationChanged = 0;
+		propagationSlices = 0;
+		propagating = true;
+	}
+
+	/**
+	 * Adds another changed trustee to a propagation that has not recalculated
+	 * anyone yet.
+	 */
+	private void addPropagationSource(int trustee) {
+		propagationScratch.makeRoom(adjacency.nodeCount());
+		if (propagationScratch.marks[trustee] == propagationMark) return;
+		propagationScratch.marks[trustee] = propagationMark;
+		propagationScratch.current.add(trustee);
+	}
+
+	/**
+	 * Carries on with the propagation in progress until it is finished or
+	 * the deadline has passed, recalculating at least one player either way.
+	 * 
+	 * @param deadline
+	 *            The System.nanoTime() at which to stop
+	 * @return true if the propagation is finished
+	 */
+	private boolean continuePropagation(long deadline) {
+		propagationScratch.makeRoom(adjacency.nodeCount());
+		int[] visited = propagationScratch.marks;
+		IntFrontier current = propagationScratch.current;
+		IntFrontier next = propagationScratch.next;
+		boolean recalculatedAny = false;
+		while (true) {
+			while (propagationIndex < current.size) {
+				int node = current.nodes[propagationIndex];
+				if (propagationDistance == 0) {
+					if (recalculatedAny && System.nanoTime() >= deadline) {
+						return false;
+					}
+					recalculatedAny = true;
+					propagationRecalculated++;
+					if (recalculate(node)) {
+						next.add(node);
+						propagationChanged++;
+					}
 				}
+				int trusteeCount = propagationDistance == 0 ? 0 : adjacency
+						.trusteeCount(node);
+				while (propagationTrustee < trusteeCount) {
+					int trusteeOfNode = adjacency.getTrustee(node,
+							propagationTrustee);
+					if (visited[trusteeOfNode] != propagationMark) {
+						if (recalculatedAny && System.nanoTime() >= deadline) {
+							return false;
+						}
+						recalculatedAny = true;
+						visited[trusteeOfNode] = propagationMark;
+						propagationRecalculated++;
+						if (recalculate(trusteeOfNode)) {
+							next.add(trusteeOfNode);
+							propagationChanged++;
+						}
+					}
+					propagationTrustee++;
+				}
+				propagationTrustee = 0;
+				propagationIndex++;
 			}
-			if (nextSet.isEmpty()) break;
-			todoSet.clear();
-			todoSet.addAll(nextSet);
-			nextSet.clear();
+			if (next.size == 0 || propagationDistance + 1 >= maxChainLength) {
+				break;
+			}
+			current.swap(next);
+			next.size = 0;
+			propagationIndex = 0;
+			propagationDistance++;
 		}
+		endPropagation();
+		return true;
 	}
 
 	/**
-	 * Returns a list of List of ReputationEntities that represents, in order, a
-	 * shortest path of trust between the startEntity and the endEntity. This
-	 * method is implemented with a breadth-first search, and as such, only
-	 * returns a shortest path, with no guarantees about that path other than
-	 * that is of minimum length.
+	 * Recalculates a player for the propagation, and returns true if his
+	 * rings changed, either now or when refresh() got to him ahead of it.
+	 */
+	private boolean recalculate(int id) {
+		return updateReputation(id) || changedEarlyMarks.get(id);
+	}
+
+	private void endPropagation() {
+		propagating = false;
+		metrics.recordTrustChange(propagationRecalculated, propagationChanged);
+		for (int i = 0; i < refreshedEarly.size; i++) {
+			refreshedEarlyMarks.clear(refreshedEarly.nodes[i]);
+			changedEarlyMarks.clear(refreshedEarly.nodes[i]);
+		}
+		refreshedEarly.size = 0;
+	}
+
+	/**
+	 * Makes trust changes only start propagating, for refresh() to carry on
+	 * later, instead of propagating to completion before they return. Lets
+	 * the thread that owns the graph spread the work of a change that
+	 * affects many players over as much time as it can spare. Reputations
+	 * are out of date until then. Trust changes made before the next
+	 * refresh() are propagated together with the first, but once refresh()
+	 * has been called, a trust change finishes the propagation first, however
+	 * long that takes.
+	 */
+	void setDeferRefresh(boolean deferRefresh) {
+		this.deferRefresh = deferRefresh;
+	}
+
+	/**
+	 * Returns true while trust changes have not finished propagating.
+	 */
+	boolean isRefreshing() {
+		return propagating;
+	}
+
+	/**
+	 * Carries on propagating the last trust changes until they are finished
+	 * or time is up. If it has already taken more than one call, the given
+	 * players and the most reputable players are recalculated first, since
+	 * theirs are the reputations most likely to be looked at. Must be called
+	 * on the thread that owns the graph.
 	 * 
-	 * @note I had intended to implement this to find the shortest path of trust
-	 *       that also has the highest sum of path element reputations. This was
-	 *       going to be implemented via Djikstra's algorithm, with path weights
-	 *       being generated in such a way that the algorithm always selected
-	 *       the path with the highest sum of player reputations, but this was
-	 *       too complicated for this version of the plugin.
-	 * @param startEntity
-	 * @param endEntity
-	 * @return a List of ReputationEntities that represents a shortest path from
-	 *         the startEntity to the endEntity, which includes the endEntity
+	 * @param priorityPlayers
+	 *            The players to recalculate first, such as those online
+	 * @param leaderboardSize
+	 *            The number of most reputable players to recalculate first
+	 * @param deadline
+	 *            The System.nanoTime() at which to stop
+	 * @return true if nothing is left to propagate
 	 */
-	private List<ReputationEntity> findPathBetween(
-			ReputationEntity startEntity, ReputationEntity endEntity)
+	boolean refresh(Collection<? extends OfflinePlayer> priorityPlayers,
+			int leaderboardSize, long deadline)
 	{
-		Queue<ReputationEntity> queue = new LinkedList<ReputationEntity>();
-		Map<ReputationEntity, ReputationEntity> pathBackMap = new HashMap<ReputationEntity, ReputationEntity>();
-		queue.offer(startEntity);
-		while (!queue.isEmpty()) {
-			ReputationEntity current = queue.poll();
-			if (current == endEntity) break;
-			for (ReputationEntity trustee : current.trustees) {
-				if (!pathBackMap.containsKey(trustee)) {
-					pathBackMap.put(trustee, current);
-				}
-				queue.offer(trustee);
+		if (!propagating) return true;
+		if (propagationSlices++ > 0) {
+			for (OfflinePlayer player : priorityPlayers) {
+				Integer id = playerIds.get(player);
+				if (id != null) refreshEarly(id);
+			}
+			for (int id : rankIndex.page(0, leaderboardSize)) {
+				refreshEarly(id);
 			}
 		}
-		List<ReputationEntity> pathToOtherEntity;
-		pathToOtherEntity = buildPathBackList(pathBackMap, startEntity,
-				endEntity);
-		Collections.reverse(pathToOtherEntity);
-		return pathToOtherEntity;
+		return continuePropagation(deadline);
+	}
+
+	/**
+	 * Finishes the propagation in progress, if it has recalculated anyone yet.
+	 * A player recalculated before a change could be affected by it, and
+	 * would not be recalculated again.
+	 */
+	private void finishRefresh() {
+		if (propagating && propagationRecalculated > 0) {
+			continuePropagation(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Recalculates a player ahead of the propagation, unless it has already
+	 * got to him or he was recalculated ahead of it before. Players it will
+	 * never get to are not affected, and simply come out unchanged.
+	 */
+	private void refreshEarly(int id) {
+		if (propagationScratch.marks[id] == propagationMark
+				|| refreshedEarlyMarks.get(id)) {
+			return;
+		}
+		refreshedEarlyMarks.set(id);
+		refreshedEarly.add(id);
+		if (updateReputation(id)) changedEarlyMarks.set(id);
 	}
 
 	/**
-	 * Given a map that maps each entity to a the previous entity in the path
-	 * from the start entity to the end entity, this method returns a list that
-	 * represents that path.
+	 * Recalculate the rings, and from them the reputation, of the player with
+	 * the given id.
 	 * 
-	 * @param map
-	 *            A map that maps each entity to the entity immediately before
-	 *            it in the path from the start to the end entity.
-	 * @param start
-	 *            The first ReputationEntity in the path
-	 * @param end
-	 *            The last ReptuationEntity in the path
-	 * @return A List that represents the path, in order
+	 * The player's reputation is the sum, over every distance i from 0 to
+	 * maxChainLength - 1, of flowMultiplier^i times the number of players who
+	 * are i + 1 steps of trust away from him. Each player is only counted at
+	 * the shortest distance at which he is found.
+	 * 
+	 * @return true if the player's rings changed, false if they are the same
+	 *         as before
 	 */
-	private List<ReputationEntity> buildPathBackList(
-			Map<ReputationEntity, ReputationEntity> map,
-			ReputationEntity start, ReputationEntity end)
+	private boolean updateReputation(int id) {
+		long signature = computeRings(adjacency, id, ringScratch);
+		int visited = 0;
+		for (int count : ringScratch.counts) {
+			visited += count;
+		}
+		metrics.recordRecalculation(visited);
+		return storeRings(id, ringScratch.counts, signature);
+	}
+
+	/**
+	 * Counts the players at each distance from the player with the given id
+	 * into scratch.counts, as far as scratch.counts is long, and returns the
+	 * signature of his rings. Only reads the trust relationships.
+	 */
+	private static long computeRings(TrustAdjacency adjacency, int id,
+			RingScratch scratch)
 	{
-		if (map.containsKey(end)) {
-			List<ReputationEntity> pathBackList = new ArrayList<ReputationEntity>();
-			ReputationEntity currentEntityInPath = end;
-			while (currentEntityInPath != start) {
-				pathBackList.add(currentEntityInPath);
-				currentEntityInPath = map.get(currentEntityInPath);
+		int[] counts = scratch.counts;
+		int maxChainLength = counts.length;
+		long signature = 0;
+		/*
+		 * A player has already been involved in the calculation, and must not
+		 * be counted again, if he is marked with the current search's mark.
+		 * current holds the players that are the current number of steps
+		 * away, and next the ones that will be in the next iteration.
+		 */
+		int mark = scratch.startSearch(adjacency.nodeCount());
+		int[] marks = scratch.marks;
+		IntFrontier current = scratch.current;
+		IntFrontier next = scratch.next;
+		current.size = 0;
+		next.size = 0;
+		marks[id] = mark;
+		for (int i = 0; i < adjacency.trusterCount(id); i++) {
+			int truster = adjacency.getTruster(id, i);
+			if (marks[truster] != mark) {
+				marks[truster] = mark;
+				current.add(truster);
 			}
-			return pathBackList;
 		}
-		return null;
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < maxChainLength; i++) {
+			boolean isLast = (i == maxChainLength - 1);
+			counts[i] = current.size;
+			for (int j = 0; j < current.size; j++) {
+				int node = current.nodes[j];
+				signature += ringSignature(node, i);
+				if (isLast) continue;
+				for (int k = 0; k < adjacency.trusterCount(node); k++) {
+					int potentialNext = adjacency.getTruster(node, k);
+					if (marks[potentialNext] != mark) {
+						marks[potentialNext] = mark;
+						next.add(potentialNext);
+					}
+				}
+			}
+			if (next.size == 0) break;
+			IntFrontier swap = current;
+			current = next;
+			next = swap;
+			next.size = 0;
+		}
+		return signature;
 	}
 
 	/**
-	 * Converts a list of ReputationEntity objects to a list of OfflinePlayer
-	 * objects, preserving the order
+	 * Stores newly calculated rings for a player and recomputes his
+	 * reputation from them.
 	 * 
-	 * @param listOfEntities
-	 *            A List of ReputationEntity objects
-	 * @return A List of OfflinePlayer objects, in the same order as the
-	 *         corresponding listOfEntities
+	 * @return true if the rings differ from the ones that were stored before
 	 */
-	private List<OfflinePlayer> convertToPlayerList(
-			List<ReputationEntity> listOfEntities)
-	{
-		List<OfflinePlayer> convertedList = new ArrayList<OfflinePlayer>();
-		for (ReputationEntity current : listOfEntities) {
-			convertedList.add(current.player);
+	private boolean storeRings(int id, int[] counts, long signature) {
+		int base = id * maxChainLength;
+		boolean changed = ringSignatures[id] != signature;
+		double reputation = 0.0;
+		for (int i = 0; i < maxChainLength; i++) {
+			if (ringCounts[base + i] != counts[i]) changed = true;
+			ringCounts[base + i] = counts[i];
+			reputation += ringWeights[i] * counts[i];
 		}
-		return convertedList;
+		if (!changed) return false;
+		double oldReputation = reputations[id];
+		ringSignatures[id] = signature;
+		reputations[id] = reputation;
+		rankIndex.update(id, reputation);
+		markChanged(id);
+		if (reputation != oldReputation) {
+			updateTopTrusterOfTrustees(id, reputation > oldReputation);
+		}
+		return true;
 	}
 
-	private class ReputationEntity implements Comparable<ReputationEntity> {
-		/**
-		 * The OfflinePlayer object represented by this ReputationEntity.
-		 */
-		private final OfflinePlayer player;
-		/**
-		 * The player's reputation as of last reputation update
-		 */
-		private double reputation;
-
-		/**
-		 * Whether the reputation field is up to date. Used to make sure that
-		 * getReputation() only returns up-to-date values.
-		 */
-		private boolean reputationIsAccurate;
+	/**
+	 * Moves a player whose reputation has changed to his new place among the
+	 * top trusters of everyone he trusts.
+	 * 
+	 * @param increased
+	 *            Whether his reputation went up rather than down
+	 */
+	private void updateTopTrusterOfTrustees(int truster, boolean increased) {
+		int trusteeCount = adjacency.trusteeCount(truster);
+		for (int i = 0; i < trusteeCount; i++) {
+			int trustee = adjacency.getTrustee(truster, i);
+			boolean wasFull = topTrusterCounts[trustee] == TOP_TRUSTERS;
+			int oldPosition = removeTopTruster(trustee, truster);
+			if (oldPosition < 0) {
+				// Not kept yet; he may have overtaken the last of them.
+				if (insertTopTruster(trustee, truster) >= 0) {
+					markChanged(trustee);
+				}
+				continue;
+			}
+			int newPosition = insertTopTruster(trustee, truster);
+			if (!increased && wasFull && newPosition == TOP_TRUSTERS - 1
+					&& adjacency.trusterCount(trustee) > TOP_TRUSTERS) {
+				// Having fallen to last place, he may have fallen below a
+				// truster who is not kept.
+				rebuildTopTrusters(trustee);
+				markChanged(trustee);
+			} else if (newPosition != oldPosition) {
+				markChanged(trustee);
+			}
+		}
+	}
 
-		/**
-		 * The set of players who trust this player
-		 */
-		private Set<ReputationEntity> trusters = new HashSet<ReputationEntity>();
+	/**
+	 * Returns true if the first player comes before the second among someone's
+	 * top trusters.
+	 */
+	private boolean ranksAbove(int first, int second) {
+		return reputations[first] > reputations[second]
+				|| (reputations[first] == reputations[second] && first < second);
+	}
 
-		/**
-		 * The set of players who this player trusts
-		 */
-		private Set<ReputationEntity> trustees = new HashSet<ReputationEntity>();
+	/**
+	 * Puts a truster who is not among the trustee's top trusters into place
+	 * among them, if he ranks high enough, dropping the last if there is no
+	 * room. Does not mark the trustee changed.
+	 * 
+	 * @return the position he was put in, or -1 if he does not rank high
+	 *         enough
+	 */
+	private int insertTopTruster(int trustee, int truster) {
+		int base = trustee * TOP_TRUSTERS;
+		int count = topTrusterCounts[trustee];
+		int position = count;
+		while (position > 0
+				&& ranksAbove(truster, topTrusters[base + position - 1])) {
+			position--;
+		}
+		if (position >= TOP_TRUSTERS) return -1;
+		int shifted = Math.min(count, TOP_TRUSTERS - 1) - position;
+		System.arraycopy(topTrusters, base + position, topTrusters, base
+				+ position + 1, shifted);
+		topTrusters[base + position] = truster;
+		if (count < TOP_TRUSTERS) topTrusterCounts[trustee] = count + 1;
+		return position;
+	}
 
-		private ReputationEntity(OfflinePlayer player) {
-			this.player = player;
-			this.reputation = 0.0;
-			this.reputationIsAccurate = false;
+	/**
+	 * Takes a truster out of the trustee's top trusters, without putting
+	 * anybody in his place.
+	 * 
+	 * @return the position he was in, or -1 if he was not among them
+	 */
+	private int removeTopTruster(int trustee, int truster) {
+		int base = trustee * TOP_TRUSTERS;
+		int count = topTrusterCounts[trustee];
+		for (int i = 0; i < count; i++) {
+			if (topTrusters[base + i] != truster) continue;
+			System.arraycopy(topTrusters, base + i + 1, topTrusters, base + i,
+					count - i - 1);
+			topTrusterCounts[trustee] = count - 1;
+			return i;
 		}
+		return -1;
+	}
 
-		/**
-		 * Returns true if this ReputationEntity trusts the trusteeEntity
-		 * 
-		 * @param trusteeEntity
-		 *            the entity to check for trust of.
-		 * @return true if this ReputationEntity trusts the trusteeEntity, false
-		 *         otherwise.
-		 */
-		boolean trustsEntity(ReputationEntity trusteeEntity) {
-			return trustees.contains(trusteeEntity);
+	/**
+	 * Finds a player's top trusters again from all of his trusters, and marks
+	 * him changed if they are not what they were.
+	 */
+	private void rebuildTopTrusters(int id) {
+		int base = id * TOP_TRUSTERS;
+		int oldCount = topTrusterCounts[id];
+		System.arraycopy(topTrusters, base, previousTopTrusters, 0, oldCount);
+		topTrusterCounts[id] = 0;
+		int trusterCount = adjacency.trusterCount(id);
+		for (int i = 0; i < trusterCount; i++) {
+			insertTopTruster(id, adjacency.getTruster(id, i));
+		}
+		boolean changed = topTrusterCounts[id] != oldCount;
+		for (int i = 0; i < oldCount && !changed; i++) {
+			changed = topTrusters[base + i] != previousTopTrusters[i];
 		}
+		if (changed) markChanged(id);
+	}
 
-		void removeTruster(ReputationEntity trusterEntity) {
-			this.trusters.remove(trusterEntity);
+	private void rebuildAllTopTrusters() {
+		int playerCount = playerCount();
+		for (int id = 0; id < playerCount; id++) {
+			rebuildTopTrusters(id);
 		}
+	}
+
+	/**
+	 * Hashes one player's membership of one ring. A player's ring signature
+	 * is the sum of this over every player in his rings.
+	 */
+	private static long ringSignature(int node, int distance) {
+		long hash = ((long) node << 32) | (distance + 1);
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
 
-		void removeTrustee(ReputationEntity trusteeEntity) {
-			this.trustees.remove(trusteeEntity);
+	/**
+	 * Returns an array of ids that represents, in order, a shortest path of
+	 * trust between the start and the end player. This method is implemented
+	 * with a bidirectional breadth-first search, and as such, only returns a
+	 * shortest path, with no guarantees about that path other than that is of
+	 * minimum length.
+	 * 
+	 * The search grows one level at a time from both ends: forward from the
+	 * start over the players each player trusts, and backward from the end
+	 * over the players who trust each player. Each step grows whichever side
+	 * has the smaller frontier. The first player reached by both sides lies on
+	 * a shortest path: before that level, every path of up to the combined
+	 * depth would already have been found.
+	 * 
+	 * @note See findMostReputablePath() for the shortest path of trust that
+	 *       also has the highest sum of path element reputations.
+	 * @param start
+	 * @param end
+	 * @return an array of ids that represents a shortest path from the start to
+	 *         the end, which includes the end but not the start, or null if
+	 *         there is no path no longer than maxConnectionLength.
+	 */
+	private int[] findPathBetween(int start, int end) {
+		if (start == end) return null;
+		int backwardMark = startSearch();
+		IntFrontier forward = searchFrontiers[0];
+		IntFrontier backward = searchFrontiers[1];
+		IntFrontier next = searchFrontiers[2];
+		forward.size = 0;
+		backward.size = 0;
+		next.size = 0;
+		searchMarks[start] = forwardMark;
+		searchMarks[end] = backwardMark;
+		forward.add(start);
+		backward.add(end);
+		int length = 0;
+		int largestFrontier = 1;
+		while (forward.size > 0 && backward.size > 0) {
+			if (maxConnectionLength > 0 && length >= maxConnectionLength) {
+				break;
+			}
+			length++;
+			boolean growForward = forward.size <= backward.size;
+			largestFrontier = Math.max(largestFrontier, growForward ? forward.size
+					: backward.size);
+			boolean met = growForward ? expandForward(forward, next)
+					: expandBackward(backward, next);
+			if (met) {
+				metrics.recordPathSearch(largestFrontier);
+				return buildPath(start, end);
+			}
+			IntFrontier swap = next;
+			if (growForward) {
+				next = forward;
+				forward = swap;
+			} else {
+				next = backward;
+				backward = swap;
+			}
+			next.size = 0;
 		}
+		metrics.recordPathSearch(largestFrontier);
+		return null;
+	}
 
-		void addTruster(ReputationEntity truster) {
-			this.trusters.add(truster);
+	/**
+	 * Returns an array of ids that represents, in order, the shortest path of
+	 * trust between the start and the end player that has the highest sum of
+	 * path element reputations.
+	 * 
+	 * This is a best-first search in which a path is better than another if it
+	 * is shorter, or equally long with a higher reputation sum. Because length
+	 * always comes first, the search settles the players one level at a time,
+	 * so it needs no priority queue. First the bidirectional search finds the
+	 * length of the shortest path, which also bounds everything after it.
+	 * Then a backward search from the end, no deeper than that length, finds
+	 * every player's distance to the end. Finally a forward search from the
+	 * start only follows trust relationships that step one closer to the end.
+	 * That way it only ever visits players on some shortest path, and it keeps
+	 * the best reputation sum and the link that produced it for each one.
+	 * 
+	 * Reputations are read as they are stored; nothing is recalculated.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return an array of ids that represents the path from the start to the
+	 *         end, which includes the end but not the start, or null if there
+	 *         is no path no longer than maxConnectionLength.
+	 */
+	private int[] findMostReputablePath(int start, int end) {
+		int[] shortestPath = findPathBetween(start, end);
+		if (shortestPath == null) return null;
+		int length = shortestPath.length;
+		int backwardMark = startSearch();
+		IntFrontier current = searchFrontiers[0];
+		IntFrontier next = searchFrontiers[1];
+		current.size = 0;
+		next.size = 0;
+		searchMarks[end] = backwardMark;
+		chainDistances[end] = 0;
+		current.add(end);
+		for (int distance = 1; distance < length; distance++) {
+			for (int i = 0; i < current.size; i++) {
+				int node = current.nodes[i];
+				for (int j = 0; j < adjacency.trusterCount(node); j++) {
+					int truster = adjacency.getTruster(node, j);
+					if (searchMarks[truster] == backwardMark) continue;
+					searchMarks[truster] = backwardMark;
+					chainDistances[truster] = distance;
+					next.add(truster);
+				}
+			}
+			IntFrontier swap = current;
+			current = next;
+			next = swap;
+			next.size = 0;
+		}
+		current.size = 0;
+		current.add(start);
+		searchMarks[start] = forwardMark;
+		chainDistances[start] = -1;
+		chainSums[start] = 0.0;
+		for (int distance = length - 1; distance >= 0; distance--) {
+			for (int i = 0; i < current.size; i++) {
+				int node = current.nodes[i];
+				for (int j = 0; j < adjacency.trusteeCount(node); j++) {
+					int trustee = adjacency.getTrustee(node, j);
+					int mark = searchMarks[trustee];
+					boolean reached = (mark == forwardMark);
+					if (!reached && mark != backwardMark) continue;
+					if (chainDistances[trustee] != distance) continue;
+					double sum = chainSums[node] + reputations[trustee];
+					if (!reached) {
+						searchMarks[trustee] = forwardMark;
+						next.add(trustee);
+					} else if (sum <= chainSums[trustee]) {
+						continue;
+					}
+					chainSums[trustee] = sum;
+					searchLinks[trustee] = node;
+				}
+			}
+			IntFrontier swap = current;
+			current = next;
+			next = swap;
+			next.size = 0;
+		}
+		int[] path = new int[length];
+		int node = end;
+		for (int i = length - 1; i >= 0; i--) {
+			path[i] = node;
+			node = searchLinks[node];
 		}
+		return path;
+	}
 
-		void addTrustee(ReputationEntity trustee) {
-			this.trustees.add(trustee);
+	/**
+	 * Begins a new search by moving the visited marks on, so that every player
+	 * counts as unvisited.
+	 * 
+	 * @return the mark for players reached from the end
+	 */
+	private int startSearch() {
+		if (forwardMark >= Integer.MAX_VALUE - 3) {
+			Arrays.fill(searchMarks, 0);
+			forwardMark = 0;
 		}
+		forwardMark += 2;
+		return forwardMark + 1;
+	}
 
-		private int getNumberOfTrusters() {
-			return this.trusters.size();
+	/**
+	 * Grows the forward side of the search by one level, from frontier into
+	 * next. If it runs into a player already reached by the backward side,
+	 * the trust relationship that joins the two sides is left in meetingFrom
+	 * and meetingTo.
+	 * 
+	 * @return true if the two sides met
+	 */
+	private boolean expandForward(IntFrontier frontier, IntFrontier next) {
+		int backwardMark = forwardMark + 1;
+		for (int i = 0; i < frontier.size; i++) {
+			int node = frontier.nodes[i];
+			for (int j = 0; j < adjacency.trusteeCount(node); j++) {
+				int trustee = adjacency.getTrustee(node, j);
+				int mark = searchMarks[trustee];
+				if (mark == forwardMark) continue;
+				if (mark == backwardMark) {
+					meetingFrom = node;
+					meetingTo = trustee;
+					return true;
+				}
+				searchMarks[trustee] = forwardMark;
+				searchLinks[trustee] = node;
+				next.add(trustee);
+			}
 		}
+		return false;
+	}
 
-		private int getNumberOfTrustees() {
-			return this.trustees.size();
+	/**
+	 * Grows the backward side of the search by one level, from frontier into
+	 * next. If it runs into a player already reached by the forward side, the
+	 * trust relationship that joins the two sides is left in meetingFrom and
+	 * meetingTo.
+	 * 
+	 * @return true if the two sides met
+	 */
+	private boolean expandBackward(IntFrontier frontier, IntFrontier next) {
+		int backwardMark = forwardMark + 1;
+		for (int i = 0; i < frontier.size; i++) {
+			int node = frontier.nodes[i];
+			for (int j = 0; j < adjacency.trusterCount(node); j++) {
+				int truster = adjacency.getTruster(node, j);
+				int mark = searchMarks[truster];
+				if (mark == backwardMark) continue;
+				if (mark == forwardMark) {
+					meetingFrom = truster;
+					meetingTo = node;
+					return true;
+				}
+				searchMarks[truster] = backwardMark;
+				searchLinks[truster] = node;
+				next.add(truster);
+			}
 		}
+		return false;
+	}
 
-		private List<ReputationEntity> getTrusters() {
-			return new ArrayList<ReputationEntity>(trusters);
+	/**
+	 * Builds the path found by the last search: the forward links from
+	 * meetingFrom back to the start, then the backward links from meetingTo on
+	 * to the end.
+	 * 
+	 * @return An array that represents the path, in order, not including start
+	 */
+	private int[] buildPath(int start, int end) {
+		int forwardLength = 0;
+		for (int node = meetingFrom; node != start; node = searchLinks[node]) {
+			forwardLength++;
+		}
+		int backwardLength = 1;
+		for (int node = meetingTo; node != end; node = searchLinks[node]) {
+			backwardLength++;
+		}
+		int[] path = new int[forwardLength + backwardLength];
+		int position = forwardLength - 1;
+		for (int node = meetingFrom; node != start; node = searchLinks[node]) {
+			path[position--] = node;
+		}
+		position = forwardLength;
+		for (int node = meetingTo; node != end; node = searchLinks[node]) {
+			path[position++] = node;
 		}
+		path[position] = end;
+		return path;
+	}
 
-		private List<ReputationEntity> getTrustees() {
-			return new ArrayList<ReputationEntity>(trustees);
+	/**
+	 * Converts the first count ids of an array to a list of OfflinePlayer
+	 * objects, preserving the order
+	 * 
+	 * @param ids
+	 *            An array of player ids
+	 * @param count
+	 *            How many of the ids to convert
+	 * @return A List of OfflinePlayer objects, in the same order as the
+	 *         corresponding ids
+	 */
+	private List<OfflinePlayer> convertToPlayerList(int[] ids, int count) {
+		List<OfflinePlayer> convertedList = new ArrayList<OfflinePlayer>(count);
+		for (int i = 0; i < count; i++) {
+			convertedList.add(players[ids[i]]);
 		}
+		return convertedList;
+	}
 
+	/**
+	 * The space one thread needs for a breadth-first search, so that it can be
+	 * reused from one search to the next instead of being allocated every
+	 * time.
+	 */
+	static class SearchScratch {
 		/**
-		 * Recalculate reputation for this ReputationEntity.
+		 * A player has been reached in the current search if his mark equals
+		 * the current mark. Every search takes a new mark, so old marks never
+		 * have to be cleared.
 		 */
-		private void updateReputation() {
-			// Don't need to do anything if reputation is already up-to-date.
-			if (this.reputationIsAccurate) return;
+		int[] marks = new int[16];
+		private int mark = 0;
+		final IntFrontier current = new IntFrontier();
+		final IntFrontier next = new IntFrontier();
 
-			this.reputation = 0.0;
-			/*
-			 * Will hold all of the ReputationEntities that are the current
-			 * number of steps away from the ReputationEntity being calculated
-			 * for.
-			 */
-			Set<ReputationEntity> currentDegreeSet = new HashSet<ReputationEntity>();
-			/*
-			 * Will hold the ReputationEntities who will be in the next
-			 * iteration. If the current degree away from the player being
-			 * calculated for is i, they are i+1 away from the player.
-			 */
-			Set<ReputationEntity> nextSet = new HashSet<ReputationEntity>();
-			/*
-			 * Will hold the ReputationEntities that have already been involved
-			 * in the calculation. They go into this set once they are used to
-			 * ensure that they are never double counted.
-			 */
-			Set<ReputationEntity> ignoreSet = new HashSet<ReputationEntity>();
-			currentDegreeSet.addAll(this.trusters);
-			ignoreSet.add(this);
-			for (int i = 0; i < maxChainLength; i++) {
-				boolean isLast = (i == maxChainLength - 1);
-				this.reputation += Math.pow(flowMultiplier, i)
-						* currentDegreeSet.size();
-				if (isLast) break;
-				ignoreSet.addAll(currentDegreeSet);
-				for (ReputationEntity truster : currentDegreeSet) {
-					for (ReputationEntity potentialNext : truster.trusters) {
-						if (!ignoreSet.contains(potentialNext)) {
-							nextSet.add(potentialNext);
-						}
-					}
-				}
-				if (nextSet.isEmpty()) break;
-				currentDegreeSet.clear();
-				currentDegreeSet.addAll(nextSet);
-				nextSet.clear();
+		/**
+		 * Makes room for nodeCount players and returns the mark for a new
+		 * search.
+		 */
+		int startSearch(int nodeCount) {
+			makeRoom(nodeCount);
+			mark++;
+			if (mark == 0) {
+				Arrays.fill(marks, 0);
+				mark = 1;
 			}
-			this.reputationIsAccurate = true;
+			return mark;
 		}
 
 		/**
-		 * Returns the player's current reputation. Returns the player's current
-		 * reputation. This returned reputation value is guaranteed to be up to
-		 * date.
-		 * 
-		 * @return The player's reputation.
+		 * Makes room for nodeCount players, keeping the marks of the current
+		 * search.
 		 */
-		double getReputation() {
-			if (!reputationIsAccurate) this.updateReputation();
-			return this.reputation;
+		void makeRoom(int nodeCount) {
+			if (marks.length < nodeCount) {
+				marks = Arrays.copyOf(marks, Math.max(nodeCount, marks.length * 2));
+			}
+		}
+	}
+
+	/**
+	 * The space one thread needs to calculate rings: a search, plus the count
+	 * of players found at each distance.
+	 */
+	static class RingScratch extends SearchScratch {
+		private final int[] counts;
+
+		RingScratch(int maxChainLength) {
+			counts = new int[maxChainLength];
+		}
+	}
+
+	/**
+	 * A growable list of ids, used to hold one level of a breadth-first search.
+	 */
+	private static class IntFrontier {
+		private int[] nodes = new int[16];
+		private int size = 0;
+
+		void add(int node) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			nodes[size++] = node;
 		}
 
 		/**
-		 * Compares two ReputationEntity objects according to their reputation.
-		 * Not consistent with equals().
-		 * 
-		 * This is not really the best way to do this, but this method makes
-		 * higher reputation entities look "lower" than lower ones. This is so
-		 * that I can use Java's default PriorityQueue, which is actually a min
-		 * PQ when I need a max PQ.
+		 * Trades contents with another frontier.
 		 */
-		public int compareTo(ReputationEntity other) {
-			ReputationEntity otherEntity = (ReputationEntity) other;
-			double diff = this.getReputation() - otherEntity.getReputation();
-			if (diff > 0) {
-				return -1;
-			}
-			if (diff < 0) {
-				return 1;
-			}
-			return 0;
+		void swap(IntFrontier other) {
+			int[] otherNodes = other.nodes;
+			int otherSize = other.size;
+			other.nodes = nodes;
+			other.size = size;
+			nodes = otherNodes;
+			size = otherSize;
 		}
 	}
-}
\ No newline at end of file
+}
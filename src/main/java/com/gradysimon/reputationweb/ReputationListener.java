@@ -0,0 +1,20 @@
+package com.gradysimon.reputationweb;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * Told about each change to a player's reputation. See
+ * ReputationEngine.addListener().
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+interface ReputationListener {
+	/**
+	 * Called on the main thread once the new reputation has been published.
+	 * Called for each player whose reputation changed, and only for them, so
+	 * it should be cheap: a single trust can change thousands of reputations.
+	 */
+	void reputationChanged(OfflinePlayer player, double oldReputation,
+			double newReputation);
+}
@@ -0,0 +1,277 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures what the plugin costs the server, so that an admin can tell which
+ * path is hurting, in game with /rep stats or from a JMX console.
+ *
+ * Measurements come from several threads: commands from the main thread,
+ * trust changes and searches from whichever thread owns the graph, and
+ * storage from the writer threads. Each one is added to a Histogram, which
+ * is safe to update and read from any thread without locking.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationMetrics implements ReputationMetricsMBean {
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	/**
+	 * How long each command held up the main thread, in nanoseconds, by
+	 * command name.
+	 */
+	private final ConcurrentMap<String, Histogram> commandTimes = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * How long each kind of storage operation took, in nanoseconds.
+	 */
+	private final ConcurrentMap<String, Histogram> storageTimes = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * Per trust change, the number of players whose rings were recalculated,
+	 * and the number of those whose rings turned out to have changed.
+	 */
+	private final Histogram playersRecalculated = new Histogram();
+	private final Histogram playersChanged = new Histogram();
+
+	/**
+	 * Per recalculation of one player's rings, the number of players found
+	 * in them.
+	 */
+	private final Histogram playersVisited = new Histogram();
+
+	/**
+	 * Per search for a path of trust, the size of the largest frontier it
+	 * expanded.
+	 */
+	private final Histogram largestFrontiers = new Histogram();
+
+	void recordCommand(String command, long nanos) {
+		histogram(commandTimes, command).record(nanos);
+	}
+
+	void recordStorage(String operation, long nanos) {
+		histogram(storageTimes, operation).record(nanos);
+	}
+
+	/**
+	 * Records one trust change being propagated through the graph, or one
+	 * batch of them when refreshes are deferred (see
+	 * ReputationGraph.setDeferRefresh()).
+	 */
+	void recordTrustChange(int recalculated, int changed) {
+		playersRecalculated.record(recalculated);
+		playersChanged.record(changed);
+	}
+
+	void recordRecalculation(int visited) {
+		playersVisited.record(visited);
+	}
+
+	void recordPathSearch(int largestFrontier) {
+		largestFrontiers.record(largestFrontier);
+	}
+
+	/**
+	 * Returns the time taken by each command, by command name, in
+	 * alphabetical order.
+	 */
+	Map<String, Histogram> getCommandTimes() {
+		return new TreeMap<String, Histogram>(commandTimes);
+	}
+
+	Map<String, Histogram> getStorageTimes() {
+		return new TreeMap<String, Histogram>(storageTimes);
+	}
+
+	Histogram getPlayersRecalculated() {
+		return playersRecalculated;
+	}
+
+	Histogram getPlayersChanged() {
+		return playersChanged;
+	}
+
+	Histogram getPlayersVisited() {
+		return playersVisited;
+	}
+
+	Histogram getLargestFrontiers() {
+		return largestFrontiers;
+	}
+
+	public long getCommandCount() {
+		long count = 0;
+		for (Histogram times : commandTimes.values()) {
+			count += times.count();
+		}
+		return count;
+	}
+
+	public String[] getCommandLatencies() {
+		return describeTimes(commandTimes);
+	}
+
+	public String[] getStorageLatencies() {
+		return describeTimes(storageTimes);
+	}
+
+	public long getTrustChanges() {
+		return playersRecalculated.count();
+	}
+
+	public double getMeanPlayersRecalculatedPerTrustChange() {
+		return playersRecalculated.mean();
+	}
+
+	public long getMaxPlayersRecalculatedPerTrustChange() {
+		return playersRecalculated.max();
+	}
+
+	public double getMeanPlayersChangedPerTrustChange() {
+		return playersChanged.mean();
+	}
+
+	public long getMaxPlayersChangedPerTrustChange() {
+		return playersChanged.max();
+	}
+
+	public long getRecalculations() {
+		return playersVisited.count();
+	}
+
+	public double getMeanPlayersVisitedPerRecalculation() {
+		return playersVisited.mean();
+	}
+
+	public long getMaxPlayersVisitedPerRecalculation() {
+		return playersVisited.max();
+	}
+
+	public long getPathSearches() {
+		return largestFrontiers.count();
+	}
+
+	public double getMeanLargestFrontier() {
+		return largestFrontiers.mean();
+	}
+
+	public long getMaxLargestFrontier() {
+		return largestFrontiers.max();
+	}
+
+	public void reset() {
+		commandTimes.clear();
+		storageTimes.clear();
+		playersRecalculated.reset();
+		playersChanged.reset();
+		playersVisited.reset();
+		largestFrontiers.reset();
+	}
+
+	static double toMillis(long nanos) {
+		return nanos / NANOS_PER_MILLI;
+	}
+
+	private static Histogram histogram(ConcurrentMap<String, Histogram> map,
+			String name)
+	{
+		Histogram histogram = map.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = map.putIfAbsent(name, created);
+			if (histogram == null) histogram = created;
+		}
+		return histogram;
+	}
+
+	private static String[] describeTimes(Map<String, Histogram> times) {
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(
+				times).entrySet())
+		{
+			Histogram histogram = entry.getValue();
+			lines.add(String.format(
+					"%s: count %d, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+					entry.getKey(), histogram.count(),
+					toMillis(histogram.percentile(0.5)),
+					toMillis(histogram.percentile(0.99)),
+					toMillis(histogram.max())));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Counts non-negative values in buckets of powers of two, so that it takes
+	 * the same small, fixed space however many values it has seen. Bucket b
+	 * holds the values from 2^(b-1) up to 2^b - 1, and bucket 0 holds 0, so
+	 * percentiles are only accurate to within a factor of two; the count,
+	 * mean and maximum are exact.
+	 */
+	static class Histogram {
+		private static final int BUCKETS = 64;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			if (value < 0) value = 0;
+			buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			total.addAndGet(value);
+			long currentMax = max.get();
+			while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+				currentMax = max.get();
+			}
+		}
+
+		long count() {
+			return count.get();
+		}
+
+		double mean() {
+			long n = count.get();
+			return n == 0 ? 0.0 : (double) total.get() / n;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		/**
+		 * Returns a value that at least the given fraction of the recorded
+		 * values are no greater than: the top of the bucket the percentile
+		 * falls in, or the maximum if that is smaller.
+		 */
+		long percentile(double fraction) {
+			long n = count.get();
+			if (n == 0) return 0;
+			long rank = (long) Math.ceil(fraction * n);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += buckets.get(b);
+				if (seen >= rank) return Math.min((1L << b) - 1, max.get());
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for (int b = 0; b < BUCKETS; b++) {
+				buckets.set(b, 0);
+			}
+			count.set(0);
+			total.set(0);
+			max.set(0);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.gradysimon.reputationweb;
+
+/**
+ * The measurements of ReputationMetrics, as they are shown to JMX consoles.
+ * Registered as com.gradysimon.reputationweb:type=Metrics while the plugin is
+ * enabled. Latencies are in milliseconds; the rest are numbers of players.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public interface ReputationMetricsMBean {
+	long getCommandCount();
+
+	/**
+	 * One line per command, with how long it held up the main thread.
+	 */
+	String[] getCommandLatencies();
+
+	/**
+	 * One line per kind of storage operation, with how long it took.
+	 */
+	String[] getStorageLatencies();
+
+	long getTrustChanges();
+
+	double getMeanPlayersRecalculatedPerTrustChange();
+
+	long getMaxPlayersRecalculatedPerTrustChange();
+
+	double getMeanPlayersChangedPerTrustChange();
+
+	long getMaxPlayersChangedPerTrustChange();
+
+	long getRecalculations();
+
+	double getMeanPlayersVisitedPerRecalculation();
+
+	long getMaxPlayersVisitedPerRecalculation();
+
+	long getPathSearches();
+
+	double getMeanLargestFrontier();
+
+	long getMaxLargestFrontier();
+
+	/**
+	 * Forgets everything measured so far.
+	 */
+	void reset();
+}
@@ -0,0 +1,221 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Keeps every player in the reputation web ordered by reputation, so that any
+ * page of the server-wide leaderboard can be read without sorting the web.
+ *
+ * The index is a treap (a binary search tree kept balanced by random
+ * priorities) in which every node also records the size of its subtree. That
+ * makes finding the player at a given rank, and updating a player's
+ * reputation, O(log n), and reading a page of the leaderboard O(log n + page
+ * size). Nodes are player ids, and the tree itself is stored in int arrays
+ * indexed by id, so the index allocates nothing per player.
+ *
+ * Players are ordered by descending reputation, and players with equal
+ * reputation by ascending id.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationRankIndex {
+	private static final int NONE = -1;
+
+	private int root = NONE;
+	private int[] left = new int[0];
+	private int[] right = new int[0];
+	private int[] priority = new int[0];
+	/**
+	 * The number of nodes in the subtree rooted at each node, or 0 if the id
+	 * is not in the index.
+	 */
+	private int[] size = new int[0];
+	/**
+	 * The reputation each player was last indexed with.
+	 */
+	private double[] keys = new double[0];
+
+	private final Random random = new Random();
+
+	/**
+	 * The two halves produced by the last call to split().
+	 */
+	private int splitLeft;
+	private int splitRight;
+
+	/**
+	 * Reused by page() to walk the tree.
+	 */
+	private int[] stack = new int[64];
+
+	/**
+	 * Returns the number of players in the index.
+	 */
+	int size() {
+		return sizeOf(root);
+	}
+
+	/**
+	 * Adds the player with the given id to the index, or moves him to his new
+	 * place if his reputation changed.
+	 */
+	void update(int id, double reputation) {
+		ensureCapacity(id + 1);
+		if (size[id] != 0) {
+			if (keys[id] == reputation) return;
+			root = remove(root, id);
+		}
+		keys[id] = reputation;
+		left[id] = NONE;
+		right[id] = NONE;
+		size[id] = 1;
+		priority[id] = random.nextInt();
+		root = insert(root, id);
+	}
+
+	/**
+	 * Returns the ids of the players ranked offset + 1 through offset + count,
+	 * best first. Returns fewer ids if the index does not have that many
+	 * players.
+	 */
+	int[] page(int offset, int count) {
+		int[] ids = new int[Math.max(0, Math.min(count, size() - offset))];
+		if (ids.length == 0) return ids;
+		/*
+		 * Descend to the player at rank offset, remembering every node where
+		 * the search went left: those are exactly the nodes that come after
+		 * him, in order, once their right subtrees are included.
+		 */
+		int depth = 0;
+		int node = root;
+		int remaining = offset;
+		while (node != NONE) {
+			int leftSize = sizeOf(left[node]);
+			if (remaining < leftSize) {
+				depth = push(depth, node);
+				node = left[node];
+			} else if (remaining == leftSize) {
+				depth = push(depth, node);
+				break;
+			} else {
+				remaining -= leftSize + 1;
+				node = right[node];
+			}
+		}
+		for (int i = 0; i < ids.length; i++) {
+			node = stack[--depth];
+			ids[i] = node;
+			for (node = right[node]; node != NONE; node = left[node]) {
+				depth = push(depth, node);
+			}
+		}
+		return ids;
+	}
+
+	private int push(int depth, int node) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth] = node;
+		return depth + 1;
+	}
+
+	/**
+	 * Returns true if player a ranks before player b.
+	 */
+	private boolean ranksBefore(int a, int b) {
+		if (keys[a] != keys[b]) return keys[a] > keys[b];
+		return a < b;
+	}
+
+	private int insert(int node, int id) {
+		if (node == NONE) return id;
+		if (priority[id] > priority[node]) {
+			split(node, id);
+			left[id] = splitLeft;
+			right[id] = splitRight;
+			updateSize(id);
+			return id;
+		}
+		if (ranksBefore(id, node)) {
+			left[node] = insert(left[node], id);
+		} else {
+			right[node] = insert(right[node], id);
+		}
+		updateSize(node);
+		return node;
+	}
+
+	/**
+	 * Splits the subtree at node into the players ranking before id
+	 * (splitLeft) and the ones ranking after it (splitRight).
+	 */
+	private void split(int node, int id) {
+		if (node == NONE) {
+			splitLeft = NONE;
+			splitRight = NONE;
+		} else if (ranksBefore(node, id)) {
+			split(right[node], id);
+			right[node] = splitLeft;
+			updateSize(node);
+			splitLeft = node;
+		} else {
+			split(left[node], id);
+			left[node] = splitRight;
+			updateSize(node);
+			splitRight = node;
+		}
+	}
+
+	private int remove(int node, int id) {
+		if (node == id) {
+			int merged = merge(left[id], right[id]);
+			size[id] = 0;
+			return merged;
+		}
+		if (ranksBefore(id, node)) {
+			left[node] = remove(left[node], id);
+		} else {
+			right[node] = remove(right[node], id);
+		}
+		updateSize(node);
+		return node;
+	}
+
+	/**
+	 * Joins two subtrees, where every player in a ranks before every player
+	 * in b.
+	 */
+	private int merge(int a, int b) {
+		if (a == NONE) return b;
+		if (b == NONE) return a;
+		if (priority[a] > priority[b]) {
+			right[a] = merge(right[a], b);
+			updateSize(a);
+			return a;
+		}
+		left[b] = merge(a, left[b]);
+		updateSize(b);
+		return b;
+	}
+
+	private void updateSize(int node) {
+		size[node] = 1 + sizeOf(left[node]) + sizeOf(right[node]);
+	}
+
+	private int sizeOf(int node) {
+		return node == NONE ? 0 : size[node];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= size.length) return;
+		int newCapacity = Math.max(capacity, size.length * 2);
+		left = Arrays.copyOf(left, newCapacity);
+		right = Arrays.copyOf(right, newCapacity);
+		priority = Arrays.copyOf(priority, newCapacity);
+		size = Arrays.copyOf(size, newCapacity);
+		keys = Arrays.copyOf(keys, newCapacity);
+	}
+}
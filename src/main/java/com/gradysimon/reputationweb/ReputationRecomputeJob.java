@@ -0,0 +1,193 @@
+package com.gradysimon.reputationweb;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the rings and reputation of every player from scratch, on as
+ * many threads as there are cores.
+ *
+ * Every player's rings depend only on the trust relationships, so the players
+ * are split in halves, and the halves in halves again, across a fork/join
+ * pool until the parts are small enough to calculate one player at a time.
+ * Each worker thread has its own scratch space. The results go into arrays of
+ * the job's own and only reach the graph when it installs them (see
+ * ReputationGraph.installRecompute()), all at once, on the thread that owns
+ * the graph.
+ *
+ * The job reads a TrustAdjacency that nothing else changes while it runs: a
+ * frozen copy when it runs beside the graph (see
+ * ReputationGraph.prepareRecompute()), or the graph's own when it runs on the
+ * thread that owns the graph. It calculates with parameters of its own, which
+ * the graph takes on when the job is installed, so that new parameters can be
+ * tried out without the graph noticing until they are ready.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationRecomputeJob {
+	/**
+	 * Below this many players per thread, splitting the work up costs more
+	 * than it saves.
+	 */
+	private static final int MIN_PLAYERS_PER_THREAD = 1024;
+
+	/**
+	 * Parts are not split any further once they are this small.
+	 */
+	private static final int LEAF_SIZE = 256;
+
+	private final TrustAdjacency adjacency;
+	private final long trustChanges;
+
+	final double flowMultiplier;
+	final int maxChainLength;
+	final double[] ringWeights;
+
+	final int playerCount;
+	final int[] ringCounts;
+	final long[] ringSignatures;
+	final double[] reputations;
+
+	private int threads = 1;
+	private long elapsedMillis = 0;
+
+	/**
+	 * @param trustChanges
+	 *            The number of trust changes the graph had made when the
+	 *            adjacency was taken, so that the results can be recognised
+	 *            as out of date later
+	 */
+	ReputationRecomputeJob(TrustAdjacency adjacency, double flowMultiplier,
+			int maxChainLength, long trustChanges)
+	{
+		this.adjacency = adjacency;
+		this.trustChanges = trustChanges;
+		this.flowMultiplier = flowMultiplier;
+		this.maxChainLength = maxChainLength;
+		this.ringWeights = ReputationGraph.ringWeights(flowMultiplier,
+				maxChainLength);
+		this.playerCount = adjacency.nodeCount();
+		this.ringCounts = new int[playerCount * maxChainLength];
+		this.ringSignatures = new long[playerCount];
+		this.reputations = new double[playerCount];
+	}
+
+	/**
+	 * Calculates every player's rings. May be called on any thread.
+	 *
+	 * @param maxThreads
+	 *            The most threads to calculate with
+	 */
+	void run(int maxThreads) {
+		long startTime = System.currentTimeMillis();
+		threads = Math.max(1,
+				Math.min(maxThreads, playerCount / MIN_PLAYERS_PER_THREAD));
+		if (threads == 1) {
+			calculate(0, playerCount, new ReputationGraph.RingScratch(
+					maxChainLength));
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new Part(0, playerCount,
+						new ThreadLocal<ReputationGraph.RingScratch>() {
+							@Override
+							protected ReputationGraph.RingScratch initialValue() {
+								return new ReputationGraph.RingScratch(
+										maxChainLength);
+							}
+						}));
+			} finally {
+				pool.shutdown();
+			}
+		}
+		elapsedMillis = System.currentTimeMillis() - startTime;
+	}
+
+	long getTrustChanges() {
+		return trustChanges;
+	}
+
+	int getTrustCount() {
+		return adjacency.edgeCount();
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	private void calculate(int from, int to, ReputationGraph.RingScratch scratch)
+	{
+		ReputationGraph.calculateRings(adjacency, from, to, ringWeights,
+				scratch, ringCounts, ringSignatures, reputations);
+	}
+
+	/**
+	 * The players with ids from up to, but not including, to.
+	 */
+	private class Part extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final ThreadLocal<ReputationGraph.RingScratch> scratch;
+
+		Part(int from, int to, ThreadLocal<ReputationGraph.RingScratch> scratch)
+		{
+			this.from = from;
+			this.to = to;
+			this.scratch = scratch;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				calculate(from, to, scratch.get());
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Part(from, middle, scratch), new Part(middle, to,
+					scratch));
+		}
+	}
+
+	/**
+	 * What a recomputation found, for the admin who asked for it.
+	 */
+	static class Report {
+		final int players;
+		final int trusts;
+		/**
+		 * The number of players whose stored rings or reputation did not
+		 * match the ones calculated from scratch. With unchanged parameters,
+		 * anything other than 0 means the incremental updates went wrong
+		 * somewhere.
+		 */
+		final int corrected;
+		/**
+		 * The number of players whose reputation changed while a trust change
+		 * was still propagating (see ReputationGraph.refresh()). Those changes
+		 * were expected, so they are counted here rather than as corrected.
+		 */
+		final int refreshed;
+		final int threads;
+		final long elapsedMillis;
+		final double flowMultiplier;
+		final int maxChainLength;
+
+		Report(ReputationRecomputeJob job, int corrected, int refreshed) {
+			this.flowMultiplier = job.flowMultiplier;
+			this.maxChainLength = job.maxChainLength;
+			this.players = job.playerCount;
+			this.trusts = job.getTrustCount();
+			this.corrected = corrected;
+			this.refreshed = refreshed;
+			this.threads = job.threads;
+			this.elapsedMillis = job.elapsedMillis;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * What other plugins can ask ReputationWeb. Registered with Bukkit's
+ * ServicesManager while the plugin is enabled, and found with:
+ *
+ * <pre>
+ * RegisteredServiceProvider&lt;ReputationService&gt; provider = getServer()
+ * 		.getServicesManager().getRegistration(ReputationService.class);
+ * </pre>
+ *
+ * The plain methods read the latest published ReputationSnapshot. They may be
+ * called from any thread, never wait for anything, and cost about as much as
+ * a map lookup per player, so looking up hundreds of players a tick is cheap.
+ * A trust change shows up in them once it has been published, which may be a
+ * few ticks after the /trust command that made it.
+ *
+ * The methods that return a CompletableFuture need the whole web, or wait
+ * until every trust change made so far has been published. They may also be
+ * called from any thread, and their futures are always completed on the
+ * server's main thread, so that what is done with the result can touch the
+ * Bukkit API.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public interface ReputationService {
+	/**
+	 * Returns the latest snapshot of the web, for several reads that must
+	 * agree with each other.
+	 */
+	ReputationSnapshot getSnapshot();
+
+	/**
+	 * Returns the reputation of the given player, or 0 if the player is not in
+	 * the web.
+	 */
+	double getReputation(OfflinePlayer player);
+
+	/**
+	 * Returns the reputation of each of the given players, all from the same
+	 * snapshot. Players who are not in the web have a reputation of 0.
+	 */
+	Map<OfflinePlayer, Double> getReputations(
+			Collection<? extends OfflinePlayer> players);
+
+	/**
+	 * Returns true if the player is represented in the web.
+	 */
+	boolean playerIsInGraph(OfflinePlayer player);
+
+	/**
+	 * Returns true if the truster trusts the trustee.
+	 */
+	boolean trustRelationExists(OfflinePlayer truster, OfflinePlayer trustee);
+
+	/**
+	 * Returns the reputation of each of the given players, once every trust
+	 * change made before the call is part of them.
+	 */
+	CompletableFuture<Map<OfflinePlayer, Double>> getReputationsAsync(
+			Collection<? extends OfflinePlayer> players);
+
+	/**
+	 * Finds a shortest path of trust from start to end: the player start
+	 * trusts, the player he trusts, and so on, ending with end. The future
+	 * holds null if there is no such path. See ReputationGraph.getReference().
+	 */
+	CompletableFuture<List<OfflinePlayer>> getReferenceAsync(
+			OfflinePlayer start, OfflinePlayer end);
+
+	/**
+	 * Like getReferenceAsync(), but finds the shortest path whose players
+	 * have the highest total reputation.
+	 */
+	CompletableFuture<List<OfflinePlayer>> getMostReputableReferenceAsync(
+			OfflinePlayer start, OfflinePlayer end);
+
+	/**
+	 * Finds the most reputable players in the whole web, most reputable
+	 * first, skipping the first offset of them.
+	 */
+	CompletableFuture<List<OfflinePlayer>> getTopPlayersAsync(int offset,
+			int number);
+
+	/**
+	 * Makes the listener receive the changes to the given players'
+	 * reputations, in batches on the main thread, until the subscription is
+	 * cancelled. A player who changed several times in a batch is delivered
+	 * once. See ReputationChangeEvent for every change at once.
+	 */
+	ReputationSubscription subscribe(
+			Collection<? extends OfflinePlayer> players,
+			ReputationChangeListener listener);
+
+	/**
+	 * Makes the listener receive the reputation changes that cross the
+	 * threshold, upwards or downwards, in batches on the main thread, until
+	 * the subscription is cancelled.
+	 */
+	ReputationSubscription subscribe(double threshold,
+			ReputationChangeListener listener);
+}
@@ -0,0 +1,308 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * An immutable, versioned view of the reputation web. Snapshots are published
+ * by ReputationEngine every time the graph changes, and may be read from any
+ * thread without locking, because nothing in a snapshot ever changes after it
+ * has been published.
+ *
+ * The players are held in chunks of CHUNK_SIZE entries. Publishing a new
+ * snapshot copies only the chunks that hold a changed player and shares the
+ * rest with the previous snapshot, so a trust that affects a handful of
+ * players does not copy the whole web. Each player's entry records the version
+ * of the snapshot it was made for, which tells anything that caches what it
+ * read about a player whether that player has changed since.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationSnapshot {
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * Increases by one with every published snapshot.
+	 */
+	private final long version;
+
+	/**
+	 * The sequence number of the last trust change that this snapshot
+	 * includes.
+	 */
+	private final long appliedChanges;
+
+	private final int playerCount;
+
+	private final Entry[][] chunks;
+
+	/**
+	 * The id of every player. This map is shared between snapshots and only
+	 * ever grows, so ids at or above playerCount belong to players who are not
+	 * part of this snapshot yet.
+	 */
+	private final Map<OfflinePlayer, Integer> playerIds;
+
+	/**
+	 * Returns an empty snapshot.
+	 *
+	 * @param playerIds
+	 *            The map that snapshots derived from the new one will record
+	 *            player ids in. Must be safe for concurrent reading.
+	 */
+	static ReputationSnapshot empty(Map<OfflinePlayer, Integer> playerIds) {
+		return new ReputationSnapshot(0, 0, 0, new Entry[0][], playerIds);
+	}
+
+	private ReputationSnapshot(long version, long appliedChanges,
+			int playerCount, Entry[][] chunks,
+			Map<OfflinePlayer, Integer> playerIds) {
+		this.version = version;
+		this.appliedChanges = appliedChanges;
+		this.playerCount = playerCount;
+		this.chunks = chunks;
+		this.playerIds = playerIds;
+	}
+
+	/**
+	 * Returns a snapshot that is this one, updated with the current state of
+	 * the given players in the graph. Must be called on the thread that owns
+	 * the graph.
+	 *
+	 * @param graph
+	 *            The graph to read from
+	 * @param changedPlayers
+	 *            The ids of the players that changed since this snapshot
+	 * @param appliedChanges
+	 *            The sequence number of the last trust change made to graph
+	 */
+	ReputationSnapshot update(ReputationGraph graph, int[] changedPlayers,
+			long appliedChanges)
+	{
+		int newPlayerCount = graph.playerCount();
+		int chunkCount = (newPlayerCount + CHUNK_SIZE - 1) >> CHUNK_BITS;
+		Entry[][] newChunks = Arrays.copyOf(chunks, chunkCount);
+		boolean[] copied = new boolean[chunkCount];
+		long newVersion = version + 1;
+		for (int id : changedPlayers) {
+			int chunk = id >> CHUNK_BITS;
+			if (!copied[chunk]) {
+				newChunks[chunk] = newChunks[chunk] == null ? new Entry[CHUNK_SIZE]
+						: newChunks[chunk].clone();
+				copied[chunk] = true;
+			}
+			newChunks[chunk][id & CHUNK_MASK] = new Entry(graph, id, newVersion);
+		}
+		for (int id = playerCount; id < newPlayerCount; id++) {
+			playerIds.put(graph.getPlayer(id), id);
+		}
+		return new ReputationSnapshot(newVersion, appliedChanges,
+				newPlayerCount, newChunks, playerIds);
+	}
+
+	/**
+	 * Returns the version of this snapshot. Later snapshots have higher
+	 * versions.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the version of the snapshot in which the player last changed:
+	 * his reputation, the players he trusts or who trust him, or the order of
+	 * his top trusters. Returns -1 if he is not in the web.
+	 */
+	long getPlayerVersion(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		return entry == null ? -1 : entry.version;
+	}
+
+	/**
+	 * Returns the number of players in the web.
+	 */
+	public int getPlayerCount() {
+		return playerCount;
+	}
+
+	long getAppliedChanges() {
+		return appliedChanges;
+	}
+
+	/**
+	 * Returns the reputation of the given player, or 0 if the player is not in
+	 * the web.
+	 */
+	public double getReputation(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		return entry == null ? 0 : entry.reputation;
+	}
+
+	/**
+	 * Returns true if the player is represented in the web.
+	 */
+	public boolean playerIsInGraph(OfflinePlayer player) {
+		return getEntry(player) != null;
+	}
+
+	/**
+	 * Returns true if the truster trusts the trustee.
+	 */
+	public boolean trustRelationExists(OfflinePlayer truster,
+			OfflinePlayer trustee)
+	{
+		Entry trusterEntry = getEntry(truster);
+		Integer trusteeId = getId(trustee);
+		if (trusterEntry == null || trusteeId == null) return false;
+		return Arrays.binarySearch(trusterEntry.trustees, trusteeId) >= 0;
+	}
+
+	/**
+	 * Returns the number of players who trust the supplied player, or 0 if
+	 * the player is not in the web.
+	 */
+	public int trustersCount(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		return entry == null ? 0 : entry.trusters.length;
+	}
+
+	/**
+	 * Returns the number of players the supplied player trusts, or 0 if the
+	 * player is not in the web.
+	 */
+	public int trusteesCount(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		return entry == null ? 0 : entry.trustees.length;
+	}
+
+	/**
+	 * Returns a List of the players who trust the supplied player.
+	 */
+	public List<OfflinePlayer> getTrusters(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		if (entry == null) return new ArrayList<OfflinePlayer>();
+		return convertToPlayerList(entry.trusters, entry.trusters.length);
+	}
+
+	/**
+	 * Returns a List of the players who the supplied player trusts.
+	 */
+	public List<OfflinePlayer> getTrustees(OfflinePlayer player) {
+		Entry entry = getEntry(player);
+		if (entry == null) return new ArrayList<OfflinePlayer>();
+		return convertToPlayerList(entry.trustees, entry.trustees.length);
+	}
+
+	/**
+	 * Returns the top trusters of the specified player, in order of descending
+	 * reputation.
+	 *
+	 * @param player
+	 *            The player to return the top trusters of.
+	 * @param number
+	 *            The maximum number of top trusters to return.
+	 * @return A List of the top trusters of the specified player. Returns an
+	 *         empty List if the player has no trusters or is not in the web.
+	 */
+	public List<OfflinePlayer> getTopTrusters(OfflinePlayer player, int number)
+	{
+		Entry entry = getEntry(player);
+		if (entry == null) return new ArrayList<OfflinePlayer>();
+		if (number <= entry.topTrusters.length
+				|| entry.topTrusters.length == entry.trusters.length) {
+			return convertToPlayerList(entry.topTrusters,
+					Math.min(number, entry.topTrusters.length));
+		}
+		// More than the graph keeps, so look through all of them.
+		int[] topTrusters = new int[Math.min(number, entry.trusters.length)];
+		int found = 0;
+		for (int truster : entry.trusters) {
+			double reputation = getEntry(truster).reputation;
+			int position = found;
+			while (position > 0
+					&& getEntry(topTrusters[position - 1]).reputation < reputation) {
+				position--;
+			}
+			if (position >= topTrusters.length) continue;
+			int shifted = Math.min(found, topTrusters.length - 1) - position;
+			System.arraycopy(topTrusters, position, topTrusters, position + 1,
+					shifted);
+			topTrusters[position] = truster;
+			if (found < topTrusters.length) found++;
+		}
+		return convertToPlayerList(topTrusters, found);
+	}
+
+	/**
+	 * Returns the reputation of the player with the given id, or 0 if he is
+	 * not part of this snapshot.
+	 */
+	double getReputation(int id) {
+		return id < playerCount ? getEntry(id).reputation : 0;
+	}
+
+	OfflinePlayer getPlayer(int id) {
+		return getEntry(id).player;
+	}
+
+	private Integer getId(OfflinePlayer player) {
+		Integer id = playerIds.get(player);
+		if (id == null || id >= playerCount) return null;
+		return id;
+	}
+
+	private Entry getEntry(OfflinePlayer player) {
+		Integer id = getId(player);
+		return id == null ? null : getEntry(id);
+	}
+
+	private Entry getEntry(int id) {
+		return chunks[id >> CHUNK_BITS][id & CHUNK_MASK];
+	}
+
+	private List<OfflinePlayer> convertToPlayerList(int[] ids, int count) {
+		List<OfflinePlayer> convertedList = new ArrayList<OfflinePlayer>(count);
+		for (int i = 0; i < count; i++) {
+			convertedList.add(getEntry(ids[i]).player);
+		}
+		return convertedList;
+	}
+
+	/**
+	 * The state of a single player at the time the snapshot was taken.
+	 */
+	private static class Entry {
+		private final OfflinePlayer player;
+		private final double reputation;
+		private final int[] trusters;
+		/**
+		 * The most reputable trusters, best first, as the graph keeps them.
+		 */
+		private final int[] topTrusters;
+		/**
+		 * Sorted, so that trust relationships can be found by binary search.
+		 */
+		private final int[] trustees;
+		/**
+		 * The version of the snapshot this entry was made for.
+		 */
+		private final long version;
+
+		private Entry(ReputationGraph graph, int id, long version) {
+			this.player = graph.getPlayer(id);
+			this.reputation = graph.getReputation(id);
+			this.trusters = graph.getTrusterIds(id);
+			this.topTrusters = graph.getTopTrusterIds(id);
+			this.trustees = graph.getTrusteeIds(id);
+			Arrays.sort(trustees);
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.gradysimon.reputationweb;
+
+/**
+ * A listener's interest in some reputation changes, as returned by
+ * ReputationService.subscribe().
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public interface ReputationSubscription {
+	/**
+	 * Stops the listener from receiving any more changes. May be called from
+	 * any thread, more than once.
+	 */
+	void cancel();
+}
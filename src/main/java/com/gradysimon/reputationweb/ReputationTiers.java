@@ -0,0 +1,198 @@
+package com.gradysimon.reputationweb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Grants permissions to players whose reputation is high enough, as set up in
+ * the tiers section of config.yml. A player gets the permissions of every
+ * tier whose reputation he has reached.
+ *
+ * Nothing is ever checked on a timer. The engine reports every reputation
+ * that changes, and a change only costs more than working out the tier twice
+ * if it crosses from one tier into another while the player is online.
+ * Players who are offline are given their permissions when they join, and
+ * lose them when they quit.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class ReputationTiers implements ReputationListener, Listener {
+	private final Plugin plugin;
+	private final ReputationEngine engine;
+
+	/**
+	 * In order of increasing reputation.
+	 */
+	private final List<Tier> tiers;
+
+	/**
+	 * The attachment holding the tier permissions of each online player in a
+	 * tier, by name.
+	 */
+	private final Map<String, PermissionAttachment> attachments = new HashMap<String, PermissionAttachment>();
+
+	/**
+	 * Set by stop(), after which nothing is granted.
+	 */
+	private boolean stopped = false;
+
+	private ReputationTiers(Plugin plugin, ReputationEngine engine,
+			List<Tier> tiers) {
+		this.plugin = plugin;
+		this.engine = engine;
+		this.tiers = tiers;
+	}
+
+	/**
+	 * Reads the tiers from a section like:
+	 *
+	 * <pre>
+	 * tiers:
+	 *     trusted:
+	 *         reputation: 2.0
+	 *         permissions:
+	 *         - some.plugin.permission
+	 * </pre>
+	 *
+	 * @return The tiers, or null if there are none
+	 */
+	static ReputationTiers load(ConfigurationSection section, Plugin plugin,
+			ReputationEngine engine, Logger log)
+	{
+		if (section == null) return null;
+		List<Tier> tiers = new ArrayList<Tier>();
+		for (String name : section.getKeys(false)) {
+			ConfigurationSection tier = section.getConfigurationSection(name);
+			if (tier == null || !tier.contains("reputation")) {
+				log.warning("ReputationWeb: Ignoring tier " + name
+						+ ", which has no reputation.");
+				continue;
+			}
+			tiers.add(new Tier(tier.getDouble("reputation"), tier
+					.getStringList("permissions")));
+		}
+		if (tiers.isEmpty()) return null;
+		Collections.sort(tiers, new Comparator<Tier>() {
+			public int compare(Tier a, Tier b) {
+				return Double.compare(a.reputation, b.reputation);
+			}
+		});
+		return new ReputationTiers(plugin, engine, tiers);
+	}
+
+	/**
+	 * Gives the players who are online their permissions and starts listening
+	 * for reputation changes and for players joining and quitting. Must be
+	 * called before the engine is started.
+	 */
+	void start() {
+		engine.addListener(this);
+		plugin.getServer().getPluginManager().registerEvents(this, plugin);
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			grant(player, tierOf(engine.getSnapshot().getReputation(player)));
+		}
+	}
+
+	/**
+	 * Takes every tier permission away again, for good: changes reported
+	 * after this, such as those the engine applies as it shuts down, grant
+	 * nothing.
+	 */
+	void stop() {
+		stopped = true;
+		for (PermissionAttachment attachment : attachments.values()) {
+			attachment.remove();
+		}
+		attachments.clear();
+	}
+
+	public void reputationChanged(OfflinePlayer player, double oldReputation,
+			double newReputation)
+	{
+		int newTier = tierOf(newReputation);
+		if (tierOf(oldReputation) == newTier || !player.isOnline()) return;
+		grant(player.getPlayer(), newTier);
+	}
+
+	@EventHandler
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		Player player = event.getPlayer();
+		grant(player, tierOf(engine.getSnapshot().getReputation(player)));
+	}
+
+	@EventHandler
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		PermissionAttachment attachment = attachments.remove(event.getPlayer()
+				.getName());
+		if (attachment != null) attachment.remove();
+	}
+
+	/**
+	 * Returns the index of the highest tier the reputation reaches, or -1 if
+	 * it reaches none.
+	 */
+	private int tierOf(double reputation) {
+		int tier = -1;
+		while (tier + 1 < tiers.size()
+				&& reputation >= tiers.get(tier + 1).reputation) {
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * Gives the player the permissions of every tier up to and including the
+	 * given one, and takes away those of the tiers above it.
+	 */
+	private void grant(Player player, int tier) {
+		if (stopped) return;
+		PermissionAttachment attachment = attachments.get(player.getName());
+		if (tier < 0) {
+			if (attachment != null) {
+				attachment.remove();
+				attachments.remove(player.getName());
+			}
+			return;
+		}
+		if (attachment == null) {
+			attachment = player.addAttachment(plugin);
+			attachments.put(player.getName(), attachment);
+		}
+		for (int i = tiers.size() - 1; i > tier; i--) {
+			for (String permission : tiers.get(i).permissions) {
+				attachment.unsetPermission(permission);
+			}
+		}
+		for (int i = 0; i <= tier; i++) {
+			for (String permission : tiers.get(i).permissions) {
+				attachment.setPermission(permission, true);
+			}
+		}
+	}
+
+	private static class Tier {
+		private final double reputation;
+		private final List<String> permissions;
+
+		Tier(double reputation, List<String> permissions) {
+			this.reputation = reputation;
+			this.permissions = permissions;
+		}
+	}
+}
@@ -6,18 +6,28 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.bukkit.OfflinePlayer;
 import org.bukkit.Server;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import com.avaje.ebean.EbeanServer;
-import com.avaje.ebean.Query;
+import com.avaje.ebeaninternal.api.SpiEbeanServer;
+import com.avaje.ebeaninternal.server.ddl.DdlGenerator;
 import javax.persistence.PersistenceException;
 
 public class ReputationWeb extends JavaPlugin {
@@ -27,7 +37,14 @@ public class ReputationWeb extends JavaPlugin {
 	protected FileConfiguration config;
 	private Server server;
 	private ReputationGraph reputationGraph;
+	private ReputationEngine reputationEngine;
+	private TrustStore trustStore;
+	private KnownPlayerIndex knownPlayers;
+	private ReputationTiers tiers;
+	private ReputationChangeFeed changeFeed;
 	private PluginDescriptionFile description;
+	private final ReputationMetrics metrics = new ReputationMetrics();
+	private ObjectName metricsName;
 
 	private EbeanServer database;
 
@@ -36,12 +53,30 @@ public class ReputationWeb extends JavaPlugin {
 		startLogging();
 		loadConfiguration();
 		instantiateReputationGraph();
-		initializeDatabase();
+		openTrustStore();
 		loadReputationData();
+		startReputationEngine();
+		startKnownPlayerIndex();
 		initializeCommandHandler();
+		registerMetrics();
+		registerService();
 	}
 
 	public void onDisable() {
+		server.getServicesManager().unregisterAll(this);
+		unregisterMetrics();
+		if (tiers != null) {
+			tiers.stop();
+		}
+		if (changeFeed != null) {
+			changeFeed.stop();
+		}
+		if (reputationEngine != null) {
+			reputationEngine.shutdown();
+		}
+		if (trustStore != null) {
+			trustStore.close();
+		}
 		log.info(description.getFullName() + " disabled.");
 	}
 
@@ -49,6 +84,8 @@ public class ReputationWeb extends JavaPlugin {
 	public List<Class<?>> getDatabaseClasses() {
 		List<Class<?>> persistentClassList = new ArrayList<Class<?>>();
 		persistentClassList.add(Trust.class);
+		persistentClassList.add(RWPlayer.class);
+		persistentClassList.add(TrustEdge.class);
 		return persistentClassList;
 	}
 
@@ -56,6 +93,10 @@ public class ReputationWeb extends JavaPlugin {
 		return getDatabase();
 	}
 
+	ReputationMetrics getMetrics() {
+		return metrics;
+	}
+
 	private void loadPluginEnvironment() {
 		this.server = getServer();
 		this.description = getDescription();
@@ -121,24 +162,64 @@ public class ReputationWeb extends JavaPlugin {
 		}
 	}
 
+	/**
+	 * Reads config.yml again, for /rep reload.
+	 */
+	void reloadConfiguration() {
+		reloadConfig();
+		config = getConfig();
+	}
+
+	double getFlowFactor() {
+		return config.getDouble("parameters.flow_factor");
+	}
+
+	int getMaxChainLength() {
+		return config.getInt("parameters.max_chain_length");
+	}
+
+	/**
+	 * Returns the longest connection /rep connection will look for, or 0 for
+	 * no limit.
+	 */
+	int getMaxConnectionLength() {
+		if (config.getBoolean("connection.limit_to_chain_length", false)) {
+			return getMaxChainLength();
+		}
+		return 0;
+	}
+
 	private void instantiateReputationGraph() {
-		double flowFactor = config.getDouble("parameters.flow_factor");
-		int maxChainLength = config.getInt("parameters.max_chain_length");
-		reputationGraph = new ReputationGraph(flowFactor, maxChainLength);
+		reputationGraph = new ReputationGraph(getFlowFactor(),
+				getMaxChainLength());
+		reputationGraph.setMaxConnectionLength(getMaxConnectionLength());
+		reputationGraph.setMetrics(metrics);
 	}
 
 	private void initializeDatabase() {
 		handleEbeanDotProperties();
 		database = getDatabase();
 		try {
-			database.find(Trust.class).findRowCount();
+			database.find(TrustEdge.class).findRowCount();
 		} catch (PersistenceException ex) {
 			log.info(formatLog("No existing reputation data found."));
 			log.info(formatLog("Initializing database."));
-			installDDL();
+			createMissingTables();
 		}
 	}
 
+	/**
+	 * Creates the plugin's tables that do not exist yet. Unlike installDDL(),
+	 * this also works on a database from an older version, where rw_trusts
+	 * already exists: the errors from creating the existing tables again are
+	 * expected and ignored.
+	 */
+	private void createMissingTables() {
+		SpiEbeanServer ebeanServer = (SpiEbeanServer) database;
+		DdlGenerator generator = ebeanServer.getDdlGenerator();
+		generator.runScript(true, generator.generateCreateDdl());
+	}
+
 	private void handleEbeanDotProperties() {
 		File ebeanDotProperties = new File("ebean.properties");
 		try {
@@ -152,35 +233,147 @@ public class ReputationWeb extends JavaPlugin {
 
 	}
 
+	private void openTrustStore() {
+		String backend = config.getString("storage.backend", "database");
+		if (backend.equalsIgnoreCase("journal")) {
+			log.info(formatLog("Storing trusts in plugins/"
+					+ description.getName() + "/trusts.journal."));
+			trustStore = new JournalTrustStore(getDataFolder(), metrics, log);
+			return;
+		}
+		initializeDatabase();
+		long flushInterval = config.getLong("storage.flush_interval_ms", 1000);
+		trustStore = new EbeanTrustStore(database, flushInterval, metrics,
+				log);
+	}
+
 	private void loadReputationData() {
-		populateReputationGraph(getTrustsFromDatabase());
+		long startTime = System.currentTimeMillis();
+		long loadStartTime = System.nanoTime();
+		reputationGraph.startBulkLoad();
+		try {
+			trustStore.load(new GraphLoader());
+		} catch (IOException e) {
+			log.severe(formatLog("Unable to load reputation data."));
+			e.printStackTrace();
+		}
+		metrics.recordStorage("load", System.nanoTime() - loadStartTime);
+		reputationGraph.finishBulkLoad(Runtime.getRuntime()
+				.availableProcessors());
+		log.info(formatLog("Loaded " + reputationGraph.playerCount()
+				+ " players in " + (System.currentTimeMillis() - startTime)
+				+ " ms."));
 	}
 
-	private void populateReputationGraph(List<Trust> trusts) {
-		for (Trust trust : trusts) {
-			String trusterName = trust.getTrusterName();
-			String trusteeName = trust.getTrusteeName();
-			OfflinePlayer truster = server.getOfflinePlayer(trusterName);
-			OfflinePlayer trustee = server.getOfflinePlayer(trusteeName);
-			reputationGraph.addTrustRelation(truster, trustee);
+	private void startReputationEngine() {
+		boolean asyncUpdates = config.getBoolean("engine.async_updates", false);
+		if (asyncUpdates) {
+			log.info(formatLog("Reputation updates will run in their own thread."));
 		}
+		reputationEngine = new ReputationEngine(this, reputationGraph,
+				asyncUpdates, log);
+		reputationEngine.setRefreshBudget(config.getLong(
+				"engine.refresh_budget_ms", 0));
+		tiers = ReputationTiers.load(config.getConfigurationSection("tiers"),
+				this, reputationEngine, log);
+		if (tiers != null) {
+			tiers.start();
+		}
+		changeFeed = new ReputationChangeFeed(this, config.getLong(
+				"events.window_ticks", 20), log);
+		reputationEngine.addListener(changeFeed);
+		reputationEngine.start();
 	}
 
-	// Should execute query equivalent to:
-	// "SELECT nameOfTruster,nameOfTrustee FROM rw_trust"
-	private List<Trust> getTrustsFromDatabase() {
-		Query<Trust> trustsQuery = database.find(Trust.class);
-		trustsQuery = trustsQuery.select("trusterName,trusteeName");
-		List<Trust> allTrusts = trustsQuery.findList();
-		return allTrusts;
+	private void startKnownPlayerIndex() {
+		knownPlayers = new KnownPlayerIndex(getDataFolder(), server.getWorlds(),
+				log);
+		// Players in the web are known by the name they are stored under,
+		// whatever case the index would otherwise find first.
+		ReputationSnapshot snapshot = reputationEngine.getSnapshot();
+		for (int id = 0; id < snapshot.getPlayerCount(); id++) {
+			knownPlayers.add(snapshot.getPlayer(id).getName());
+		}
+		knownPlayers.start(this);
 	}
 
 	private void initializeCommandHandler() {
 		reputationCommandExecutor = new ReputationCommandExecutor(this,
-				reputationGraph, server);
-		getCommand("reputation").setExecutor(reputationCommandExecutor);
-		getCommand("rep").setExecutor(reputationCommandExecutor);
-		getCommand("trust").setExecutor(reputationCommandExecutor);
-		getCommand("untrust").setExecutor(reputationCommandExecutor);
+				reputationEngine, trustStore, knownPlayers, server);
+		for (String name : new String[] { "reputation", "rep", "trust",
+				"untrust" }) {
+			PluginCommand command = getCommand(name);
+			command.setExecutor(reputationCommandExecutor);
+			command.setTabCompleter(reputationCommandExecutor);
+		}
+	}
+
+	/**
+	 * Makes the metrics visible to JMX consoles, as
+	 * com.gradysimon.reputationweb:type=Metrics. A plugin reload can leave the
+	 * old registration behind, so it is replaced.
+	 */
+	private void registerMetrics() {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		try {
+			metricsName = new ObjectName("com.gradysimon.reputationweb:type=Metrics");
+			if (mbeanServer.isRegistered(metricsName)) {
+				mbeanServer.unregisterMBean(metricsName);
+			}
+			mbeanServer.registerMBean(metrics, metricsName);
+		} catch (JMException e) {
+			log.warning(formatLog("Unable to register metrics with JMX."));
+			e.printStackTrace();
+			metricsName = null;
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					metricsName);
+		} catch (JMException e) {
+			log.warning(formatLog("Unable to unregister metrics from JMX."));
+		}
+		metricsName = null;
+	}
+
+	/**
+	 * Offers ReputationService to other plugins.
+	 */
+	private void registerService() {
+		server.getServicesManager().register(ReputationService.class,
+				new EngineReputationService(this, reputationEngine, changeFeed),
+				this,
+				ServicePriority.Normal);
+	}
+
+	/**
+	 * Feeds the trusts read from the trust store into the reputation graph,
+	 * looking up each player only the first time his name comes up.
+	 */
+	private class GraphLoader implements TrustStore.TrustVisitor {
+		private final Map<String, OfflinePlayer> playersByName = new HashMap<String, OfflinePlayer>();
+
+		public void trustAdded(String trusterName, String trusteeName) {
+			reputationGraph.addTrustRelation(getOfflinePlayer(trusterName),
+					getOfflinePlayer(trusteeName));
+		}
+
+		public void trustRemoved(String trusterName, String trusteeName) {
+			reputationGraph.removeTrustRelation(
+					getOfflinePlayer(trusterName),
+					getOfflinePlayer(trusteeName));
+		}
+
+		private OfflinePlayer getOfflinePlayer(String name) {
+			OfflinePlayer player = playersByName.get(name);
+			if (player == null) {
+				player = server.getOfflinePlayer(name);
+				playersByName.put(name, player);
+			}
+			return player;
+		}
 	}
 }
\ No newline at end of file
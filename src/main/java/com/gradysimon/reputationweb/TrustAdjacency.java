@@ -0,0 +1,323 @@
+package com.gradysimon.reputationweb;
+
+import java.util.Arrays;
+
+/**
+ * The trust relationships of the reputation web, stored as primitive int
+ * arrays. Every player in the web is identified by a dense int id (assigned by
+ * ReputationGraph), and both the outgoing edges (the players a player trusts)
+ * and the incoming edges (the players who trust a player) are kept for each id.
+ *
+ * Each direction is stored in two layers. The compacted layer is a CSR-style
+ * pair of arrays: one array holding every edge grouped by node, and one
+ * holding the offset at which each node's group starts. Trusts that were added
+ * since the last compaction live in a small per-node delta array instead.
+ * Untrusting removes an edge in place by swapping it with the last live edge of
+ * its group, so neither layer ever holds tombstones. Once the delta layer and
+ * the dead slots left by removals grow large enough, everything is folded back
+ * into a fresh compacted layer.
+ *
+ * Neighbours are read by position, with trusteeCount()/getTrustee() and
+ * trusterCount()/getTruster(), so that traversals never need to allocate an
+ * iterator.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class TrustAdjacency {
+	/**
+	 * Compaction is never triggered before at least this many edges have
+	 * accumulated in the delta layer, so that small webs are not compacted
+	 * over and over again.
+	 */
+	private static final int MIN_GARBAGE_BEFORE_COMPACTION = 1024;
+
+	private int nodeCount = 0;
+	private int edgeCount = 0;
+
+	/**
+	 * For each player, the players he trusts.
+	 */
+	private final EdgeLists outgoing;
+
+	/**
+	 * For each player, the players who trust him.
+	 */
+	private final EdgeLists incoming;
+
+	TrustAdjacency() {
+		this(new EdgeLists(), new EdgeLists());
+	}
+
+	private TrustAdjacency(EdgeLists outgoing, EdgeLists incoming) {
+		this.outgoing = outgoing;
+		this.incoming = incoming;
+	}
+
+	/**
+	 * Returns the number of nodes (player ids) in the adjacency.
+	 */
+	int nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of trust relationships in the adjacency.
+	 */
+	int edgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * Adds a new node and returns its id. Ids are handed out densely, starting
+	 * at 0.
+	 */
+	int addNode() {
+		int id = nodeCount;
+		nodeCount++;
+		outgoing.ensureCapacity(nodeCount);
+		incoming.ensureCapacity(nodeCount);
+		return id;
+	}
+
+	/**
+	 * Adds an edge from truster to trustee.
+	 *
+	 * @return true if the edge was added, false if it already existed
+	 */
+	boolean addEdge(int truster, int trustee) {
+		if (containsEdge(truster, trustee)) return false;
+		outgoing.add(truster, trustee);
+		incoming.add(trustee, truster);
+		edgeCount++;
+		compactIfNeeded();
+		return true;
+	}
+
+	/**
+	 * Removes the edge from truster to trustee, if it exists.
+	 *
+	 * @return true if the edge was removed, false if it did not exist
+	 */
+	boolean removeEdge(int truster, int trustee) {
+		if (!outgoing.remove(truster, trustee)) return false;
+		incoming.remove(trustee, truster);
+		edgeCount--;
+		compactIfNeeded();
+		return true;
+	}
+
+	/**
+	 * Returns true if truster trusts trustee. Only the shorter of the two
+	 * neighbour lists involved is scanned.
+	 */
+	boolean containsEdge(int truster, int trustee) {
+		if (outgoing.degree(truster) <= incoming.degree(trustee)) {
+			return outgoing.contains(truster, trustee);
+		}
+		return incoming.contains(trustee, truster);
+	}
+
+	int trusteeCount(int node) {
+		return outgoing.degree(node);
+	}
+
+	/**
+	 * Returns the index-th player trusted by node. The order of the trustees
+	 * is unspecified and changes as edges are added and removed.
+	 */
+	int getTrustee(int node, int index) {
+		return outgoing.get(node, index);
+	}
+
+	int trusterCount(int node) {
+		return incoming.degree(node);
+	}
+
+	/**
+	 * Returns the index-th player who trusts node. The order of the trusters
+	 * is unspecified and changes as edges are added and removed.
+	 */
+	int getTruster(int node, int index) {
+		return incoming.get(node, index);
+	}
+
+	/**
+	 * Folds the delta layers back into freshly compacted arrays.
+	 */
+	void compact() {
+		outgoing.compact(nodeCount);
+		incoming.compact(nodeCount);
+	}
+
+	/**
+	 * Returns a compacted copy of the adjacency that shares nothing with it,
+	 * so that other threads can read the copy while this one goes on
+	 * changing.
+	 */
+	TrustAdjacency frozenCopy() {
+		TrustAdjacency copy = new TrustAdjacency(
+				outgoing.compactedCopy(nodeCount),
+				incoming.compactedCopy(nodeCount));
+		copy.nodeCount = nodeCount;
+		copy.edgeCount = edgeCount;
+		return copy;
+	}
+
+	private void compactIfNeeded() {
+		int garbage = outgoing.garbage() + incoming.garbage();
+		int threshold = Math.max(MIN_GARBAGE_BEFORE_COMPACTION, edgeCount / 2);
+		if (garbage > threshold) {
+			compact();
+		}
+	}
+
+	/**
+	 * One direction of the adjacency: the compacted layer plus the delta layer
+	 * for every node.
+	 */
+	private static class EdgeLists {
+		/**
+		 * Start of each node's group within compactedEdges.
+		 */
+		private int[] offsets = new int[0];
+		/**
+		 * Number of live edges in each node's compacted group. Removing an edge
+		 * shrinks this, leaving a dead slot at the end of the group.
+		 */
+		private int[] compactedLength = new int[0];
+		private int[] compactedEdges = new int[0];
+		/**
+		 * Edges added since the last compaction, per node. Entries are null for
+		 * nodes that have no recent edges.
+		 */
+		private int[][] delta = new int[0][];
+		private int[] deltaLength = new int[0];
+
+		private int deltaEdges = 0;
+		private int deadSlots = 0;
+
+		void ensureCapacity(int nodes) {
+			if (nodes <= offsets.length) return;
+			int capacity = Math.max(nodes, offsets.length * 2);
+			offsets = Arrays.copyOf(offsets, capacity);
+			compactedLength = Arrays.copyOf(compactedLength, capacity);
+			delta = Arrays.copyOf(delta, capacity);
+			deltaLength = Arrays.copyOf(deltaLength, capacity);
+		}
+
+		int degree(int node) {
+			return compactedLength[node] + deltaLength[node];
+		}
+
+		int get(int node, int index) {
+			int compacted = compactedLength[node];
+			if (index < compacted) {
+				return compactedEdges[offsets[node] + index];
+			}
+			return delta[node][index - compacted];
+		}
+
+		boolean contains(int node, int other) {
+			int start = offsets[node];
+			int end = start + compactedLength[node];
+			for (int i = start; i < end; i++) {
+				if (compactedEdges[i] == other) return true;
+			}
+			int[] recent = delta[node];
+			int length = deltaLength[node];
+			for (int i = 0; i < length; i++) {
+				if (recent[i] == other) return true;
+			}
+			return false;
+		}
+
+		void add(int node, int other) {
+			int[] recent = delta[node];
+			int length = deltaLength[node];
+			if (recent == null) {
+				recent = new int[2];
+				delta[node] = recent;
+			} else if (length == recent.length) {
+				recent = Arrays.copyOf(recent, length * 2);
+				delta[node] = recent;
+			}
+			recent[length] = other;
+			deltaLength[node] = length + 1;
+			deltaEdges++;
+		}
+
+		boolean remove(int node, int other) {
+			int[] recent = delta[node];
+			int length = deltaLength[node];
+			for (int i = 0; i < length; i++) {
+				if (recent[i] == other) {
+					recent[i] = recent[length - 1];
+					deltaLength[node] = length - 1;
+					deltaEdges--;
+					return true;
+				}
+			}
+			int start = offsets[node];
+			int last = start + compactedLength[node] - 1;
+			for (int i = start; i <= last; i++) {
+				if (compactedEdges[i] == other) {
+					compactedEdges[i] = compactedEdges[last];
+					compactedLength[node]--;
+					deadSlots++;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the number of delta edges and dead compacted slots, which is
+		 * the amount of work a compaction would reclaim.
+		 */
+		int garbage() {
+			return deltaEdges + deadSlots;
+		}
+
+		void compact(int nodes) {
+			EdgeLists compacted = compactedCopy(nodes);
+			offsets = compacted.offsets;
+			compactedLength = compacted.compactedLength;
+			compactedEdges = compacted.compactedEdges;
+			delta = compacted.delta;
+			deltaLength = compacted.deltaLength;
+			deltaEdges = 0;
+			deadSlots = 0;
+		}
+
+		/**
+		 * Returns new lists holding the same edges for the first nodes nodes,
+		 * all in the compacted layer.
+		 */
+		EdgeLists compactedCopy(int nodes) {
+			EdgeLists copy = new EdgeLists();
+			copy.ensureCapacity(nodes);
+			int total = 0;
+			for (int node = 0; node < nodes; node++) {
+				total += degree(node);
+			}
+			int[] newEdges = new int[total];
+			int position = 0;
+			for (int node = 0; node < nodes; node++) {
+				int compacted = compactedLength[node];
+				System.arraycopy(compactedEdges, offsets[node], newEdges,
+						position, compacted);
+				int recent = deltaLength[node];
+				if (recent > 0) {
+					System.arraycopy(delta[node], 0, newEdges, position
+							+ compacted, recent);
+				}
+				copy.offsets[node] = position;
+				copy.compactedLength[node] = compacted + recent;
+				position += compacted + recent;
+			}
+			copy.compactedEdges = newEdges;
+			return copy;
+		}
+	}
+}
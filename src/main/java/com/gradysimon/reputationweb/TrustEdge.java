@@ -0,0 +1,53 @@
+package com.gradysimon.reputationweb;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A trust relationship between two players in rw_players. The unique index on
+ * (truster_id, trustee_id) keeps out duplicate rows and makes deleting a
+ * single relationship an index lookup.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+@Entity()
+@Table(name = "rw_trust_edges", uniqueConstraints = @UniqueConstraint(columnNames = {
+		"truster_id", "trustee_id" }))
+public class TrustEdge {
+	@Id
+	@GeneratedValue(strategy = GenerationType.AUTO)
+	private int id;
+
+	private int trusterId;
+
+	private int trusteeId;
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public int getTrusterId() {
+		return trusterId;
+	}
+
+	public void setTrusterId(int trusterId) {
+		this.trusterId = trusterId;
+	}
+
+	public int getTrusteeId() {
+		return trusteeId;
+	}
+
+	public void setTrusteeId(int trusteeId) {
+		this.trusteeId = trusteeId;
+	}
+}
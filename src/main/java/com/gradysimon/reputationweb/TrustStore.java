@@ -0,0 +1,44 @@
+package com.gradysimon.reputationweb;
+
+import java.io.IOException;
+
+/**
+ * Keeps the trust relationships of the reputation web between server
+ * restarts.
+ * 
+ * load() must be called once, before anything else. After that, every trust
+ * change is handed to the store as it happens. Stores write in the
+ * background and never make the caller wait for the disk; close() writes
+ * whatever has not been written yet.
+ * 
+ * @author Genre (Grady Simon)
+ * 
+ */
+interface TrustStore {
+
+	/**
+	 * Receives the stored trust relationships as they are read. A store may
+	 * replay the changes that led to its current state rather than the state
+	 * itself, so relationships can be removed again after they were added.
+	 */
+	interface TrustVisitor {
+		void trustAdded(String trusterName, String trusteeName);
+
+		void trustRemoved(String trusterName, String trusteeName);
+	}
+
+	/**
+	 * Reads every stored trust relationship into the visitor.
+	 */
+	void load(TrustVisitor visitor) throws IOException;
+
+	void trustAdded(String trusterName, String trusteeName);
+
+	void trustRemoved(String trusterName, String trusteeName);
+
+	/**
+	 * Writes every change that has not been written yet and releases the
+	 * store.
+	 */
+	void close();
+}
@@ -0,0 +1,255 @@
+package com.gradysimon.reputationweb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlUpdate;
+
+/**
+ * Writes trust changes to the database in the background, so that a slow
+ * database never holds up the server's main thread.
+ *
+ * Changes are queued as they are made and written out in a single
+ * transaction every flush interval, or sooner if a full batch has queued up.
+ * Only the latest change to each trust relationship is kept: a trust that is
+ * made and then withdrawn again before it was written (or the other way
+ * around) leaves the database as it was, so the two simply cancel out.
+ *
+ * A batch that fails to be written is put back in the queue, in front of any
+ * changes made since, and tried again at the next flush. close() writes
+ * whatever is still queued before returning.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+class TrustWriteBehindQueue {
+	/**
+	 * Flush early once this many changes are waiting.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+	private final EbeanServer database;
+	private final PlayerIds playerIds;
+	private final ReputationMetrics metrics;
+	private final Logger log;
+	private final ScheduledExecutorService writer;
+
+	/**
+	 * The changes that have not been written yet, in the order they were
+	 * made. A relationship maps to true if it is to be added to the database,
+	 * false if it is to be removed. Guarded by this.
+	 */
+	private Map<TrustKey, Boolean> pending = new LinkedHashMap<TrustKey, Boolean>();
+
+	/**
+	 * True while a flush has been asked for and has not started yet. Guarded
+	 * by this.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * @param flushIntervalMillis
+	 *            How often queued changes are written
+	 */
+	TrustWriteBehindQueue(EbeanServer database, PlayerIds playerIds,
+			long flushIntervalMillis, ReputationMetrics metrics, Logger log)
+	{
+		this.database = database;
+		this.playerIds = playerIds;
+		this.metrics = metrics;
+		this.log = log;
+		this.writer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"ReputationWeb database writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		writer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues a new trust relationship to be saved.
+	 */
+	void trustAdded(String trusterName, String trusteeName) {
+		enqueue(new TrustKey(trusterName, trusteeName), true);
+	}
+
+	/**
+	 * Queues a trust relationship to be deleted.
+	 */
+	void trustRemoved(String trusterName, String trusteeName) {
+		enqueue(new TrustKey(trusterName, trusteeName), false);
+	}
+
+	/**
+	 * Returns the number of changes that have not been written yet.
+	 */
+	synchronized int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Stops the background writer and writes everything that is still queued
+	 * on the calling thread.
+	 */
+	void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS,
+					TimeUnit.SECONDS)) {
+				log.warning("ReputationWeb: Timed out waiting for the database writer.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		int lost = pendingCount();
+		if (lost > 0) {
+			log.severe("ReputationWeb: " + lost
+					+ " trust changes could not be saved to the database.");
+		}
+	}
+
+	private void enqueue(TrustKey key, boolean added) {
+		boolean flushNow;
+		synchronized (this) {
+			merge(pending, key, added);
+			flushNow = pending.size() >= BATCH_SIZE && !flushScheduled;
+			if (flushNow) flushScheduled = true;
+		}
+		if (flushNow && !writer.isShutdown()) {
+			writer.execute(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records a change in a queue. A change that undoes the one already
+	 * queued for the same relationship cancels it.
+	 */
+	private static void merge(Map<TrustKey, Boolean> queue, TrustKey key,
+			boolean added)
+	{
+		Boolean queued = queue.get(key);
+		if (queued != null && queued != added) {
+			queue.remove(key);
+		} else {
+			queue.put(key, added);
+		}
+	}
+
+	/**
+	 * Writes every queued change in one transaction.
+	 */
+	private void flush() {
+		Map<TrustKey, Boolean> batch;
+		synchronized (this) {
+			flushScheduled = false;
+			if (pending.isEmpty()) return;
+			batch = pending;
+			pending = new LinkedHashMap<TrustKey, Boolean>();
+		}
+		try {
+			long startTime = System.nanoTime();
+			write(batch);
+			metrics.recordStorage("database write", System.nanoTime()
+					- startTime);
+		} catch (RuntimeException e) {
+			log.log(Level.SEVERE, "ReputationWeb: Could not save "
+					+ batch.size() + " trust changes. Will try again.", e);
+			requeue(batch);
+		}
+	}
+
+	private void write(Map<TrustKey, Boolean> batch) {
+		Map<String, Integer> found = new HashMap<String, Integer>();
+		database.beginTransaction();
+		try {
+			for (Map.Entry<TrustKey, Boolean> change : batch.entrySet()) {
+				TrustKey key = change.getKey();
+				boolean added = change.getValue();
+				Integer trusterId = playerIds.find(database, key.trusterName,
+						found, added);
+				Integer trusteeId = playerIds.find(database, key.trusteeName,
+						found, added);
+				// A player who is not in rw_players has no edges to delete.
+				if (trusterId == null || trusteeId == null) continue;
+				// Deleting before inserting makes an add that is already in the
+				// database harmless, instead of failing the whole batch on the
+				// unique index.
+				SqlUpdate delete = database
+						.createSqlUpdate("delete from rw_trust_edges where truster_id = :truster and trustee_id = :trustee");
+				delete.setParameter("truster", trusterId);
+				delete.setParameter("trustee", trusteeId);
+				database.execute(delete);
+				if (added) {
+					TrustEdge edge = new TrustEdge();
+					edge.setTrusterId(trusterId);
+					edge.setTrusteeId(trusteeId);
+					database.save(edge);
+				}
+			}
+			database.commitTransaction();
+		} finally {
+			database.endTransaction();
+		}
+		playerIds.remember(found);
+	}
+
+	/**
+	 * Puts a batch that failed back in front of the changes made since it was
+	 * taken.
+	 */
+	private synchronized void requeue(Map<TrustKey, Boolean> batch) {
+		for (Map.Entry<TrustKey, Boolean> change : pending.entrySet()) {
+			merge(batch, change.getKey(), change.getValue());
+		}
+		pending = batch;
+	}
+
+	/**
+	 * A trust relationship, by player name.
+	 */
+	private static class TrustKey {
+		private final String trusterName;
+		private final String trusteeName;
+
+		TrustKey(String trusterName, String trusteeName) {
+			this.trusterName = trusterName;
+			this.trusteeName = trusteeName;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof TrustKey)) return false;
+			TrustKey key = (TrustKey) other;
+			return trusterName.equals(key.trusterName)
+					&& trusteeName.equals(key.trusteeName);
+		}
+
+		@Override
+		public int hashCode() {
+			return trusterName.hashCode() * 31 + trusteeName.hashCode();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package com.gradysimon.reputationweb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that JournalTrustStore reads back what was written to it, across
+ * folds into a new snapshot and across crashes at each step of a fold.
+ *
+ * A fold happens once the journal holds 10000 trust records, so the tests
+ * write exactly that many to make one happen at a known point. Each crash is
+ * simulated by putting back the files as they were at that step.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class JournalTrustStoreTest {
+	private static final int RECORDS_PER_FOLD = 10000;
+	private static final int PLAYERS = 60;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File folder;
+	private File snapshotFile;
+	private File newSnapshotFile;
+	private File journalFile;
+	private final Random random = new Random(12);
+	private final Set<String> trusts = new HashSet<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		folder = temporaryFolder.newFolder("data");
+		snapshotFile = new File(folder, "trusts.snapshot");
+		newSnapshotFile = new File(folder, "trusts.snapshot.new");
+		journalFile = new File(folder, "trusts.journal");
+	}
+
+	@Test
+	public void readsBackTrustsAndUntrustsAcrossFolds() throws IOException {
+		write(25000);
+		assertTrue(snapshotFile.exists());
+		assertEquals(trusts, load());
+		write(100);
+		assertEquals(trusts, load());
+	}
+
+	@Test
+	public void emptyFolderLoadsNothing() throws IOException {
+		assertTrue(load().isEmpty());
+		assertTrue(load().isEmpty());
+	}
+
+	@Test
+	public void ignoresRecordCutShortAtTheEnd() throws IOException {
+		write(500);
+		RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+		journal.seek(journal.length());
+		journal.write(new byte[] { 1, 0, 0 });
+		journal.close();
+		assertEquals(trusts, load());
+		write(10);
+		assertEquals(trusts, load());
+	}
+
+	@Test
+	public void crashBeforeNewSnapshotIsMovedIntoPlace() throws IOException {
+		write(RECORDS_PER_FOLD);
+		write(300);
+		Set<String> beforeFold = new HashSet<String>(trusts);
+		File oldSnapshot = copy(snapshotFile);
+		File oldJournal = copy(journalFile);
+		write(RECORDS_PER_FOLD - 300);
+		// The fold had written its snapshot, but not moved it.
+		Files.move(snapshotFile.toPath(), newSnapshotFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		restore(oldSnapshot, snapshotFile);
+		restore(oldJournal, journalFile);
+		assertEquals(beforeFold, load());
+		assertFalse(newSnapshotFile.exists());
+	}
+
+	@Test
+	public void crashWhileWritingNewSnapshot() throws IOException {
+		write(RECORDS_PER_FOLD);
+		write(300);
+		RandomAccessFile torn = new RandomAccessFile(newSnapshotFile, "rw");
+		torn.write(new byte[] { 0x52, 0x57 });
+		torn.close();
+		assertEquals(trusts, load());
+		assertFalse(newSnapshotFile.exists());
+	}
+
+	@Test
+	public void crashBeforeFirstSnapshotIsMovedIntoPlace() throws IOException {
+		write(300);
+		Set<String> beforeFold = new HashSet<String>(trusts);
+		File oldJournal = copy(journalFile);
+		write(RECORDS_PER_FOLD - 300);
+		Files.move(snapshotFile.toPath(), newSnapshotFile.toPath());
+		restore(oldJournal, journalFile);
+		assertEquals(beforeFold, load());
+	}
+
+	@Test
+	public void crashAfterSnapshotIsMovedBeforeJournalIsEmptied()
+			throws IOException
+	{
+		// Both players are in the first snapshot, so the old journal starts
+		// with a trust record rather than with their names.
+		trust("founder", "friend");
+		untrust("founder", "friend");
+		write(RECORDS_PER_FOLD - 2);
+		// A trust the old journal adds, and the next fold removes again.
+		trust("founder", "friend");
+		write(299);
+		File oldJournal = copy(journalFile);
+		untrust("founder", "friend");
+		write(RECORDS_PER_FOLD - 301);
+		restore(oldJournal, journalFile);
+		Set<String> loaded = load();
+		assertEquals(trusts, loaded);
+		assertFalse(loaded.contains("founder>friend"));
+		// The folded journal has been emptied, and is written to again.
+		write(10);
+		assertEquals(trusts, load());
+	}
+
+	@Test
+	public void crashAfterJournalIsCutBeforeHeaderIsWritten()
+			throws IOException
+	{
+		write(RECORDS_PER_FOLD);
+		write(300);
+		write(RECORDS_PER_FOLD - 300);
+		RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+		journal.setLength(0);
+		journal.close();
+		assertEquals(trusts, load());
+		write(10);
+		assertEquals(trusts, load());
+	}
+
+	@Test
+	public void refusesJournalOfLaterGenerationThanSnapshot()
+			throws IOException
+	{
+		write(RECORDS_PER_FOLD);
+		File oldSnapshot = copy(snapshotFile);
+		write(RECORDS_PER_FOLD);
+		write(20);
+		restore(oldSnapshot, snapshotFile);
+		byte[] journal = Files.readAllBytes(journalFile.toPath());
+		try {
+			load();
+			fail("Replayed a journal over the wrong snapshot.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertArrayEquals(journal, Files.readAllBytes(journalFile.toPath()));
+	}
+
+	@Test
+	public void refusesSnapshotWithTrustOfUnknownPlayer() throws IOException {
+		write(RECORDS_PER_FOLD);
+		RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "rw");
+		snapshot.seek(snapshot.length() - 4);
+		snapshot.writeInt(PLAYERS);
+		snapshot.close();
+		try {
+			load();
+			fail("Read a trust of a player the snapshot does not hold.");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void refusesSnapshotCutShort() throws IOException {
+		write(RECORDS_PER_FOLD);
+		RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "rw");
+		snapshot.setLength(snapshot.length() - 6);
+		snapshot.close();
+		try {
+			load();
+			fail("Read a snapshot that was cut short.");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Writes count random trust changes to the store, keeping track of the
+	 * trusts they leave.
+	 */
+	private void write(int count) throws IOException {
+		JournalTrustStore store = open();
+		for (int i = 0; i < count; i++) {
+			String truster = "p" + random.nextInt(PLAYERS);
+			String trustee = "p" + random.nextInt(PLAYERS);
+			if (random.nextInt(3) == 0) {
+				store.trustRemoved(truster, trustee);
+				trusts.remove(truster + ">" + trustee);
+			} else {
+				store.trustAdded(truster, trustee);
+				trusts.add(truster + ">" + trustee);
+			}
+		}
+		store.close();
+	}
+
+	private void trust(String truster, String trustee) throws IOException {
+		JournalTrustStore store = open();
+		store.trustAdded(truster, trustee);
+		trusts.add(truster + ">" + trustee);
+		store.close();
+	}
+
+	private void untrust(String truster, String trustee) throws IOException {
+		JournalTrustStore store = open();
+		store.trustRemoved(truster, trustee);
+		trusts.remove(truster + ">" + trustee);
+		store.close();
+	}
+
+	private JournalTrustStore open() throws IOException {
+		JournalTrustStore store = new JournalTrustStore(folder,
+				new ReputationMetrics(), Logger.getAnonymousLogger());
+		store.load(new Collector());
+		return store;
+	}
+
+	/**
+	 * Returns the trusts a newly opened store reads.
+	 */
+	private Set<String> load() throws IOException {
+		JournalTrustStore store = new JournalTrustStore(folder,
+				new ReputationMetrics(), Logger.getAnonymousLogger());
+		Collector collector = new Collector();
+		store.load(collector);
+		store.close();
+		return collector.trusts;
+	}
+
+	private File copy(File file) throws IOException {
+		File copy = temporaryFolder.newFile();
+		Files.copy(file.toPath(), copy.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+
+	private static void restore(File copy, File file) throws IOException {
+		Files.copy(copy.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static class Collector implements TrustStore.TrustVisitor {
+		private final Set<String> trusts = new HashSet<String>();
+
+		public void trustAdded(String trusterName, String trusteeName) {
+			trusts.add(trusterName + ">" + trusteeName);
+		}
+
+		public void trustRemoved(String trusterName, String trusteeName) {
+			trusts.remove(trusterName + ">" + trusteeName);
+		}
+	}
+}
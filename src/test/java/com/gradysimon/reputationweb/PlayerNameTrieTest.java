@@ -0,0 +1,111 @@
+package com.gradysimon.reputationweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Checks PlayerNameTrie against a sorted map of lower-cased names.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class PlayerNameTrieTest {
+	private final PlayerNameTrie trie = new PlayerNameTrie();
+
+	@Test
+	public void emptyTrieFindsNothing() {
+		assertEquals(0, trie.size());
+		assertNull(trie.get("Notch"));
+		assertNull(trie.get(""));
+		assertTrue(trie.withPrefix("", 10).isEmpty());
+		assertTrue(trie.all().isEmpty());
+	}
+
+	@Test
+	public void namesAreFoundInAnyCaseAsFirstAdded() {
+		assertTrue(trie.add("Notch"));
+		assertFalse(trie.add("notch"));
+		assertFalse(trie.add("NOTCH"));
+		assertEquals(1, trie.size());
+		assertEquals("Notch", trie.get("nOTCH"));
+		assertNull(trie.get("Notc"));
+		assertNull(trie.get("Notchy"));
+	}
+
+	@Test
+	public void emptyPrefixCompletesEveryName() {
+		trie.add("bob");
+		trie.add("Alice");
+		trie.add("al");
+		assertEquals(Arrays.asList("al", "Alice", "bob"),
+				trie.withPrefix("", 10));
+		assertEquals(Arrays.asList("al", "Alice"), trie.withPrefix("", 2));
+		assertTrue(trie.withPrefix("", 0).isEmpty());
+	}
+
+	@Test
+	public void prefixThatIsAlsoANameComesFirst() {
+		trie.add("Steve_2");
+		trie.add("steve");
+		trie.add("Steven");
+		trie.add("stone");
+		assertEquals(Arrays.asList("steve", "Steve_2", "Steven"),
+				trie.withPrefix("STEVE", 10));
+		assertTrue(trie.withPrefix("stevez", 10).isEmpty());
+	}
+
+	@Test
+	public void randomNamesMatchSortedMap() {
+		Random random = new Random(9);
+		Map<String, String> expected = new TreeMap<String, String>();
+		for (int i = 0; i < 20000; i++) {
+			String name = randomName(random);
+			boolean added = !expected.containsKey(name.toLowerCase());
+			if (added) expected.put(name.toLowerCase(), name);
+			assertEquals(added, trie.add(name));
+		}
+		assertEquals(expected.size(), trie.size());
+		assertEquals(new ArrayList<String>(expected.values()), trie.all());
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), trie.get(entry.getKey()
+					.toUpperCase()));
+		}
+		for (int i = 0; i < 500; i++) {
+			String prefix = randomName(random);
+			prefix = prefix.substring(0, random.nextInt(prefix.length() + 1));
+			int limit = random.nextInt(60);
+			List<String> completions = new ArrayList<String>();
+			for (Map.Entry<String, String> entry : expected.entrySet()) {
+				if (completions.size() == limit) break;
+				if (entry.getKey().startsWith(prefix.toLowerCase())) {
+					completions.add(entry.getValue());
+				}
+			}
+			assertEquals(completions, trie.withPrefix(prefix, limit));
+		}
+	}
+
+	/**
+	 * Returns a short name from few letters, so that names share prefixes.
+	 */
+	private static String randomName(Random random) {
+		String letters = "abcdeABCDE_1";
+		StringBuilder name = new StringBuilder();
+		int length = 1 + random.nextInt(8);
+		for (int i = 0; i < length; i++) {
+			name.append(letters.charAt(random.nextInt(letters.length())));
+		}
+		return name.toString();
+	}
+}
@@ -0,0 +1,233 @@
+package com.gradysimon.reputationweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import org.bukkit.OfflinePlayer;
+import org.junit.Test;
+
+/**
+ * Checks the chains of trust ReputationGraph finds against distances worked
+ * out by a plain breadth-first search over a matrix of trusts, and the most
+ * reputable chains against every shortest chain, tried one by one.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationGraphPathTest {
+	private final OfflinePlayer[] players = TestPlayers.create(25);
+	private final boolean[][] trusts = new boolean[players.length][players.length];
+	private final ReputationGraph graph = new ReputationGraph(0.5, 4);
+
+	@Test
+	public void referencesAreShortestChains() {
+		for (int seed = 1; seed <= 20; seed++) {
+			randomWeb(new Random(seed), 45);
+			assertReferencesAreShortest(0);
+		}
+	}
+
+	@Test
+	public void referencesRespectMaxConnectionLength() {
+		graph.setMaxConnectionLength(2);
+		for (int seed = 1; seed <= 20; seed++) {
+			randomWeb(new Random(seed), 45);
+			assertReferencesAreShortest(2);
+		}
+	}
+
+	@Test
+	public void mostReputableReferencesAreBestShortestChains() {
+		for (int seed = 1; seed <= 20; seed++) {
+			randomWeb(new Random(seed), 45);
+			assertMostReputableReferencesAreBest(0);
+		}
+	}
+
+	@Test
+	public void mostReputableReferencesRespectMaxConnectionLength() {
+		graph.setMaxConnectionLength(2);
+		for (int seed = 1; seed <= 20; seed++) {
+			randomWeb(new Random(seed), 45);
+			assertMostReputableReferencesAreBest(2);
+		}
+	}
+
+	@Test
+	public void mostReputableReferencePrefersReputablePlayers() {
+		// Two chains from 0 to 3: through 1, and through 2, who is trusted
+		// by others as well.
+		trust(0, 1);
+		trust(0, 2);
+		trust(1, 3);
+		trust(2, 3);
+		trust(4, 2);
+		trust(5, 2);
+		assertEquals(Arrays.asList(players[2], players[3]),
+				graph.getMostReputableReference(players[0], players[3]));
+		assertNull(graph.getMostReputableReference(players[0], players[0]));
+		assertNull(graph.getMostReputableReference(players[3], players[0]));
+	}
+
+	@Test
+	public void noReferenceToSelfOrUnknownPlayers() {
+		trust(0, 1);
+		trust(1, 0);
+		assertNull(graph.getReference(players[0], players[0]));
+		assertNull(graph.getReference(players[0], players[2]));
+		assertNull(graph.getReference(players[2], players[0]));
+	}
+
+	@Test
+	public void referenceFollowsTrustOnlyForwards() {
+		trust(0, 1);
+		trust(1, 2);
+		assertEquals(Arrays.asList(players[1], players[2]),
+				graph.getReference(players[0], players[2]));
+		assertNull(graph.getReference(players[2], players[0]));
+	}
+
+	/**
+	 * Replaces the web with count random trusts.
+	 */
+	private void randomWeb(Random random, int count) {
+		for (int i = 0; i < players.length; i++) {
+			for (int j = 0; j < players.length; j++) {
+				if (trusts[i][j]) untrust(i, j);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			trust(random.nextInt(players.length),
+					random.nextInt(players.length));
+		}
+	}
+
+	private void trust(int truster, int trustee) {
+		graph.addTrustRelation(players[truster], players[trustee]);
+		trusts[truster][trustee] = true;
+	}
+
+	private void untrust(int truster, int trustee) {
+		graph.removeTrustRelation(players[truster], players[trustee]);
+		trusts[truster][trustee] = false;
+	}
+
+	private void assertReferencesAreShortest(int maxLength) {
+		for (int start = 0; start < players.length; start++) {
+			int[] distances = distancesFrom(start);
+			for (int end = 0; end < players.length; end++) {
+				if (!graph.playerIsInGraph(players[start])
+						|| !graph.playerIsInGraph(players[end])) {
+					continue;
+				}
+				List<OfflinePlayer> path = graph.getReference(players[start],
+						players[end]);
+				boolean reachable = start != end && distances[end] > 0
+						&& (maxLength == 0 || distances[end] <= maxLength);
+				if (!reachable) {
+					assertNull(path);
+					continue;
+				}
+				assertNotNull(path);
+				assertEquals(distances[end], path.size());
+				assertIsChain(start, end, path);
+			}
+		}
+	}
+
+	private void assertMostReputableReferencesAreBest(int maxLength) {
+		for (int start = 0; start < players.length; start++) {
+			int[] distances = distancesFrom(start);
+			for (int end = 0; end < players.length; end++) {
+				if (!graph.playerIsInGraph(players[start])
+						|| !graph.playerIsInGraph(players[end])) {
+					continue;
+				}
+				List<OfflinePlayer> path = graph.getMostReputableReference(
+						players[start], players[end]);
+				boolean reachable = start != end && distances[end] > 0
+						&& (maxLength == 0 || distances[end] <= maxLength);
+				if (!reachable) {
+					assertNull(path);
+					continue;
+				}
+				assertNotNull(path);
+				assertEquals(distances[end], path.size());
+				assertIsChain(start, end, path);
+				assertEquals(bestReputation(start, end, distances, 0),
+						reputationOf(path), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * Returns the highest total reputation of the players on any shortest
+	 * chain from node to end, not counting node itself, by trying every one.
+	 */
+	private double bestReputation(int node, int end, int[] distances,
+			int steps)
+	{
+		if (node == end) return 0;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int trustee = 0; trustee < players.length; trustee++) {
+			if (!trusts[node][trustee] || distances[trustee] != steps + 1
+					|| distances[trustee] > distances[end]) {
+				continue;
+			}
+			best = Math.max(best, graph.getReputation(players[trustee])
+					+ bestReputation(trustee, end, distances, steps + 1));
+		}
+		return best;
+	}
+
+	private double reputationOf(List<OfflinePlayer> path) {
+		double reputation = 0;
+		for (OfflinePlayer player : path) {
+			reputation += graph.getReputation(player);
+		}
+		return reputation;
+	}
+
+	/**
+	 * Asserts that each player in the path trusts the next, starting from
+	 * start and ending with end.
+	 */
+	private void assertIsChain(int start, int end, List<OfflinePlayer> path) {
+		OfflinePlayer previous = players[start];
+		for (OfflinePlayer player : path) {
+			assertTrue(graph.trustRelationExists(previous, player));
+			previous = player;
+		}
+		assertEquals(players[end], previous);
+	}
+
+	/**
+	 * Returns the number of steps of trust from start to each player, or -1
+	 * where there is no chain.
+	 */
+	private int[] distancesFrom(int start) {
+		int[] distances = new int[players.length];
+		Arrays.fill(distances, -1);
+		distances[start] = 0;
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		queue.add(start);
+		while (!queue.isEmpty()) {
+			int node = queue.remove();
+			for (int trustee = 0; trustee < players.length; trustee++) {
+				if (trusts[node][trustee] && distances[trustee] < 0) {
+					distances[trustee] = distances[node] + 1;
+					queue.add(trustee);
+				}
+			}
+		}
+		return distances;
+	}
+}
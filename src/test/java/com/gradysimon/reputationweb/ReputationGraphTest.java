@@ -0,0 +1,177 @@
+package com.gradysimon.reputationweb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.OfflinePlayer;
+import org.junit.Test;
+
+/**
+ * Checks the reputations ReputationGraph keeps up to date as trusts change
+ * against ones worked out from scratch: by a breadth-first search over a plain
+ * matrix of trusts here, and by ReputationRecomputeJob.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationGraphTest {
+	private static final double FLOW_MULTIPLIER = 0.5;
+	private static final int MAX_CHAIN_LENGTH = 4;
+	private static final double TOLERANCE = 1e-9;
+
+	private final OfflinePlayer[] players = TestPlayers.create(60);
+	private final boolean[][] trusts = new boolean[players.length][players.length];
+	private final ReputationGraph graph = new ReputationGraph(FLOW_MULTIPLIER,
+			MAX_CHAIN_LENGTH);
+
+	@Test
+	public void randomChangesMatchReputationsFromScratch() {
+		for (int seed = 1; seed <= 5; seed++) {
+			Random random = new Random(seed);
+			for (int i = 1; i <= 1500; i++) {
+				randomChange(random);
+				if (i % 100 == 0) assertMatchesFromScratch();
+			}
+		}
+		assertRecomputeCorrectsNothing();
+	}
+
+	@Test
+	public void deferredRefreshMatchesReputationsFromScratch() {
+		graph.setDeferRefresh(true);
+		List<OfflinePlayer> online = Arrays.asList(players).subList(0, 10);
+		Random random = new Random(7);
+		for (int i = 1; i <= 3000; i++) {
+			randomChange(random);
+			// A short slice, so that propagations are resumed, joined by
+			// later changes and finished early by them.
+			graph.refresh(online, 3, System.nanoTime() + 20000);
+			if (i % 150 == 0) {
+				refreshCompletely(online);
+				assertMatchesFromScratch();
+			}
+		}
+		refreshCompletely(online);
+		assertRecomputeCorrectsNothing();
+	}
+
+	@Test
+	public void selfTrustDoesNotRaiseReputation() {
+		trust(0, 1);
+		trust(1, 2);
+		double before = graph.getReputation(players[1]);
+		trust(1, 1);
+		assertEquals(before, graph.getReputation(players[1]), TOLERANCE);
+		assertMatchesFromScratch();
+		untrust(1, 1);
+		assertMatchesFromScratch();
+		assertRecomputeCorrectsNothing();
+	}
+
+	@Test
+	public void removingTrustThatDoesNotExistChangesNothing() {
+		trust(0, 1);
+		trust(2, 1);
+		graph.drainChangedPlayers();
+		graph.removeTrustRelation(players[1], players[0]);
+		graph.removeTrustRelation(players[0], players[5]);
+		graph.removeTrustRelation(players[7], players[8]);
+		assertEquals(0, graph.drainChangedPlayers().length);
+		assertFalse(graph.playerIsInGraph(players[7]));
+		assertFalse(graph.playerIsInGraph(players[8]));
+		assertMatchesFromScratch();
+	}
+
+	@Test
+	public void addingExistingTrustChangesNothing() {
+		trust(0, 1);
+		trust(1, 2);
+		graph.drainChangedPlayers();
+		graph.addTrustRelation(players[0], players[1]);
+		assertEquals(0, graph.drainChangedPlayers().length);
+		assertMatchesFromScratch();
+	}
+
+	private void randomChange(Random random) {
+		int truster = random.nextInt(players.length);
+		// Mostly between a few players, so that chains and cycles form.
+		int trustee = random.nextInt(4) == 0 ? truster : random
+				.nextInt(players.length);
+		if (random.nextInt(3) == 0) {
+			untrust(truster, trustee);
+		} else {
+			trust(truster, trustee);
+		}
+	}
+
+	private void trust(int truster, int trustee) {
+		graph.addTrustRelation(players[truster], players[trustee]);
+		trusts[truster][trustee] = true;
+	}
+
+	private void untrust(int truster, int trustee) {
+		graph.removeTrustRelation(players[truster], players[trustee]);
+		trusts[truster][trustee] = false;
+	}
+
+	private void refreshCompletely(List<OfflinePlayer> online) {
+		while (!graph.refresh(online, 3, Long.MAX_VALUE)) {
+		}
+	}
+
+	private void assertMatchesFromScratch() {
+		for (int i = 0; i < players.length; i++) {
+			assertEquals(players[i].getName(), reputationFromScratch(i),
+					graph.getReputation(players[i]), TOLERANCE);
+			for (int j = 0; j < players.length; j++) {
+				assertEquals(trusts[i][j], graph.trustRelationExists(
+						players[i], players[j]));
+			}
+		}
+	}
+
+	private void assertRecomputeCorrectsNothing() {
+		ReputationRecomputeJob job = graph.prepareRecompute(
+				graph.getFlowMultiplier(), graph.getMaxChainLength());
+		job.run(2);
+		ReputationRecomputeJob.Report report = graph.installRecompute(job);
+		assertNotNull(report);
+		assertEquals(0, report.corrected);
+		assertEquals(0, report.refreshed);
+	}
+
+	/**
+	 * Counts the players at each distance from the player, following trust
+	 * backwards, and weighs each distance by the flow multiplier.
+	 */
+	private double reputationFromScratch(int player) {
+		int[] distances = new int[players.length];
+		Arrays.fill(distances, -1);
+		distances[player] = 0;
+		List<Integer> ring = new ArrayList<Integer>();
+		ring.add(player);
+		double reputation = 0;
+		double weight = 1;
+		for (int distance = 1; distance <= MAX_CHAIN_LENGTH; distance++) {
+			List<Integer> next = new ArrayList<Integer>();
+			for (int node : ring) {
+				for (int truster = 0; truster < players.length; truster++) {
+					if (trusts[truster][node] && distances[truster] < 0) {
+						distances[truster] = distance;
+						next.add(truster);
+					}
+				}
+			}
+			reputation += weight * next.size();
+			weight *= FLOW_MULTIPLIER;
+			ring = next;
+		}
+		return reputation;
+	}
+}
@@ -0,0 +1,111 @@
+package com.gradysimon.reputationweb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the pages ReputationRankIndex returns against a sorted list of every
+ * player.
+ *
+ * @author Genre (Grady Simon)
+ *
+ */
+public class ReputationRankIndexTest {
+	private final ReputationRankIndex index = new ReputationRankIndex();
+	private final List<Double> reputations = new ArrayList<Double>();
+
+	@Test
+	public void emptyIndexHasNoPages() {
+		assertEquals(0, index.size());
+		assertEquals(0, index.page(0, 10).length);
+	}
+
+	@Test
+	public void randomUpdatesMatchSortedOrder() {
+		Random random = new Random(4);
+		for (int i = 1; i <= 5000; i++) {
+			int id = random.nextInt(300);
+			// Few distinct reputations, so that ties are common.
+			update(id, random.nextInt(20) * 0.5);
+			if (i % 250 == 0) assertPagesMatch(random);
+		}
+	}
+
+	@Test
+	public void unchangedReputationKeepsPlace() {
+		update(0, 1.0);
+		update(1, 2.0);
+		update(2, 1.0);
+		update(0, 1.0);
+		assertArrayEquals(new int[] { 1, 0, 2 }, index.page(0, 3));
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void tiesAreOrderedById() {
+		update(5, 3.0);
+		update(2, 3.0);
+		update(9, 3.0);
+		update(7, 4.0);
+		assertArrayEquals(new int[] { 7, 2, 5, 9 }, index.page(0, 10));
+	}
+
+	@Test
+	public void pagesPastTheEndAreShortOrEmpty() {
+		for (int id = 0; id < 10; id++) {
+			update(id, id);
+		}
+		assertArrayEquals(new int[] { 1, 0 }, index.page(8, 5));
+		assertEquals(0, index.page(10, 5).length);
+		assertEquals(0, index.page(25, 5).length);
+		assertEquals(0, index.page(3, 0).length);
+	}
+
+	private void update(int id, double reputation) {
+		index.update(id, reputation);
+		while (reputations.size() <= id) {
+			reputations.add(null);
+		}
+		reputations.set(id, reputation);
+	}
+
+	private void assertPagesMatch(Random random) {
+		List<Integer> ranked = new ArrayList<Integer>();
+		for (int id = 0; id < reputations.size(); id++) {
+			if (reputations.get(id) != null) ranked.add(id);
+		}
+		Collections.sort(ranked, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int byReputation = Double.compare(reputations.get(b),
+						reputations.get(a));
+				return byReputation != 0 ? byReputation : a.compareTo(b);
+			}
+		});
+		assertEquals(ranked.size(), index.size());
+		assertArrayEquals(toArray(ranked), index.page(0, ranked.size()));
+		for (int i = 0; i < 20; i++) {
+			int offset = random.nextInt(ranked.size() + 5);
+			int count = random.nextInt(15);
+			int end = Math.min(ranked.size(), offset + count);
+			List<Integer> expected = offset < end ? ranked.subList(offset, end)
+					: new ArrayList<Integer>();
+			assertArrayEquals(toArray(expected), index.page(offset, count));
+		}
+	}
+
+	private static int[] toArray(List<Integer> ids) {
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ids.get(i);
+		}
+		return array;
+	}
+}